@@ -1,17 +1,23 @@
 package ro.nicuch.tag;
 
 import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.event.world.WorldSaveEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
+import ro.nicuch.tag.nbt.ChunkCompoundTag;
+import ro.nicuch.tag.register.ChunkRegister;
+import ro.nicuch.tag.register.RegionRegister;
 import ro.nicuch.tag.register.WorldRegister;
 import ro.nicuch.tag.thread.TagProcessRunnable;
 
+import java.util.Map;
 import java.util.Optional;
 
 public class TagListener implements Listener {
@@ -32,19 +38,28 @@ public class TagListener implements Listener {
         this.tagProcess.addToUnload(event);
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void event(EntityDeathEvent event) {
+        if (event.getEntity() instanceof Player)
+            return; // players keep their tags
+        TagRegister.getWorld(event.getEntity().getWorld()).ifPresent(worldRegister -> worldRegister.removeEntityInternal(event.getEntity().getUniqueId()));
+    }
+
     @EventHandler(priority = EventPriority.LOWEST)
     public void event(WorldSaveEvent event) {
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> TagRegister.getOrLoadWorld(event.getWorld()).saveRegions());
+        TagRegister.getWorld(event.getWorld()).ifPresent(plugin.getSaveScheduler()::requestSave);
     }
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void event(WorldUnloadEvent event) {
+        Optional<WorldRegister> optionalWorldRegister = TagRegister.getWorld(event.getWorld());
+        if (!optionalWorldRegister.isPresent())
+            return;
+        Map<RegionRegister, Map<ChunkRegister, ChunkCompoundTag>> snapshots = optionalWorldRegister.get().captureRegions(); // on the main thread, written below
         Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            Optional<WorldRegister> optionalWorldRegister = TagRegister.getWorld(event.getWorld());
-            if (!optionalWorldRegister.isPresent())
-                return;
-            optionalWorldRegister.get().saveRegions();
+            optionalWorldRegister.get().saveRegions(snapshots);
             TagRegister.unloadWorld(event.getWorld());
+            plugin.getChunkTagCache().invalidateWorld(event.getWorld().getName());
         });
     }
 
@@ -53,6 +68,6 @@ public class TagListener implements Listener {
         if (!event.getPlayer().isOp())
             return;
         if (event.getMessage().equalsIgnoreCase("/save-all"))
-            Bukkit.getScheduler().runTaskAsynchronously(plugin, TagRegister::saveAll);
+            plugin.getSaveScheduler().requestSaveAll();
     }
 }
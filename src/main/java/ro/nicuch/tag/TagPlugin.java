@@ -3,35 +3,107 @@ package ro.nicuch.tag;
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitTask;
+import ro.nicuch.tag.cache.ChunkTagCache;
+import ro.nicuch.tag.cache.ChunkWriteBehindBuffer;
+import ro.nicuch.tag.nbt.TagFormat;
+import ro.nicuch.tag.nbt.TagIO;
+import ro.nicuch.tag.thread.TagCompletionDispatcher;
 import ro.nicuch.tag.thread.TagProcessRunnable;
+import ro.nicuch.tag.thread.TagSaveScheduler;
 
 import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 public class TagPlugin extends JavaPlugin {
     private BukkitTask task;
+    private BukkitTask completionTask;
+    private BukkitTask saveTask;
     private File cacheDirectory;
     private TagProcessRunnable tagProcess;
+    private TagCompletionDispatcher completionDispatcher;
+    private ChunkWriteBehindBuffer writeBehindBuffer;
+    private ChunkTagCache chunkTagCache;
+    private TagSaveScheduler saveScheduler;
+    private ForkJoinPool savePool;
 
     @Override
     public void onEnable() {
+        this.saveDefaultConfig();
+        TagIO.setChunkFormat(this.readFormat());
         this.tagProcess = new TagProcessRunnable();
+        int parallelism = this.getConfig().getInt("save.parallelism", 0);
+        this.savePool = new ForkJoinPool(parallelism > 0 ? parallelism : Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        this.chunkTagCache = new ChunkTagCache(this.getConfig().getLong("chunk-cache.max-megabytes", 32L) * 1024L * 1024L);
+        this.writeBehindBuffer = new ChunkWriteBehindBuffer(this.getConfig().getLong("write-behind.max-megabytes", 64L) * 1024L * 1024L,
+                this.getConfig().getLong("write-behind.max-age-seconds", 30L) * 1000L, this.chunkTagCache);
+        this.completionDispatcher = new TagCompletionDispatcher(this.getConfig().getLong("completion.tick-budget-ms", 2L));
+        this.completionTask = Bukkit.getScheduler().runTaskTimer(this, this.completionDispatcher, 1L, 1L);
+        this.saveScheduler = new TagSaveScheduler(this.getConfig().getInt("save.window-ticks", 100),
+                this.getConfig().getLong("save.slice-max-ms", 10L), this.getConfig().getLong("save.slice-max-kilobytes", 512L) * 1024L);
+        this.saveTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this, this.saveScheduler, 1L, 1L);
+        for (String key : this.getConfig().getStringList("index.keys"))
+            TagRegister.declareIndex(key);
         Bukkit.getPluginManager().registerEvents(new TagListener(this), this);
         this.autoUnload();
     }
 
     @Override
     public void onDisable() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.getConfig().getLong("shutdown.deadline-seconds", 20L));
         this.task.cancel();
-        this.tagProcess.shutdown();
-        TagRegister.tryUnloading(); //last time
-        TagRegister.saveAll();
+        this.completionTask.cancel();
+        this.saveTask.cancel();
+        this.saveScheduler.cancel(); // everything is saved below
+        this.writeBehindBuffer.stop(); // pending chunks are taken back by their regions
+        this.tagProcess.shutdown(deadline);
+        this.completionDispatcher.drainAll();
+        this.writeBehindBuffer.shutdown(); // anything put meanwhile, before the indexes are saved by the regions' shutdown
+        TagRegister.shutdown(deadline); //last time, chunks unloaded now are written through
+        this.savePool.shutdown();
+        try {
+            this.savePool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private TagFormat readFormat() {
+        String name = this.getConfig().getString("save.format", "v1");
+        try {
+            return TagFormat.fromName(name);
+        } catch (IllegalArgumentException ex) {
+            this.getLogger().warning("Unknown save.format '" + name + "', chunks are written in v1. Use v1, v2 or v3.");
+            return TagFormat.V1;
+        }
     }
 
     public TagProcessRunnable getProcess() {
         return this.tagProcess;
     }
 
+    public TagCompletionDispatcher getCompletionDispatcher() {
+        return this.completionDispatcher;
+    }
+
+    public ChunkWriteBehindBuffer getWriteBehindBuffer() {
+        return this.writeBehindBuffer;
+    }
+
+    public TagSaveScheduler getSaveScheduler() {
+        return this.saveScheduler;
+    }
+
+    public ForkJoinPool getSavePool() {
+        return this.savePool;
+    }
+
+    public ChunkTagCache getChunkTagCache() {
+        return this.chunkTagCache;
+    }
+
     private void autoUnload() {
-        this.task = Bukkit.getScheduler().runTaskTimerAsynchronously(this, TagRegister::tryUnloading, 10 * 20L, 10 * 20L);
+        long period = Math.max(1L, this.getConfig().getLong("unload.sweep-seconds", 300L)) * 20L; // regions close on chunk unload, this only catches leftovers
+        this.task = Bukkit.getScheduler().runTaskTimerAsynchronously(this, TagRegister::tryUnloading, period, period);
     }
 }
@@ -1,33 +1,41 @@
 package ro.nicuch.tag;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Entity;
-import org.springframework.util.ConcurrentReferenceHashMap;
+import org.bukkit.util.BoundingBox;
+import ro.nicuch.tag.index.TagIndex;
+import ro.nicuch.tag.nbt.ChunkCompoundTag;
 import ro.nicuch.tag.nbt.CompoundTag;
+import ro.nicuch.tag.register.ChunkRegister;
+import ro.nicuch.tag.register.RegionRegister;
+import ro.nicuch.tag.register.TaggedBlockConsumer;
 import ro.nicuch.tag.register.WorldRegister;
+import ro.nicuch.tag.thread.SingleFlight;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 public class TagRegister {
     private final static ConcurrentMap<String, WorldRegister> worlds = new ConcurrentHashMap<>(16);
-    private final static ConcurrentMap<String, ReentrantLock> worldsLock = new ConcurrentReferenceHashMap<>(16, ConcurrentReferenceHashMap.ReferenceType.WEAK);
+    private final static SingleFlight<String, WorldRegister> worldLoader = new SingleFlight<>();
+    private final static Set<String> indexedKeys = ConcurrentHashMap.newKeySet();
     private static boolean debug;
 
-    private static ReentrantLock getWorldLock(String world) {
-        if (worldsLock.containsKey(world))
-            return worldsLock.get(world);
-        ReentrantLock lock = new ReentrantLock();
-        worldsLock.put(world, lock);
-        return lock;
-    }
-
     public static boolean isDebugging() {
         return debug;
     }
@@ -52,6 +60,120 @@ public class TagRegister {
         return getOrLoadWorld(block.getWorld()).getStoredBlock(block);
     }
 
+    /**
+     * Gets the stored tag of an entity only if it is already in memory.
+     * Never loads a world, region or chunk, so it is safe to call from the main thread.
+     *
+     * @param entity the entity
+     * @return the tag, or empty if it is not stored or not loaded
+     */
+    public static Optional<CompoundTag> getStoredIfLoaded(Entity entity) {
+        WorldRegister worldRegister = worlds.get(entity.getWorld().getName());
+        if (worldRegister == null)
+            return Optional.empty();
+        return worldRegister.getStoredEntityIfLoaded(entity);
+    }
+
+    /**
+     * Gets the stored tag of a block only if its chunk is already in memory.
+     * Never loads a world, region or chunk, so it is safe to call from the main thread.
+     *
+     * @param block the block
+     * @return the tag, or empty if it is not stored or not loaded
+     */
+    public static Optional<CompoundTag> getStoredIfLoaded(Block block) {
+        WorldRegister worldRegister = worlds.get(block.getWorld().getName());
+        if (worldRegister == null)
+            return Optional.empty();
+        return worldRegister.getStoredBlockIfLoaded(block);
+    }
+
+    /**
+     * Gets the stored tag of an entity, loading its chunk on the tag worker if needed.
+     * The returned future always completes on the main thread.
+     *
+     * @param entity the entity
+     * @return a future of the tag
+     */
+    public static CompletableFuture<Optional<CompoundTag>> getStoredAsync(Entity entity) {
+        World world = entity.getWorld();
+        WorldRegister worldRegister = worlds.get(world.getName());
+        Location location = entity.getLocation();
+        if (worldRegister != null && worldRegister.getChunkIfLoaded(location.getBlockX() >> 4, location.getBlockZ() >> 4).isPresent())
+            return completedOnMainThread(worldRegister.getStoredEntityIfLoaded(entity));
+        Chunk chunk = location.getChunk();
+        return supplyOnMainThread(() -> getOrLoadWorld(world).getOrLoadRegion(chunk).getOrLoadChunk(chunk).getStoredEntity(entity.getUniqueId()));
+    }
+
+    /**
+     * Gets the stored tag of a block, loading its chunk on the tag worker if needed.
+     * The returned future always completes on the main thread.
+     *
+     * @param block the block
+     * @return a future of the tag
+     */
+    public static CompletableFuture<Optional<CompoundTag>> getStoredAsync(Block block) {
+        World world = block.getWorld();
+        WorldRegister worldRegister = worlds.get(world.getName());
+        if (worldRegister != null) {
+            Optional<ChunkRegister> optionalChunkRegister = worldRegister.getChunkIfLoaded(block.getX() >> 4, block.getZ() >> 4);
+            if (optionalChunkRegister.isPresent())
+                return completedOnMainThread(optionalChunkRegister.get().getStoredBlock(block));
+        }
+        Chunk chunk = block.getChunk();
+        return supplyOnMainThread(() -> getOrLoadWorld(world).getOrLoadRegion(chunk).getOrLoadChunk(chunk).getStoredBlock(block));
+    }
+
+    /**
+     * Gets or creates the tag of an entity, loading its chunk on the tag worker if needed.
+     * The returned future always completes on the main thread.
+     *
+     * @param entity the entity
+     * @return a future of the tag
+     */
+    public static CompletableFuture<CompoundTag> getOrCreateEntityAsync(Entity entity) {
+        World world = entity.getWorld();
+        Chunk chunk = entity.getLocation().getChunk();
+        return supplyOnMainThread(() -> getOrLoadWorld(world).getOrLoadRegion(chunk).getOrLoadChunk(chunk).getOrCreateEntity(entity.getUniqueId()));
+    }
+
+    /**
+     * Gets or creates the tag of a block, loading its chunk on the tag worker if needed.
+     * The returned future always completes on the main thread.
+     *
+     * @param block the block
+     * @return a future of the tag
+     */
+    public static CompletableFuture<CompoundTag> getOrCreateBlockAsync(Block block) {
+        World world = block.getWorld();
+        WorldRegister worldRegister = worlds.get(world.getName());
+        if (worldRegister != null) {
+            Optional<ChunkRegister> optionalChunkRegister = worldRegister.getChunkIfLoaded(block.getX() >> 4, block.getZ() >> 4);
+            if (optionalChunkRegister.isPresent())
+                return completedOnMainThread(optionalChunkRegister.get().getOrCreateBlock(block));
+        }
+        Chunk chunk = block.getChunk();
+        return supplyOnMainThread(() -> getOrLoadWorld(world).getOrLoadRegion(chunk).getOrLoadChunk(chunk).getOrCreateBlock(block));
+    }
+
+    /**
+     * @return a future of a value already known, completed right away on the main thread, otherwise on the next drain
+     */
+    private static <T> CompletableFuture<T> completedOnMainThread(T value) {
+        if (Bukkit.isPrimaryThread())
+            return CompletableFuture.completedFuture(value);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        getPlugin().getCompletionDispatcher().deliver(future, value, null); // dependent stages must not run on the caller's thread
+        return future;
+    }
+
+    private static <T> CompletableFuture<T> supplyOnMainThread(Supplier<T> supplier) {
+        TagPlugin plugin = getPlugin();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        plugin.getProcess().supply(supplier).whenComplete((value, throwable) -> plugin.getCompletionDispatcher().deliver(future, value, throwable));
+        return future;
+    }
+
     public static CompoundTag getStoredUnsafe(Entity entity) {
         return getOrLoadWorld(entity.getWorld()).getStoredEntityUnsafe(entity);
     }
@@ -60,6 +182,46 @@ public class TagRegister {
         return getOrLoadWorld(block.getWorld()).getStoredBlockUnsafe(block);
     }
 
+    /**
+     * Visits every tagged block of a world whose center is inside {@code box}, see {@link WorldRegister#forEachTaggedBlock(BoundingBox, TaggedBlockConsumer)}.
+     *
+     * @param world    the world
+     * @param box      the box, in block coordinates
+     * @param consumer gets each tagged block
+     */
+    public static void forEachTaggedBlock(World world, BoundingBox box, TaggedBlockConsumer consumer) {
+        getOrLoadWorld(world).forEachTaggedBlock(box, consumer);
+    }
+
+    /**
+     * Declares a secondary index on a tag key, for every world. Indexes missing on disk are built in the background.
+     *
+     * @param key the tag key
+     */
+    public static void declareIndex(String key) {
+        if (!indexedKeys.add(key))
+            return;
+        for (WorldRegister worldRegister : worlds.values())
+            worldRegister.openIndex(key);
+    }
+
+    public static Set<String> getIndexedKeys() {
+        return Collections.unmodifiableSet(indexedKeys);
+    }
+
+    /**
+     * Gets the index of a key in a world, see {@link #declareIndex(String)}.
+     *
+     * @param world the world
+     * @param key   the tag key
+     * @return the index, or empty if the key is not indexed
+     */
+    public static Optional<TagIndex> getIndex(World world, String key) {
+        if (!indexedKeys.contains(key))
+            return Optional.empty();
+        return Optional.of(getOrLoadWorld(world).openIndex(key));
+    }
+
     public static CompoundTag create(Entity entity) {
         return getOrLoadWorld(entity.getWorld()).createStoredEntity(entity);
     }
@@ -77,85 +239,35 @@ public class TagRegister {
     }
 
     public static boolean isWorldLoaded(World world) {
-        String worldName = world.getName();
-        ReentrantLock lock = getWorldLock(worldName);
-        lock.lock();
-        try {
-            return worlds.containsKey(worldName);
-        } finally {
-            lock.unlock();
-        }
+        return worlds.containsKey(world.getName());
     }
 
     public static WorldRegister loadWorld(World world) {
-        String worldName = world.getName();
-        ReentrantLock lock = getWorldLock(worldName);
-        lock.lock();
-        try {
-            WorldRegister wr = new WorldRegister(world);
-            worlds.put(worldName, wr);
-            return wr;
-        } finally {
-            lock.unlock();
-        }
+        WorldRegister wr = new WorldRegister(world);
+        worlds.put(world.getName(), wr);
+        return wr;
     }
 
     public static WorldRegister unloadWorld(World world) {
-        String worldName = world.getName();
-        ReentrantLock lock = getWorldLock(worldName);
-        lock.lock();
-        try {
-            return worlds.remove(worldName);
-        } finally {
-            lock.unlock();
-        }
+        return worlds.remove(world.getName());
     }
 
     public static Optional<WorldRegister> getWorld(World world) {
-        String worldName = world.getName();
-        ReentrantLock lock = getWorldLock(worldName);
-        lock.lock();
-        try {
-            return Optional.ofNullable(worlds.get(worldName));
-        } finally {
-            lock.unlock();
-        }
+        return Optional.ofNullable(worlds.get(world.getName()));
     }
 
     public static WorldRegister getWorldUnsafe(World world) {
-        String worldName = world.getName();
-        ReentrantLock lock = getWorldLock(worldName);
-        lock.lock();
-        try {
-            return worlds.get(worldName);
-        } finally {
-            lock.unlock();
-        }
+        return worlds.get(world.getName());
     }
 
     public static WorldRegister getOrLoadWorld(World world) {
-        String worldName = world.getName();
-        ReentrantLock lock = getWorldLock(worldName);
-        lock.lock();
-        try {
-            if (worlds.containsKey(world.getName()))
-                return worlds.get(world.getName());
-            WorldRegister wr = new WorldRegister(world);
-            worlds.put(world.getName(), wr);
-            return wr;
-        } finally {
-            lock.unlock();
-        }
+        return worldLoader.getOrLoad(worlds, world.getName(), worldName -> new WorldRegister(world));
     }
 
     public static void tryUnloading() {
         for (Map.Entry<String, WorldRegister> entry : worlds.entrySet()) {
-            ReentrantLock lock = getWorldLock(entry.getKey());
-            lock.lock();
-            try {
+            synchronized (entry.getValue()) {
                 entry.getValue().tryUnloading();
-            } finally {
-                lock.unlock();
             }
         }
         /*for (WorldRegister world : worlds.values()) {
@@ -163,20 +275,59 @@ public class TagRegister {
         }*/
     }
 
+    /**
+     * Saves every world, the chunks are captured here on the main thread and written on the save pool.
+     */
     public static void saveAll() {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(worlds.size());
         for (Map.Entry<String, WorldRegister> entry : worlds.entrySet()) {
-            ReentrantLock lock = getWorldLock(entry.getKey());
-            lock.lock();
+            Map<RegionRegister, Map<ChunkRegister, ChunkCompoundTag>> snapshots = entry.getValue().captureRegions();
+            tasks.add(getPlugin().getSavePool().submit(() -> {
+                synchronized (entry.getValue()) {
+                    entry.getValue().saveRegions(snapshots);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
             try {
-                entry.getValue().saveRegions();
-            } finally {
-                lock.unlock();
+                task.join();
+            } catch (Exception ex) {
+                ex.printStackTrace();
             }
         }
         /*for (WorldRegister world : worlds.values())
             world.saveRegions();*/
     }
 
+    /**
+     * Saves and closes every world in parallel, journaling what misses the deadline.
+     *
+     * @param deadlineNanos the {@link System#nanoTime()} to stop writing at
+     */
+    public static void shutdown(long deadlineNanos) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(worlds.size());
+        for (Map.Entry<String, WorldRegister> entry : worlds.entrySet()) {
+            entry.getValue().claimOrphans(); // still on the main thread, so entities moved out of unloaded chunks are saved
+            tasks.add(getPlugin().getSavePool().submit(() -> {
+                synchronized (entry.getValue()) {
+                    entry.getValue().shutdown(deadlineNanos);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        worlds.clear();
+    }
+
+    public static Collection<WorldRegister> getWorlds() {
+        return Collections.unmodifiableCollection(worlds.values());
+    }
+
     public static Logger getLogger() {
         return Bukkit.getLogger();
     }
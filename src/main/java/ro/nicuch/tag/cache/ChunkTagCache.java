@@ -0,0 +1,230 @@
+package ro.nicuch.tag.cache;
+
+import ro.nicuch.tag.nbt.ChunkCompoundTag;
+import ro.nicuch.tag.nbt.TagSizes;
+import ro.nicuch.tag.wrapper.ChunkUUID;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps decoded tags of recently unloaded chunks that are already on disk,
+ * so a chunk loaded again soon after does not have to be read and decompressed again.
+ * <p>
+ * Eviction is a second-chance clock weighted by the estimated size of each chunk:
+ * chunks that were already reloaded once survive one more pass of the clock hand.
+ */
+public class ChunkTagCache {
+    private static final int MAX_HOT_KEYS = 1 << 16;
+
+    private final ConcurrentMap<Key, CachedChunk> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Key, Boolean> hot = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<CachedChunk> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicInteger clockSize = new AtomicInteger();
+    private final Object evictLock = new Object();
+    private final long maxBytes;
+
+    /**
+     * @param maxBytes the estimated memory the cached chunks may use, {@code 0} disables the cache
+     */
+    public ChunkTagCache(long maxBytes) {
+        this.maxBytes = Math.max(0L, maxBytes);
+    }
+
+    public boolean isEnabled() {
+        return this.maxBytes > 0;
+    }
+
+    /**
+     * Caches the tag of a chunk that was just written to disk. The tag must match what is on disk.
+     *
+     * @param world the world name
+     * @param uuid  the chunk
+     * @param tag   the chunk tag, it must not be used by the caller anymore
+     */
+    public void put(String world, ChunkUUID uuid, ChunkCompoundTag tag) {
+        if (!this.isEnabled())
+            return;
+        long bytes = TagSizes.estimate(tag);
+        if (bytes > this.maxBytes)
+            return;
+        Key key = new Key(world, uuid);
+        CachedChunk cached = new CachedChunk(key, tag, bytes);
+        cached.referenced = this.hot.remove(key) != null; // it was reloaded before, give it a second chance
+        CachedChunk previous = this.entries.put(key, cached);
+        if (previous != null)
+            this.release(previous);
+        this.residentBytes.addAndGet(bytes);
+        this.clock.offer(cached);
+        if (this.clockSize.incrementAndGet() > 2 * this.entries.size() + 1024)
+            this.compactClock();
+        if (this.residentBytes.get() > this.maxBytes)
+            this.evict();
+    }
+
+    /**
+     * Takes the cached tag of a chunk, the caller owns it from now on.
+     *
+     * @param world the world name
+     * @param uuid  the chunk
+     * @return the cached tag, or {@code null} on a miss
+     */
+    public ChunkCompoundTag take(String world, ChunkUUID uuid) {
+        if (!this.isEnabled())
+            return null;
+        Key key = new Key(world, uuid);
+        CachedChunk cached = this.entries.remove(key);
+        if (cached == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.release(cached);
+        this.hits.incrementAndGet();
+        if (this.hot.size() >= MAX_HOT_KEYS)
+            this.hot.clear();
+        this.hot.put(key, Boolean.TRUE);
+        return cached.tag;
+    }
+
+    /**
+     * Gets the cached tag of a chunk without taking it or counting a hit.
+     *
+     * @param world the world name
+     * @param uuid  the chunk
+     * @return a snapshot of the cached tag, or {@code null}
+     */
+    public ChunkCompoundTag peek(String world, ChunkUUID uuid) {
+        if (!this.isEnabled())
+            return null;
+        CachedChunk cached = this.entries.get(new Key(world, uuid));
+        if (cached == null)
+            return null;
+        synchronized (cached) { // not released to a loading chunk while the snapshot is taken
+            return cached.released ? null : cached.tag.snapshot();
+        }
+    }
+
+    /**
+     * Drops every cached chunk of a world.
+     *
+     * @param world the world name
+     */
+    public void invalidateWorld(String world) {
+        this.entries.values().removeIf(cached -> {
+            if (!cached.key.world.equals(world))
+                return false;
+            this.release(cached);
+            return true;
+        });
+    }
+
+    public long getResidentBytes() {
+        return this.residentBytes.get();
+    }
+
+    public int getSize() {
+        return this.entries.size();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + this.misses.get();
+        return total == 0 ? 0D : (double) hits / total;
+    }
+
+    private void release(CachedChunk cached) {
+        synchronized (cached) {
+            if (cached.released)
+                return;
+            cached.released = true;
+        }
+        this.residentBytes.addAndGet(-cached.bytes);
+    }
+
+    private void compactClock() {
+        synchronized (this.evictLock) {
+            this.clock.removeIf(cached -> cached.released); // taken entries linger until the hand reaches them
+            this.clockSize.set(this.clock.size());
+        }
+    }
+
+    private void evict() {
+        synchronized (this.evictLock) {
+            CachedChunk cached;
+            while (this.residentBytes.get() > this.maxBytes && (cached = this.clock.poll()) != null) {
+                this.clockSize.decrementAndGet();
+                if (cached.released)
+                    continue; // already taken or replaced
+                if (cached.referenced) {
+                    cached.referenced = false;
+                    this.clock.offer(cached);
+                    this.clockSize.incrementAndGet();
+                    continue;
+                }
+                if (this.entries.remove(cached.key, cached)) {
+                    this.release(cached);
+                    this.evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String world;
+        private final ChunkUUID uuid;
+
+        private Key(String world, ChunkUUID uuid) {
+            this.world = world;
+            this.uuid = uuid;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key that = (Key) obj;
+            return this.uuid.equals(that.uuid) && this.world.equals(that.world);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.world, this.uuid);
+        }
+    }
+
+    private static final class CachedChunk {
+        private final Key key;
+        private final ChunkCompoundTag tag;
+        private final long bytes;
+        private volatile boolean referenced;
+        private volatile boolean released;
+
+        private CachedChunk(Key key, ChunkCompoundTag tag, long bytes) {
+            this.key = key;
+            this.tag = tag;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package ro.nicuch.tag.cache;
+
+import ro.nicuch.tag.TagRegister;
+import ro.nicuch.tag.nbt.ChunkCompoundTag;
+import ro.nicuch.tag.nbt.TagSizes;
+import ro.nicuch.tag.register.RegionRegister;
+import ro.nicuch.tag.wrapper.ChunkUUID;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the tags of unloaded chunks until a background flusher writes them to their region files.
+ * <p>
+ * A chunk that is loaded again while still pending is served straight from this buffer,
+ * so readers always see their last write even if it did not reach the disk yet.
+ */
+public class ChunkWriteBehindBuffer {
+    private static final Comparator<PendingChunk> WRITE_ORDER = Comparator
+            .comparing((PendingChunk pending) -> pending.world)
+            .thenComparingInt(pending -> pending.region.getX())
+            .thenComparingInt(pending -> pending.region.getZ())
+            .thenComparingInt(pending -> (pending.uuid.getZ() & 31) * 32 + (pending.uuid.getX() & 31));
+
+    private final ConcurrentMap<String, ConcurrentMap<ChunkUUID, PendingChunk>> worlds = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong flushedChunks = new AtomicLong();
+    private final AtomicLong reloadedChunks = new AtomicLong();
+    private final ChunkTagCache cache;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+    private volatile boolean flushScheduled;
+
+    /**
+     * @param maxBytes      the estimated memory the pending chunks may use before being flushed early,
+     *                      {@code 0} writes every chunk through immediately
+     * @param maxAgeMillis  how long a chunk may stay pending
+     * @param cache         where chunks go once written
+     */
+    public ChunkWriteBehindBuffer(long maxBytes, long maxAgeMillis, ChunkTagCache cache) {
+        this.cache = cache;
+        this.maxBytes = Math.max(0L, maxBytes);
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, maxAgeMillis));
+        long period = Math.max(50L, Math.min(1000L, maxAgeMillis / 4));
+        this.executorService.scheduleWithFixedDelay(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return this.maxBytes > 0 && this.maxAgeNanos > 0;
+    }
+
+    /**
+     * Queues the tag of an unloaded chunk to be written later.
+     *
+     * @param region the region the chunk belongs to
+     * @param uuid   the chunk
+     * @param tag    the chunk tag, it must not be used by the caller anymore
+     */
+    public void put(RegionRegister region, ChunkUUID uuid, ChunkCompoundTag tag) {
+        String world = region.getWorldRegister().getWorldInstance().getName();
+        if (!this.isEnabled() || this.executorService.isShutdown()) {
+            region.writeChunkCompound(uuid, tag);
+            if (!tag.isEmpty(false))
+                this.cache.put(world, uuid, tag);
+            return;
+        }
+        PendingChunk pending = new PendingChunk(world, region, uuid, tag, TagSizes.estimate(tag));
+        PendingChunk previous = this.worlds.computeIfAbsent(world, key -> new ConcurrentHashMap<>()).put(uuid, pending);
+        if (previous != null)
+            this.pendingBytes.addAndGet(-previous.bytes);
+        if (this.pendingBytes.addAndGet(pending.bytes) > this.maxBytes && !this.flushScheduled) {
+            this.flushScheduled = true;
+            this.executorService.execute(this::flushExpired);
+        }
+    }
+
+    /**
+     * Takes back the tag of a pending chunk, the chunk is then owned by the caller again
+     * and will not be written by the flusher.
+     *
+     * @param world the world name
+     * @param uuid  the chunk
+     * @return the pending tag, or {@code null} if the chunk is not pending
+     */
+    public ChunkCompoundTag take(String world, ChunkUUID uuid) {
+        ConcurrentMap<ChunkUUID, PendingChunk> chunks = this.worlds.get(world);
+        if (chunks == null)
+            return null;
+        PendingChunk pending = chunks.remove(uuid);
+        if (pending == null)
+            return null;
+        synchronized (pending) { // wait for a write in progress
+            pending.taken = true;
+        }
+        if (pending.written)
+            this.cache.take(world, uuid); // the write cached it meanwhile, it must not stay there once owned again
+        this.pendingBytes.addAndGet(-pending.bytes);
+        this.reloadedChunks.incrementAndGet();
+        return pending.tag;
+    }
+
+    /**
+     * Gets the tag of a pending chunk without taking it.
+     *
+     * @param world the world name
+     * @param uuid  the chunk
+     * @return a snapshot of the pending tag, or {@code null} if the chunk is not pending
+     */
+    public ChunkCompoundTag peek(String world, ChunkUUID uuid) {
+        ConcurrentMap<ChunkUUID, PendingChunk> chunks = this.worlds.get(world);
+        if (chunks == null)
+            return null;
+        PendingChunk pending = chunks.get(uuid);
+        if (pending == null)
+            return null;
+        synchronized (pending) { // not taken back by a loading chunk while the snapshot is taken
+            return pending.taken ? null : pending.tag.snapshot();
+        }
+    }
+
+    public boolean isPending(String world, ChunkUUID uuid) {
+        ConcurrentMap<ChunkUUID, PendingChunk> chunks = this.worlds.get(world);
+        return chunks != null && chunks.containsKey(uuid);
+    }
+
+    /**
+     * Writes every pending chunk of a region, must be called before its region file is closed.
+     *
+     * @param region the region
+     */
+    public void flushRegion(RegionRegister region) {
+        ConcurrentMap<ChunkUUID, PendingChunk> chunks = this.worlds.get(region.getWorldRegister().getWorldInstance().getName());
+        if (chunks == null)
+            return;
+        List<PendingChunk> batch = new ArrayList<>();
+        for (PendingChunk pending : chunks.values())
+            if (pending.region == region)
+                batch.add(pending);
+        this.write(batch);
+    }
+
+    public void flushWorld(String world) {
+        ConcurrentMap<ChunkUUID, PendingChunk> chunks = this.worlds.get(world);
+        if (chunks != null)
+            this.write(new ArrayList<>(chunks.values()));
+    }
+
+    public void flushAll() {
+        List<PendingChunk> batch = new ArrayList<>();
+        for (ConcurrentMap<ChunkUUID, PendingChunk> chunks : this.worlds.values())
+            batch.addAll(chunks.values());
+        this.write(batch);
+    }
+
+    /**
+     * Takes back every pending chunk of a region, the caller is then responsible for writing them.
+     *
+     * @param region the region
+     * @return the pending tags of the region
+     */
+    public Map<ChunkUUID, ChunkCompoundTag> takeRegion(RegionRegister region) {
+        Map<ChunkUUID, ChunkCompoundTag> taken = new HashMap<>();
+        String world = region.getWorldRegister().getWorldInstance().getName();
+        ConcurrentMap<ChunkUUID, PendingChunk> chunks = this.worlds.get(world);
+        if (chunks == null)
+            return taken;
+        for (PendingChunk pending : chunks.values()) {
+            if (pending.region != region || !chunks.remove(pending.uuid, pending))
+                continue;
+            synchronized (pending) { // wait for a write in progress
+                pending.taken = true;
+            }
+            this.pendingBytes.addAndGet(-pending.bytes);
+            if (!pending.written)
+                taken.put(pending.uuid, pending.tag);
+        }
+        return taken;
+    }
+
+    /**
+     * Stops the background flusher, later chunks are written through.
+     */
+    public void stop() {
+        this.executorService.shutdown();
+        try {
+            this.executorService.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the background flusher and flushes everything.
+     */
+    public void shutdown() {
+        this.stop();
+        this.flushAll();
+    }
+
+    public long getPendingBytes() {
+        return this.pendingBytes.get();
+    }
+
+    public int getPendingChunks() {
+        int count = 0;
+        for (ConcurrentMap<ChunkUUID, PendingChunk> chunks : this.worlds.values())
+            count += chunks.size();
+        return count;
+    }
+
+    public long getFlushedChunks() {
+        return this.flushedChunks.get();
+    }
+
+    /**
+     * @return how many chunks were loaded again from the buffer instead of the disk
+     */
+    public long getReloadedChunks() {
+        return this.reloadedChunks.get();
+    }
+
+    private void flushExpired() {
+        this.flushScheduled = false;
+        try {
+            List<PendingChunk> all = new ArrayList<>();
+            for (ConcurrentMap<ChunkUUID, PendingChunk> chunks : this.worlds.values())
+                all.addAll(chunks.values());
+            if (all.isEmpty())
+                return;
+            all.sort(Comparator.comparingLong(pending -> pending.queuedAt)); // oldest first
+            long now = System.nanoTime();
+            long overBudget = this.pendingBytes.get() - this.maxBytes;
+            List<PendingChunk> batch = new ArrayList<>();
+            for (PendingChunk pending : all) {
+                if (now - pending.queuedAt < this.maxAgeNanos && overBudget <= 0)
+                    break;
+                batch.add(pending);
+                overBudget -= pending.bytes;
+            }
+            this.write(batch);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private void write(List<PendingChunk> batch) {
+        if (batch.isEmpty())
+            return;
+        batch.sort(WRITE_ORDER); // sequential writes per region file
+        for (PendingChunk pending : batch) {
+            synchronized (pending) {
+                if (pending.taken || pending.written)
+                    continue;
+                try {
+                    pending.region.writeChunkCompound(pending.uuid, pending.tag);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    System.out.println("(Writing) Couldn't flush chunk " + pending.uuid + " of " + pending.region + "!!");
+                }
+                pending.written = true;
+                if (!pending.tag.isEmpty(false))
+                    this.cache.put(pending.world, pending.uuid, pending.tag); // clean now
+                ConcurrentMap<ChunkUUID, PendingChunk> chunks = this.worlds.get(pending.world);
+                if (chunks != null && chunks.remove(pending.uuid, pending))
+                    this.pendingBytes.addAndGet(-pending.bytes);
+                this.flushedChunks.incrementAndGet();
+            }
+        }
+        if (TagRegister.isDebugging())
+            TagRegister.getLogger().info("(Write-behind) Flushed " + batch.size() + " chunks, " + this.pendingBytes.get() + " bytes still pending.");
+    }
+
+    private static class PendingChunk {
+        private final String world;
+        private final RegionRegister region;
+        private final ChunkUUID uuid;
+        private final ChunkCompoundTag tag;
+        private final long bytes;
+        private final long queuedAt = System.nanoTime();
+        private boolean taken;
+        private boolean written;
+
+        private PendingChunk(String world, RegionRegister region, ChunkUUID uuid, ChunkCompoundTag tag, long bytes) {
+            this.world = world;
+            this.region = region;
+            this.uuid = uuid;
+            this.tag = tag;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ro.nicuch.tag.index;
+
+import ro.nicuch.tag.nbt.Tag;
+import ro.nicuch.tag.wrapper.BlockUUID;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Where a value of an indexed key was found, either a block or an entity.
+ */
+public final class IndexEntry {
+    private final int chunkX;
+    private final int chunkZ;
+    private final int blockKey;
+    private final UUID entity;
+    private final Tag value;
+
+    IndexEntry(int chunkX, int chunkZ, int blockKey, UUID entity, Tag value) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.blockKey = blockKey;
+        this.entity = entity;
+        this.value = value;
+    }
+
+    public boolean isBlock() {
+        return this.entity == null;
+    }
+
+    public int getChunkX() {
+        return this.chunkX;
+    }
+
+    public int getChunkZ() {
+        return this.chunkZ;
+    }
+
+    /**
+     * @return the block x, only for blocks
+     */
+    public int getX() {
+        return (this.chunkX << 4) + BlockUUID.unpackX(this.blockKey);
+    }
+
+    /**
+     * @return the block y, only for blocks
+     */
+    public int getY() {
+        return BlockUUID.unpackY(this.blockKey);
+    }
+
+    /**
+     * @return the block z, only for blocks
+     */
+    public int getZ() {
+        return (this.chunkZ << 4) + BlockUUID.unpackZ(this.blockKey);
+    }
+
+    /**
+     * @return the packed block key, see {@link BlockUUID#pack(int, int, int)}, only for blocks
+     */
+    public int getBlockKey() {
+        return this.blockKey;
+    }
+
+    /**
+     * @return the entity, or {@code null} for blocks
+     */
+    public UUID getEntity() {
+        return this.entity;
+    }
+
+    /**
+     * @return the indexed value, it must not be changed
+     */
+    public Tag getValue() {
+        return this.value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof IndexEntry))
+            return false;
+        IndexEntry that = (IndexEntry) obj;
+        return this.chunkX == that.chunkX && this.chunkZ == that.chunkZ && this.blockKey == that.blockKey && Objects.equals(this.entity, that.entity);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.chunkX, this.chunkZ, this.blockKey, this.entity);
+    }
+
+    @Override
+    public String toString() {
+        return "IndexEntry{" +
+                (this.entity == null ? "x: " + this.getX() + ", y: " + this.getY() + ", z: " + this.getZ() : "e: " + this.entity) +
+                ", v: " + this.value +
+                "}";
+    }
+}
@@ -0,0 +1,128 @@
+package ro.nicuch.tag.index;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Which chunks of a region have tags, plus an optional bloom filter over the keys of their tagged blocks.
+ * <p>
+ * Bits are only cleared for chunks written empty, the bloom filter is never cleared.
+ * Both may answer "maybe" for something that is gone, never "no" for something that exists.
+ */
+public final class RegionPresence {
+    private static final int HASHES = 3;
+
+    private final long key;
+    private final AtomicLongArray chunks = new AtomicLongArray(1024 / 64);
+    private final AtomicLongArray bloom; // null when disabled
+    private final int bloomMask;
+
+    /**
+     * @param key       the region, see {@link ro.nicuch.tag.wrapper.RegionUUID#pack(int, int)}
+     * @param bloomBits the size of the bloom filter, rounded up to a power of two, {@code 0} disables it
+     */
+    public RegionPresence(long key, int bloomBits) {
+        this.key = key;
+        if (bloomBits > 0) {
+            int bits = HashCommon.nextPowerOfTwo(Math.max(64, bloomBits));
+            this.bloom = new AtomicLongArray(bits / 64);
+            this.bloomMask = bits - 1;
+        } else {
+            this.bloom = null;
+            this.bloomMask = 0;
+        }
+    }
+
+    public long getKey() {
+        return this.key;
+    }
+
+    private static int chunkIndex(int chunkX, int chunkZ) {
+        return ((chunkZ & 31) << 5) | (chunkX & 31);
+    }
+
+    public boolean mightHaveChunk(int chunkX, int chunkZ) {
+        int index = chunkIndex(chunkX, chunkZ);
+        return (this.chunks.get(index >>> 6) & (1L << index)) != 0L;
+    }
+
+    public void setChunk(int chunkX, int chunkZ, boolean present) {
+        int index = chunkIndex(chunkX, chunkZ);
+        long bit = 1L << index;
+        long word;
+        do {
+            word = this.chunks.get(index >>> 6);
+            if (((word & bit) != 0L) == present)
+                return;
+        } while (!this.chunks.compareAndSet(index >>> 6, word, word ^ bit));
+    }
+
+    /**
+     * @param blockKey the block, see {@link ro.nicuch.tag.wrapper.BlockUUID#pack(int, int, int)}
+     */
+    public void addBlock(int chunkX, int chunkZ, int blockKey) {
+        if (this.bloom == null)
+            return;
+        long hash = HashCommon.mix(((long) chunkIndex(chunkX, chunkZ) << 32) | (blockKey & 0xFFFFFFFFL));
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & this.bloomMask;
+            long mask = 1L << bit;
+            long word;
+            do {
+                word = this.bloom.get(bit >>> 6);
+                if ((word & mask) != 0L)
+                    break;
+            } while (!this.bloom.compareAndSet(bit >>> 6, word, word | mask));
+        }
+    }
+
+    /**
+     * @return {@code false} only if the block is surely not tagged
+     */
+    public boolean mightHaveBlock(int chunkX, int chunkZ, int blockKey) {
+        if (!this.mightHaveChunk(chunkX, chunkZ))
+            return false;
+        if (this.bloom == null)
+            return true;
+        long hash = HashCommon.mix(((long) chunkIndex(chunkX, chunkZ) << 32) | (blockKey & 0xFFFFFFFFL));
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & this.bloomMask;
+            if ((this.bloom.get(bit >>> 6) & (1L << bit)) == 0L)
+                return false;
+        }
+        return true;
+    }
+
+    long[] getChunkBits() {
+        return toArray(this.chunks);
+    }
+
+    long[] getBloomBits() {
+        return this.bloom == null ? new long[0] : toArray(this.bloom);
+    }
+
+    /**
+     * Adds bits kept by the last run, only if the bloom filter has the same size.
+     */
+    void merge(long[] chunkBits, long[] bloomBits) {
+        for (int i = 0; i < chunkBits.length && i < this.chunks.length(); i++)
+            this.chunks.accumulateAndGet(i, chunkBits[i], (a, b) -> a | b);
+        if (this.bloom != null && bloomBits.length == this.bloom.length())
+            for (int i = 0; i < bloomBits.length; i++)
+                this.bloom.accumulateAndGet(i, bloomBits[i], (a, b) -> a | b);
+    }
+
+    boolean isBloomCompatible(long[] bloomBits) {
+        return this.bloom == null || bloomBits.length == this.bloom.length();
+    }
+
+    private static long[] toArray(AtomicLongArray array) {
+        long[] copy = new long[array.length()];
+        for (int i = 0; i < copy.length; i++)
+            copy[i] = array.get(i);
+        return copy;
+    }
+}
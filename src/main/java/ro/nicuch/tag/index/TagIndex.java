@@ -0,0 +1,286 @@
+package ro.nicuch.tag.index;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import ro.nicuch.tag.nbt.*;
+import ro.nicuch.tag.wrapper.ChunkUUID;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A secondary index of one tag key in one world, from the values of the key to the blocks and entities holding them.
+ * <p>
+ * The index follows what is written to the region files: a chunk is indexed again when it is written,
+ * and only its block sections that changed since the last write are scanned.
+ */
+public class TagIndex {
+    private static final List<IndexEntry> NONE = Collections.emptyList();
+
+    private final String key;
+    private final File file;
+    private final Map<Tag, Set<IndexEntry>> byValue = new HashMap<>();
+    private final Long2ObjectOpenHashMap<ChunkEntries> byChunk = new Long2ObjectOpenHashMap<>();
+    private volatile boolean ready;
+    private boolean dirty;
+
+    /**
+     * @param key  the indexed key
+     * @param file where the index is kept between restarts
+     */
+    public TagIndex(String key, File file) {
+        this.key = key;
+        this.file = file;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return {@code false} while the index is being rebuilt, lookups may then miss entries
+     */
+    public boolean isReady() {
+        return this.ready;
+    }
+
+    /**
+     * Marks a rebuild as done.
+     */
+    public void setReady() {
+        this.ready = true;
+    }
+
+    /**
+     * Finds the blocks and entities whose tag has the indexed key set to {@code value}.
+     *
+     * @param value the value
+     * @return the entries, a copy
+     */
+    public synchronized List<IndexEntry> lookup(Tag value) {
+        Set<IndexEntry> entries = this.byValue.get(value);
+        return entries == null ? NONE : new ArrayList<>(entries);
+    }
+
+    /**
+     * @return every indexed value, a copy
+     */
+    public synchronized Set<Tag> getValues() {
+        return new HashSet<>(this.byValue.keySet());
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Set<IndexEntry> entries : this.byValue.values())
+            size += entries.size();
+        return size;
+    }
+
+    /**
+     * Indexes a chunk that is about to be written.
+     *
+     * @param chunkX   the chunk x
+     * @param chunkZ   the chunk z
+     * @param chunkTag the chunk tag, or {@code null} if the chunk has no tags anymore
+     */
+    public synchronized void update(int chunkX, int chunkZ, ChunkCompoundTag chunkTag) {
+        this.index(chunkX, chunkZ, chunkTag, false);
+    }
+
+    /**
+     * Indexes a chunk read by a rebuild, unless a write indexed it meanwhile.
+     */
+    public synchronized void rebuild(int chunkX, int chunkZ, ChunkCompoundTag chunkTag) {
+        this.index(chunkX, chunkZ, chunkTag, true);
+    }
+
+    private void index(int chunkX, int chunkZ, ChunkCompoundTag chunkTag, boolean onlyIfAbsent) {
+        long chunkKey = ChunkUUID.pack(chunkX, chunkZ);
+        ChunkEntries entries = this.byChunk.get(chunkKey);
+        if (onlyIfAbsent && entries != null)
+            return;
+        this.dirty = true;
+        if (chunkTag == null) {
+            if (entries != null) {
+                this.byChunk.remove(chunkKey);
+                for (List<IndexEntry> section : entries.sections.values())
+                    this.unindex(section);
+                this.unindex(entries.entities);
+            }
+            return;
+        }
+        if (entries == null)
+            this.byChunk.put(chunkKey, entries = new ChunkEntries());
+        ObjectIterator<Int2ObjectMap.Entry<List<IndexEntry>>> iterator = entries.sections.int2ObjectEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2ObjectMap.Entry<List<IndexEntry>> section = iterator.next();
+            BlockSection blockSection = chunkTag.getSection(section.getIntKey());
+            if (blockSection == null || blockSection.isDirty()) { // also dirty while it holds handed out blocks
+                this.unindex(section.getValue());
+                iterator.remove();
+            }
+        }
+        for (BlockSection blockSection : chunkTag.getSections()) {
+            if (entries.sections.containsKey(blockSection.getY()))
+                continue; // clean, still indexed
+            List<IndexEntry> found = new ArrayList<>(0);
+            chunkTag.forEachBlockReadOnly(blockSection.getY(), (blockKey, tag) -> {
+                Tag value = tag.get(this.key);
+                if (value != null)
+                    found.add(new IndexEntry(chunkX, chunkZ, blockKey, null, value.copy()));
+            });
+            entries.sections.put(blockSection.getY(), found.isEmpty() ? NONE : found);
+            this.index(found);
+        }
+        this.unindex(entries.entities);
+        List<IndexEntry> found = new ArrayList<>(0);
+        chunkTag.forEachEntityReadOnly((uuid, tag) -> {
+            Tag value = tag.get(this.key);
+            if (value != null)
+                found.add(new IndexEntry(chunkX, chunkZ, 0, uuid, value.copy()));
+        });
+        entries.entities = found.isEmpty() ? NONE : found;
+        this.index(found);
+    }
+
+    private void index(List<IndexEntry> entries) {
+        for (IndexEntry entry : entries)
+            this.byValue.computeIfAbsent(entry.getValue(), value -> new HashSet<>()).add(entry);
+    }
+
+    private void unindex(List<IndexEntry> entries) {
+        for (IndexEntry entry : entries) {
+            Set<IndexEntry> sameValue = this.byValue.get(entry.getValue());
+            if (sameValue != null && sameValue.remove(entry) && sameValue.isEmpty())
+                this.byValue.remove(entry.getValue());
+        }
+    }
+
+    /**
+     * Drops everything, before a rebuild.
+     */
+    public synchronized void clear() {
+        this.ready = false;
+        this.byValue.clear();
+        this.byChunk.clear();
+    }
+
+    /**
+     * Reads the index kept by the last run.
+     *
+     * @param newerThan the last change of the region files, an older index is not trusted
+     * @return {@code true} if the index was read, otherwise it must be rebuilt
+     */
+    public synchronized boolean load(long newerThan) {
+        if (!this.file.exists() || this.file.lastModified() < newerThan)
+            return false;
+        try {
+            CompoundTag root = (CompoundTag) TagIO.readCompressedFile(this.file, TagType.COMPOUND);
+            if (!this.key.equals(root.getString("key")))
+                return false;
+            CompoundTag chunks = root.getCompound("chunks");
+            for (String chunkId : chunks.keySet()) {
+                String[] coords = chunkId.split(";");
+                int chunkX = Integer.parseInt(coords[0]);
+                int chunkZ = Integer.parseInt(coords[1]);
+                CompoundTag chunk = chunks.getCompound(chunkId);
+                ChunkEntries entries = new ChunkEntries();
+                for (String sectionId : chunk.keySet()) {
+                    List<IndexEntry> found = new ArrayList<>(0);
+                    for (Tag element : chunk.getList(sectionId)) {
+                        CompoundTag entry = (CompoundTag) element;
+                        if (sectionId.equals("e"))
+                            found.add(new IndexEntry(chunkX, chunkZ, 0, entry.getUniqueId("u"), entry.get("v")));
+                        else
+                            found.add(new IndexEntry(chunkX, chunkZ, entry.getInt("b"), null, entry.get("v")));
+                    }
+                    if (sectionId.equals("e"))
+                        entries.entities = found.isEmpty() ? NONE : found;
+                    else
+                        entries.sections.put(Integer.parseInt(sectionId), found.isEmpty() ? NONE : found);
+                    this.index(found);
+                }
+                this.byChunk.put(ChunkUUID.pack(chunkX, chunkZ), entries);
+            }
+            this.ready = true;
+            return true;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("(Reading) Index " + this.file.getName() + " is corupted, it will be rebuilt.");
+            this.byValue.clear();
+            this.byChunk.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Writes the index if it changed, otherwise only marks the file as up to date. Only a ready index is written.
+     */
+    public void save() {
+        CompoundTag root;
+        synchronized (this) {
+            if (!this.ready)
+                return;
+            if (!this.dirty) {
+                this.file.setLastModified(System.currentTimeMillis()); // still up to date, not older than the regions written since
+                return;
+            }
+            this.dirty = false;
+            root = this.toTag();
+        }
+        try {
+            this.file.getParentFile().mkdirs();
+            TagIO.writeCompressedFile(root, this.file);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            System.out.println("(Writing) Index " + this.file.getName() + " is corupted.");
+        }
+    }
+
+    private CompoundTag toTag() {
+        CompoundTag chunks = new CompoundTag();
+        ObjectIterator<Long2ObjectMap.Entry<ChunkEntries>> iterator = this.byChunk.long2ObjectEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Long2ObjectMap.Entry<ChunkEntries> chunkEntry = iterator.next();
+            CompoundTag chunk = new CompoundTag();
+            ObjectIterator<Int2ObjectMap.Entry<List<IndexEntry>>> sections = chunkEntry.getValue().sections.int2ObjectEntrySet().fastIterator();
+            while (sections.hasNext()) {
+                Int2ObjectMap.Entry<List<IndexEntry>> section = sections.next();
+                ListTag list = new ListTag(TagType.COMPOUND);
+                for (IndexEntry entry : section.getValue()) {
+                    CompoundTag tag = new CompoundTag();
+                    tag.putInt("b", entry.getBlockKey());
+                    tag.put("v", entry.getValue());
+                    list.add(tag);
+                }
+                chunk.put(Integer.toString(section.getIntKey()), list);
+            }
+            ListTag entities = new ListTag(TagType.COMPOUND);
+            for (IndexEntry entry : chunkEntry.getValue().entities) {
+                CompoundTag tag = new CompoundTag();
+                tag.putUniqueId("u", entry.getEntity());
+                tag.put("v", entry.getValue());
+                entities.add(tag);
+            }
+            chunk.put("e", entities);
+            chunks.put(ChunkUUID.unpackX(chunkEntry.getLongKey()) + ";" + ChunkUUID.unpackZ(chunkEntry.getLongKey()), chunk);
+        }
+        CompoundTag root = new CompoundTag();
+        root.putString("key", this.key);
+        root.put("chunks", chunks);
+        return root;
+    }
+
+    /**
+     * The entries of one chunk, block entries per section so clean sections are not scanned again.
+     * Sections without entries keep an empty list.
+     */
+    private static final class ChunkEntries {
+        private final Int2ObjectOpenHashMap<List<IndexEntry>> sections = new Int2ObjectOpenHashMap<>(2);
+        private List<IndexEntry> entities = NONE;
+    }
+}
@@ -0,0 +1,146 @@
+package ro.nicuch.tag.index;
+
+import ro.nicuch.tag.nbt.*;
+import ro.nicuch.tag.nbt.async.ConcurrentLong2ObjectHashMap;
+import ro.nicuch.tag.wrapper.BlockUUID;
+import ro.nicuch.tag.wrapper.RegionUUID;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The {@link RegionPresence} of every region of a world, answers negative block lookups without opening region files.
+ * <p>
+ * Until it is ready, after being read from disk or rebuilt, every lookup answers "maybe".
+ */
+public class WorldPresence {
+    private final ConcurrentLong2ObjectHashMap<RegionPresence> regions = new ConcurrentLong2ObjectHashMap<>(16, 64);
+    private final File file;
+    private final int bloomBits;
+    private volatile boolean ready;
+
+    /**
+     * @param file      where the presence is kept between restarts
+     * @param bloomBits the bloom filter size per region, {@code 0} keeps only the chunk bits
+     */
+    public WorldPresence(File file, int bloomBits) {
+        this.file = file;
+        this.bloomBits = bloomBits;
+    }
+
+    public boolean isReady() {
+        return this.ready;
+    }
+
+    public void setReady() {
+        this.ready = true;
+    }
+
+    private RegionPresence region(int chunkX, int chunkZ) {
+        return this.regions.computeIfAbsent(RegionUUID.packFromChunk(chunkX, chunkZ), key -> new RegionPresence(key, this.bloomBits));
+    }
+
+    /**
+     * @param x the block x
+     * @param y the block y
+     * @param z the block z
+     * @return {@code false} only if the block is surely not tagged
+     */
+    public boolean mightHaveBlock(int x, int y, int z) {
+        if (!this.ready)
+            return true;
+        int chunkX = x >> 4, chunkZ = z >> 4;
+        RegionPresence region = this.regions.get(RegionUUID.packFromChunk(chunkX, chunkZ));
+        return region != null && region.mightHaveBlock(chunkX, chunkZ, BlockUUID.pack(x, y, z));
+    }
+
+    /**
+     * Records a chunk that is about to leave the memory or be written.
+     * Only its dirty sections are looked at, clean ones were recorded when read or last written.
+     *
+     * @param chunkX   the chunk x
+     * @param chunkZ   the chunk z
+     * @param chunkTag the chunk tag, or {@code null} if the chunk has no tags anymore
+     */
+    public void update(int chunkX, int chunkZ, ChunkCompoundTag chunkTag) {
+        if (chunkTag == null || chunkTag.isBlocksEmpty()) { // only blocks are looked up here
+            RegionPresence region = this.regions.get(RegionUUID.packFromChunk(chunkX, chunkZ));
+            if (region != null)
+                region.setChunk(chunkX, chunkZ, false);
+            return;
+        }
+        RegionPresence region = this.region(chunkX, chunkZ);
+        region.setChunk(chunkX, chunkZ, true);
+        for (BlockSection section : chunkTag.getSections())
+            if (section.isDirty()) // also dirty while it holds handed out blocks, a clean one was recorded when read or written
+                chunkTag.forEachBlockReadOnly(section.getY(), (blockKey, tag) -> region.addBlock(chunkX, chunkZ, blockKey));
+    }
+
+    /**
+     * Records every block of a chunk read by a rebuild.
+     */
+    public void rebuild(int chunkX, int chunkZ, ChunkCompoundTag chunkTag) {
+        if (chunkTag.isBlocksEmpty())
+            return;
+        RegionPresence region = this.region(chunkX, chunkZ);
+        region.setChunk(chunkX, chunkZ, true);
+        for (BlockSection section : chunkTag.getSections())
+            chunkTag.forEachBlockReadOnly(section.getY(), (blockKey, tag) -> region.addBlock(chunkX, chunkZ, blockKey));
+    }
+
+    /**
+     * Reads the presence kept by the last run.
+     *
+     * @param newerThan the last change of the region files, an older file is not trusted
+     * @return {@code true} if it was read, otherwise it must be rebuilt
+     */
+    public boolean load(long newerThan) {
+        if (!this.file.exists() || this.file.lastModified() < newerThan)
+            return false;
+        try {
+            CompoundTag root = (CompoundTag) TagIO.readCompressedFile(this.file, TagType.COMPOUND);
+            for (String regionId : root.keySet()) {
+                String[] coords = regionId.split(";");
+                CompoundTag regionTag = root.getCompound(regionId);
+                long key = RegionUUID.pack(Integer.parseInt(coords[0]), Integer.parseInt(coords[1]));
+                RegionPresence region = new RegionPresence(key, this.bloomBits);
+                long[] bloomBits = regionTag.getLongArray("b");
+                if (!region.isBloomCompatible(bloomBits)) {
+                    this.regions.clear();
+                    return false; // the bloom size changed
+                }
+                region.merge(regionTag.getLongArray("c"), bloomBits);
+                this.regions.put(key, region);
+            }
+            this.ready = true;
+            return true;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("(Reading) " + this.file.getName() + " is corupted, it will be rebuilt.");
+            this.regions.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Writes the presence, only once it is ready.
+     */
+    public void save() {
+        if (!this.ready)
+            return;
+        CompoundTag root = new CompoundTag();
+        for (RegionPresence region : this.regions.values()) {
+            long key = region.getKey();
+            CompoundTag regionTag = new CompoundTag();
+            regionTag.putLongArray("c", region.getChunkBits());
+            regionTag.putLongArray("b", region.getBloomBits());
+            root.put(RegionUUID.unpackX(key) + ";" + RegionUUID.unpackZ(key), regionTag);
+        }
+        try {
+            TagIO.writeCompressedFile(root, this.file);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            System.out.println("(Writing) " + this.file.getName() + " is corupted.");
+        }
+    }
+}
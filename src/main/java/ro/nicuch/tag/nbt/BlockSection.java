@@ -0,0 +1,547 @@
+package ro.nicuch.tag.nbt;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * The block tags of a 16 blocks high slice of a chunk.
+ * <p>
+ * A section read from disk keeps its bytes, and a block tag is decoded only when that block is asked for.
+ * The first lookup scans the bytes once to find where each block starts, without decoding any.
+ * Blocks never asked for are written back by copying their bytes, a section with no block decoded and no change
+ * since its last write is written back as it is. Both only hold while the section is written in the format it was read in.
+ * A decoded block may be changed by whoever holds it at any time, so it is encoded again on every write.
+ * <p>
+ * A snapshot of a section shares its maps until either side changes them, and takes its blocks out of the
+ * {@link TagSnapshot} only when it reaches them.
+ */
+public final class BlockSection {
+    private static final int MISSING = -1;
+
+    private final int y;
+    private byte[] encoded; // the last written or read payload, the source of the blocks not decoded yet
+    private TagFormat format; // the format of the payload
+    private int encodedCount;
+    private int[] indexes; // the index inside the section of each block of the payload, null until scanned
+    private int[] starts; // where the tag of each block of the payload starts and ends
+    private int[] ends;
+    private Int2IntOpenHashMap pending; // index inside the section -> block of the payload, for blocks not decoded yet
+    private Int2ObjectOpenHashMap<CompoundTag> blocks; // decoded blocks, keyed by the index inside the section
+    private boolean dirty;
+    private int changes; // counts the changes, so a snapshot can tell if this section changed since it was taken
+    private final TagOwner owner; // the owner of the chunk, its blocks are put under it
+    private boolean shared; // pending and blocks are also used by a snapshot, copied before they change
+    private TagSnapshot view; // the snapshot this section belongs to, until its blocks are taken from it
+
+    BlockSection(final int y, final TagOwner owner) {
+        this.y = y;
+        this.owner = owner;
+        this.dirty = true;
+    }
+
+    BlockSection(final int y, final int count, final byte[] encoded, final TagFormat format, final TagOwner owner) {
+        this.y = y;
+        this.encodedCount = count;
+        this.encoded = encoded;
+        this.format = format;
+        this.owner = owner;
+    }
+
+    /**
+     * @return the section y, the world y of its blocks shifted right by 4
+     */
+    public int getY() {
+        return this.y;
+    }
+
+    /**
+     * @return how many blocks of this section are tagged, without decoding them
+     */
+    public synchronized int size() {
+        return this.pendingSize() + (this.blocks == null ? 0 : this.blocks.size());
+    }
+
+    private int pendingSize() {
+        if (this.pending != null)
+            return this.pending.size();
+        return this.encoded == null ? 0 : this.encodedCount; // not scanned, every block is pending
+    }
+
+    /**
+     * @return {@code true} if no block of this section is kept only as bytes
+     */
+    public synchronized boolean isDecoded() {
+        return this.pendingSize() == 0;
+    }
+
+    /**
+     * A section holding decoded blocks is always dirty, as they may be changed by whoever holds them.
+     *
+     * @return {@code true} if this section changed, or may have, since it was last read or written
+     */
+    public synchronized boolean isDirty() {
+        return this.dirty || (this.blocks != null && !this.blocks.isEmpty());
+    }
+
+    synchronized void markDirty() {
+        this.dirty = true;
+        this.changes++;
+    }
+
+    /**
+     * Finds where each block of the payload starts, without decoding any.
+     */
+    private void scan() {
+        if (this.pending != null || this.encoded == null)
+            return;
+        final int[] indexes = new int[this.encodedCount];
+        final int[] starts = new int[this.encodedCount];
+        final int[] ends = new int[this.encodedCount];
+        Arrays.fill(indexes, MISSING);
+        final Int2IntOpenHashMap pending = new Int2IntOpenHashMap(this.encodedCount);
+        pending.defaultReturnValue(MISSING);
+        final FastByteArrayInputStream bais = new FastByteArrayInputStream(this.encoded);
+        try (DataInputStream dis = new DataInputStream(bais)) {
+            for (int i = 0; i < this.encodedCount; i++) {
+                final int index = this.format.isSized() ? TagCodec.readVarInt(dis) : dis.readShort();
+                starts[i] = this.encoded.length - bais.available();
+                if (this.format.isSized())
+                    TagCodec.skip(dis, TagType.COMPOUND); // one step, the length comes first
+                else
+                    TagIO.skip(dis, TagType.COMPOUND);
+                ends[i] = this.encoded.length - bais.available();
+                indexes[i] = index;
+                pending.put(index, i);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("(Reading) Block section " + this.y + " is corupted, some of its tags are lost!");
+        }
+        this.indexes = indexes;
+        this.starts = starts;
+        this.ends = ends;
+        this.pending = pending;
+    }
+
+    private CompoundTag decode(final int block) {
+        final CompoundTag tag = new CompoundTag();
+        tag.join(this.owner); // before it is filled, so the tags inside are put under the chunk as they are read
+        try (DataInputStream dis = new DataInputStream(new FastByteArrayInputStream(this.encoded, this.starts[block], this.ends[block] - this.starts[block]))) {
+            if (this.format.isSized())
+                TagCodec.readCompound(tag, dis, 1);
+            else
+                tag.read(dis, 1);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("(Reading) A block of section " + this.y + " is corupted, its tags are lost!");
+        }
+        return tag;
+    }
+
+    private Int2ObjectOpenHashMap<CompoundTag> decoded() {
+        this.unshare();
+        if (this.blocks == null)
+            this.blocks = new Int2ObjectOpenHashMap<>(4);
+        return this.blocks;
+    }
+
+    /**
+     * Takes the blocks of the snapshot this section belongs to out of it, as they were when it was taken.
+     */
+    private void resolve() {
+        final TagSnapshot view = this.view;
+        if (view == null)
+            return;
+        this.view = null;
+        if (this.blocks == null)
+            return;
+        final Int2ObjectOpenHashMap<CompoundTag> blocks = new Int2ObjectOpenHashMap<>(this.blocks.size());
+        final ObjectIterator<Int2ObjectMap.Entry<CompoundTag>> iterator = this.blocks.int2ObjectEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            final Int2ObjectMap.Entry<CompoundTag> entry = iterator.next();
+            blocks.put(entry.getIntKey(), (CompoundTag) view.take(entry.getValue()));
+        }
+        this.blocks = blocks;
+    }
+
+    /**
+     * Copies the maps shared with a snapshot, before they change.
+     */
+    private void unshare() {
+        this.resolve();
+        if (!this.shared)
+            return;
+        if (this.pending != null)
+            this.pending = copyOf(this.pending);
+        if (this.blocks != null)
+            this.blocks = new Int2ObjectOpenHashMap<>(this.blocks);
+        this.shared = false;
+    }
+
+    private static Int2IntOpenHashMap copyOf(final Int2IntOpenHashMap pending) {
+        final Int2IntOpenHashMap copy = new Int2IntOpenHashMap(pending);
+        copy.defaultReturnValue(MISSING); // not copied with the entries
+        return copy;
+    }
+
+    /**
+     * Moves a pending block to the decoded ones.
+     *
+     * @return the decoded tag, or {@code null} if the block is not pending
+     */
+    private CompoundTag take(final int index) {
+        this.scan();
+        if (this.pending == null)
+            return null;
+        this.unshare();
+        final int block = this.pending.remove(index);
+        if (block == MISSING)
+            return null;
+        final CompoundTag tag = this.decode(block);
+        this.decoded().put(index, tag);
+        return tag;
+    }
+
+    /**
+     * Gets a block tag, decoding it on first use.
+     *
+     * @param index the index inside the section
+     * @return the tag, or {@code null}
+     */
+    synchronized CompoundTag get(final int index) {
+        this.resolve();
+        final CompoundTag tag = this.blocks == null ? null : this.blocks.get(index);
+        return tag != null ? tag : this.take(index);
+    }
+
+    /**
+     * Gets a value nested in a block tag, a block not decoded yet is not decoded for it.
+     *
+     * @param index the index inside the section
+     * @param path  the path of the value
+     * @return the value, or {@code null}
+     */
+    synchronized Tag get(final int index, final TagPath path) {
+        this.resolve();
+        final CompoundTag tag = this.blocks == null ? null : this.blocks.get(index);
+        if (tag != null)
+            return path.get(tag);
+        this.scan();
+        final int block = this.pending == null ? MISSING : this.pending.get(index);
+        if (block == MISSING)
+            return null;
+        try (DataInputStream dis = new DataInputStream(new FastByteArrayInputStream(this.encoded, this.starts[block], this.ends[block] - this.starts[block]))) {
+            return path.read(dis, this.format);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("(Reading) A block of section " + this.y + " is corupted, its tags are lost!");
+            return null;
+        }
+    }
+
+    synchronized boolean contains(final int index) {
+        if (this.blocks != null && this.blocks.containsKey(index))
+            return true;
+        this.scan();
+        return this.pending != null && this.pending.containsKey(index);
+    }
+
+    synchronized CompoundTag put(final int index, final CompoundTag tag) {
+        this.markDirty();
+        final CompoundTag previous = this.get(index);
+        this.decoded().put(index, tag); // put under the owner by the chunk, outside this lock
+        return previous;
+    }
+
+    synchronized CompoundTag remove(final int index) {
+        final CompoundTag previous = this.get(index);
+        if (previous != null) {
+            this.markDirty();
+            this.decoded().remove(index);
+        }
+        return previous;
+    }
+
+    /**
+     * Drops the decoded blocks left empty, blocks still kept as bytes were written without empty ones.
+     */
+    synchronized void removeEmpty() {
+        if (this.blocks != null && this.decoded().values().removeIf(CompoundTag::isEmpty))
+            this.markDirty();
+    }
+
+    /**
+     * Visits every block of this section.
+     *
+     * @param consumer gets the packed key and the tag of each block
+     * @param keep     if the blocks decoded for the visit are kept, otherwise they are thrown away after it
+     *                 and the consumer must not change them
+     */
+    void forEach(final ChunkCompoundTag.BlockConsumer consumer, final boolean keep) {
+        final int[] indexes;
+        final CompoundTag[] tags;
+        synchronized (this) {
+            this.resolve();
+            this.scan();
+            final int pendingSize = this.pendingSize();
+            if (keep && pendingSize != 0) {
+                for (int block = 0; block < this.indexes.length; block++)
+                    if (this.isPending(block))
+                        this.take(this.indexes[block]);
+            }
+            final int size = this.size();
+            indexes = new int[size];
+            tags = new CompoundTag[size];
+            int i = 0;
+            if (this.blocks != null) {
+                final ObjectIterator<Int2ObjectMap.Entry<CompoundTag>> iterator = this.blocks.int2ObjectEntrySet().fastIterator();
+                while (iterator.hasNext()) {
+                    final Int2ObjectMap.Entry<CompoundTag> entry = iterator.next(); // the same entry object, reused
+                    indexes[i] = entry.getIntKey();
+                    tags[i++] = entry.getValue();
+                }
+            }
+            for (int block = 0; this.indexes != null && block < this.indexes.length; block++) {
+                if (this.isPending(block)) {
+                    indexes[i] = this.indexes[block];
+                    tags[i++] = this.decode(block); // read only, not kept
+                }
+            }
+        }
+        for (int i = 0; i < indexes.length; i++) // outside the lock, the consumer may call back
+            consumer.accept(keyOf(this.y, indexes[i]), tags[i]);
+    }
+
+    /**
+     * @return the packed keys of the blocks, nothing is decoded
+     */
+    synchronized int[] keys() {
+        this.scan();
+        final int[] keys = new int[this.size()];
+        int i = 0;
+        if (this.blocks != null) {
+            final IntIterator iterator = this.blocks.keySet().iterator();
+            while (iterator.hasNext())
+                keys[i++] = keyOf(this.y, iterator.nextInt());
+        }
+        for (int block = 0; this.indexes != null && block < this.indexes.length; block++) {
+            if (this.isPending(block))
+                keys[i++] = keyOf(this.y, this.indexes[block]);
+        }
+        return keys;
+    }
+
+    /**
+     * @return {@code true} if a block of the payload was neither decoded nor removed
+     */
+    private boolean isPending(final int block) {
+        final int index = this.indexes[block];
+        return index != MISSING && this.pending.get(index) == block;
+    }
+
+    /**
+     * Gets the payload of this section, encoding it again only if it is dirty or was read in a format it cannot be copied from.
+     * Blocks never decoded are copied as they are, empty block tags are left out.
+     *
+     * @param format the format to write in
+     * @return the payload
+     */
+    synchronized byte[] encode(final TagFormat format) throws IOException {
+        if (!this.isDirty() && this.encoded != null && format.canCopy(this.format))
+            return this.encoded;
+        this.resolve();
+        this.scan();
+        if (this.indexes != null && !format.canCopy(this.format)) {
+            for (int block = 0; block < this.indexes.length; block++)
+                if (this.isPending(block))
+                    this.take(this.indexes[block]); // their bytes are in the other format
+        }
+        final int pendingSize = this.pendingSize();
+        final int[] indexes = new int[pendingSize];
+        final int[] starts = new int[pendingSize];
+        final int[] ends = new int[pendingSize];
+        final Int2IntOpenHashMap pending = new Int2IntOpenHashMap(pendingSize);
+        pending.defaultReturnValue(MISSING);
+        int count = 0;
+        final FastByteArrayOutputStream baos = new FastByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            for (int block = 0; this.indexes != null && block < this.indexes.length; block++) {
+                if (!this.isPending(block))
+                    continue; // decoded or removed
+                final int index = this.indexes[block];
+                if (format.isSized())
+                    TagCodec.writeVarInt(dos, index);
+                else
+                    dos.writeShort(index);
+                indexes[count] = index;
+                starts[count] = baos.length;
+                dos.write(this.encoded, this.starts[block], this.ends[block] - this.starts[block]);
+                ends[count] = baos.length;
+                pending.put(index, count++);
+            }
+            if (this.blocks != null) {
+                final ObjectIterator<Int2ObjectMap.Entry<CompoundTag>> iterator = this.blocks.int2ObjectEntrySet().fastIterator();
+                while (iterator.hasNext()) {
+                    final Int2ObjectMap.Entry<CompoundTag> entry = iterator.next();
+                    if (entry.getValue().isEmpty())
+                        continue; //skip some bytes
+                    if (format.isSized()) {
+                        TagCodec.writeVarInt(dos, entry.getIntKey());
+                        TagCodec.writeCompound(entry.getValue(), dos, format);
+                    } else {
+                        dos.writeShort(entry.getIntKey());
+                        entry.getValue().write(dos);
+                    }
+                    count++;
+                }
+            }
+        }
+        final byte[] encoded = Arrays.copyOf(baos.array, baos.length);
+        this.encoded = encoded;
+        this.format = format;
+        this.encodedCount = count;
+        this.indexes = indexes; // the pending blocks come first in the new payload
+        this.starts = starts;
+        this.ends = ends;
+        this.pending = pending;
+        this.dirty = false;
+        return encoded;
+    }
+
+    /**
+     * @return how many blocks the last {@link #encode(TagFormat)} wrote
+     */
+    synchronized int encodedCount() {
+        return this.encodedCount;
+    }
+
+    /**
+     * @return the payload length, or {@code -1} if there is none
+     */
+    synchronized int encodedLength() {
+        final byte[] encoded = this.encoded;
+        return encoded == null ? -1 : encoded.length;
+    }
+
+    /**
+     * @return the decoded block tags, a copy
+     */
+    synchronized Collection<CompoundTag> decodedValues() {
+        this.resolve();
+        return this.blocks == null ? Collections.emptyList() : new ArrayList<>(this.blocks.values());
+    }
+
+    /**
+     * @param owner the owner of the chunk the copy is put in
+     * @return a copy, its decoded blocks copied as well
+     */
+    synchronized BlockSection copy(final TagOwner owner) {
+        this.resolve();
+        final BlockSection copy = new BlockSection(this.y, this.encodedCount, this.encoded, this.format, owner); // the bytes are never changed, share them
+        copy.dirty = this.dirty;
+        copy.changes = this.changes;
+        copy.indexes = this.indexes;
+        copy.starts = this.starts;
+        copy.ends = this.ends;
+        if (this.pending != null)
+            copy.pending = copyOf(this.pending);
+        if (this.blocks != null) {
+            final ObjectIterator<Int2ObjectMap.Entry<CompoundTag>> iterator = this.blocks.int2ObjectEntrySet().fastIterator();
+            while (iterator.hasNext()) {
+                final Int2ObjectMap.Entry<CompoundTag> entry = iterator.next();
+                final CompoundTag tag = entry.getValue().copy();
+                tag.join(owner);
+                copy.decoded().put(entry.getIntKey(), tag);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Makes a section sharing the maps of this one in O(1), both copy them before they change.
+     *
+     * @param snapshot the snapshot the blocks are taken from once reached, or {@code null} to keep the live blocks
+     * @param owner    the owner of the chunk the section is put in
+     * @return the section
+     */
+    synchronized BlockSection share(final TagSnapshot snapshot, final TagOwner owner) {
+        this.resolve(); // what is shared is never left to resolve against another snapshot
+        final BlockSection shared = new BlockSection(this.y, this.encodedCount, this.encoded, this.format, owner);
+        shared.dirty = this.dirty;
+        shared.changes = this.changes;
+        shared.indexes = this.indexes;
+        shared.starts = this.starts;
+        shared.ends = this.ends;
+        shared.pending = this.pending;
+        shared.blocks = this.blocks;
+        shared.shared = true;
+        shared.view = snapshot;
+        this.shared = true;
+        return shared;
+    }
+
+    /**
+     * Takes the payload written from a snapshot of this section, if this section did not change since the snapshot.
+     * Its decoded blocks are written in the payload too, but they stay decoded, so this section stays dirty while it has any.
+     *
+     * @param written the snapshot, after it was encoded
+     */
+    synchronized void adopt(final BlockSection written) {
+        synchronized (written) {
+            if (written.changes != this.changes || written.dirty || written.encoded == null || written.encoded == this.encoded)
+                return;
+            final Int2IntOpenHashMap pending = new Int2IntOpenHashMap(written.pending.size());
+            pending.defaultReturnValue(MISSING);
+            final IntIterator iterator = written.pending.keySet().iterator();
+            while (iterator.hasNext()) {
+                final int index = iterator.nextInt();
+                if (this.pending == null || this.pending.containsKey(index))
+                    pending.put(index, written.pending.get(index)); // decoded here meanwhile otherwise
+            }
+            this.encoded = written.encoded;
+            this.format = written.format;
+            this.encodedCount = written.encodedCount;
+            this.indexes = written.indexes;
+            this.starts = written.starts;
+            this.ends = written.ends;
+            this.pending = pending;
+            this.dirty = false;
+        }
+    }
+
+    /**
+     * @param key a block key, see {@link ro.nicuch.tag.wrapper.BlockUUID#pack(int, int, int)}
+     * @return the section y of the block
+     */
+    public static int sectionOf(final int key) {
+        return key >> 12;
+    }
+
+    /**
+     * @param key a block key, see {@link ro.nicuch.tag.wrapper.BlockUUID#pack(int, int, int)}
+     * @return the index of the block inside its section
+     */
+    public static int indexOf(final int key) {
+        return key & 0xFFF;
+    }
+
+    /**
+     * @return the block key of {@code index} inside the section {@code sectionY}
+     */
+    public static int keyOf(final int sectionY, final int index) {
+        return (sectionY << 12) | index;
+    }
+}
@@ -14,6 +14,14 @@ public final class ByteArrayTag extends AbstractList<ByteTag> implements Indexed
      * The array of bytes.
      */
     private byte[] value;
+    /**
+     * The owner of the tag this array was put in, {@code null} until there is one, see {@link CompoundTag#snapshot()}.
+     */
+    private TagOwner owner;
+    /**
+     * The version of {@link #owner} the array was last handed out under.
+     */
+    private int version;
 
     public ByteArrayTag() {
     }
@@ -38,9 +46,43 @@ public final class ByteArrayTag extends AbstractList<ByteTag> implements Indexed
      * @return the array of bytes
      */
     public byte[] value() {
+        if (this.owner != null) {
+            final TagOwner owner = this.owner = this.owner.root();
+            final int version = owner.version();
+            if (this.version != version) {
+                final byte[] value = this.value;
+                owner.freeze(this, this.version, value::clone); // it may be changed in place from now on
+                this.version = version;
+            }
+        }
         return this.value;
     }
 
+    /**
+     * @return the array standing for this one in {@code snapshot}, a copy
+     */
+    ByteArrayTag viewIn(final TagSnapshot snapshot) {
+        final byte[] value;
+        synchronized (snapshot) {
+            final Object kept = snapshot.kept(this);
+            value = kept != null ? (byte[]) kept : this.value;
+        }
+        final ByteArrayTag view = new ByteArrayTag(value.clone());
+        view.join(snapshot.owner());
+        return view;
+    }
+
+    /**
+     * Puts this array under {@code owner}.
+     */
+    void join(final TagOwner owner) {
+        if (this.owner == null) {
+            this.owner = owner.root();
+            this.version = this.owner.version();
+        } else
+            this.owner = TagOwner.union(owner, this.owner);
+    }
+
     @Override
     public void read(final DataInput input, final int depth) throws IOException {
         final int length = input.readInt();
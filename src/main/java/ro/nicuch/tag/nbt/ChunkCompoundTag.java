@@ -1,11 +1,13 @@
 package ro.nicuch.tag.nbt;
 
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
 import ro.nicuch.tag.wrapper.BlockUUID;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
+import java.util.function.BiConsumer;
 
 /**
  * A compound tag.
@@ -16,23 +18,61 @@ public final class ChunkCompoundTag implements Tag {
      */
     public static final int MAX_DEPTH = 512;
     /**
-     * The map of blocks tags.
+     * The block sections, keyed by their section y. Blocks are keyed by {@link BlockUUID#pack(int, int, int)}.
      */
-    private final Map<BlockUUID, CompoundTag> blocks = new HashMap<>();
+    private final Int2ObjectOpenHashMap<BlockSection> sections = new Int2ObjectOpenHashMap<>(4);
 
     /**
      * The map of entities tags.
      */
-    private final Map<UUID, CompoundTag> entities = new HashMap<>();
+    private Map<UUID, CompoundTag> entities = new HashMap<>();
 
-    private final CompoundTag chunktag = new CompoundTag();
+    /**
+     * The entities tags read from disk and not asked for yet, kept as their bytes.
+     */
+    private Map<UUID, byte[]> encodedEntities = new HashMap<>();
+    private TagFormat encodedEntitiesFormat = TagFormat.V1;
+    private boolean entitiesShared; // both entity maps are also used by a snapshot, copied before they change
+    private TagSnapshot entitiesView; // the snapshot the entity tags are taken from, until they are
+
+    /**
+     * Stands for this chunk and the tags in it, see {@link TagOwner}.
+     */
+    private final TagOwner owner;
+    private int version; // the version of the owner the sections and entity maps were last shared under
+
+    /**
+     * The first byte of a chunk written in {@link TagFormat#V2}, never a block record of the classic format.
+     */
+    private static final byte V2_MARKER = (byte) 5;
+    /**
+     * The first byte of a chunk written in {@link TagFormat#V3}.
+     */
+    private static final byte V3_MARKER = (byte) 6;
+
+    private CompoundTag chunktag;
+
+    public ChunkCompoundTag() {
+        this(new TagOwner(), new CompoundTag());
+        this.chunktag.join(this.owner);
+    }
+
+    private ChunkCompoundTag(final TagOwner owner, final CompoundTag chunktag) {
+        this.owner = owner;
+        this.chunktag = chunktag;
+        this.version = owner.root().version();
+    }
 
     public boolean isEmpty(boolean removeEmpty) {
         if (removeEmpty) {
-            this.blocks.values().removeIf(CompoundTag::isEmpty);
-            this.entities.values().removeIf(CompoundTag::isEmpty);
+            this.own();
+            for (BlockSection section : this.sections.values())
+                section.removeEmpty();
+            this.sections.values().removeIf(section -> section.size() == 0);
+            this.unshareEntities();
+            this.entities.values().removeIf(CompoundTag::isEmpty); // encoded ones were written without empty tags
         }
-        return this.blocks.isEmpty() && this.entities.isEmpty() && this.chunktag.isEmpty();
+        return this.isBlocksEmpty() && this.isEntitiesEmpty() && this.chunktag.isEmpty();
     }
 
     public CompoundTag getChunkCompound() {
@@ -43,14 +83,19 @@ public final class ChunkCompoundTag implements Tag {
      * Clear the blocks tag.
      */
     public void clearBlocks() {
-        this.blocks.clear();
+        this.own();
+        this.sections.clear();
     }
 
     /**
      * Clear the entities tag.
      */
     public void clearEntities() {
-        this.entities.clear();
+        this.own();
+        this.entitiesView = null;
+        this.entities = new HashMap<>();
+        this.encodedEntities = new HashMap<>();
+        this.entitiesShared = false;
     }
 
     /**
@@ -60,17 +105,93 @@ public final class ChunkCompoundTag implements Tag {
      * @return the tag, or {@code null}
      */
     public CompoundTag getBlock(final BlockUUID key) {
-        return this.blocks.get(key);
+        return this.getBlock(toKey(key));
     }
 
     /**
-     * Gets a entity tag by its key.
+     * Gets a block tag by its packed key.
+     *
+     * @param key the key, see {@link BlockUUID#pack(int, int, int)}
+     * @return the tag, or {@code null}
+     */
+    public CompoundTag getBlock(final int key) {
+        this.own(); // the block may be decoded, and changed by the caller
+        final BlockSection section = this.sections.get(BlockSection.sectionOf(key));
+        if (section == null)
+            return null;
+        final CompoundTag tag = section.get(BlockSection.indexOf(key));
+        if (tag != null)
+            section.markDirty(); // the caller may change it
+        return tag;
+    }
+
+    /**
+     * Gets a entity tag by its key, decoding it on first use.
      *
      * @param key the key
      * @return the tag, or {@code null}
      */
     public CompoundTag getEntity(final UUID key) {
-        return this.entities.get(key);
+        this.own();
+        final CompoundTag tag = this.entities().get(key);
+        if (tag != null)
+            return tag;
+        if (!this.encodedEntities.containsKey(key))
+            return null;
+        this.unshareEntities();
+        final CompoundTag decoded = decodeEntity(key, this.encodedEntities.remove(key));
+        this.entities.put(key, decoded);
+        return decoded;
+    }
+
+    /**
+     * Gets a value nested in a block tag, read from the bytes of the block if it was not decoded yet.
+     *
+     * @param key  the block key, see {@link BlockUUID#pack(int, int, int)}
+     * @param path the path of the value
+     * @return the value, it must not be changed, or {@code null}
+     */
+    public Tag getBlockValue(final int key, final TagPath path) {
+        final BlockSection section = this.sections.get(BlockSection.sectionOf(key));
+        return section == null ? null : section.get(BlockSection.indexOf(key), path);
+    }
+
+    /**
+     * Gets a value nested in a entity tag, read from the bytes of the entity if it was not decoded yet.
+     *
+     * @param key  the key
+     * @param path the path of the value
+     * @return the value, it must not be changed, or {@code null}
+     */
+    public Tag getEntityValue(final UUID key, final TagPath path) {
+        final CompoundTag tag = this.entities().get(key);
+        if (tag != null)
+            return path.get(tag);
+        final byte[] encoded = this.encodedEntities.get(key);
+        if (encoded == null)
+            return null;
+        try (DataInputStream dis = new DataInputStream(new FastByteArrayInputStream(encoded))) {
+            return path.readBody(dis, this.encodedEntitiesFormat); // only the body is kept
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("(Reading) Entity " + key + " is corupted, its tags are lost!");
+            return null;
+        }
+    }
+
+    private CompoundTag decodeEntity(final UUID key, final byte[] encoded) {
+        final CompoundTag tag = new CompoundTag();
+        tag.join(this.owner); // before it is filled, as blocks are
+        try (DataInputStream dis = new DataInputStream(new FastByteArrayInputStream(encoded))) {
+            if (this.encodedEntitiesFormat.isSized())
+                TagCodec.readCompoundBody(tag, dis, 1);
+            else
+                tag.read(dis, 1);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("(Reading) Entity " + key + " is corupted, its tags are lost!");
+        }
+        return tag;
     }
 
     /**
@@ -80,7 +201,23 @@ public final class ChunkCompoundTag implements Tag {
      * @param tag the tag
      */
     public CompoundTag putBlock(final BlockUUID key, final CompoundTag tag) {
-        return this.blocks.put(key, tag);
+        return this.putBlock(toKey(key), tag);
+    }
+
+    /**
+     * Inserts a block tag by its packed key.
+     *
+     * @param key the key, see {@link BlockUUID#pack(int, int, int)}
+     * @param tag the tag
+     */
+    public CompoundTag putBlock(final int key, final CompoundTag tag) {
+        this.own();
+        tag.join(this.owner);
+        final int sectionY = BlockSection.sectionOf(key);
+        BlockSection section = this.sections.get(sectionY);
+        if (section == null)
+            this.sections.put(sectionY, section = new BlockSection(sectionY, this.owner));
+        return section.put(BlockSection.indexOf(key), tag);
     }
 
     /**
@@ -90,7 +227,11 @@ public final class ChunkCompoundTag implements Tag {
      * @param tag the tag
      */
     public CompoundTag putEntity(final UUID key, final CompoundTag tag) {
-        return this.entities.put(key, tag);
+        final CompoundTag previous = this.getEntity(key);
+        tag.join(this.owner);
+        this.unshareEntities();
+        this.entities.put(key, tag);
+        return previous;
     }
 
     /**
@@ -99,7 +240,23 @@ public final class ChunkCompoundTag implements Tag {
      * @param key the key
      */
     public CompoundTag removeBlock(final BlockUUID key) {
-        return this.blocks.remove(key);
+        return this.removeBlock(toKey(key));
+    }
+
+    /**
+     * Removes a block tag by its packed key.
+     *
+     * @param key the key, see {@link BlockUUID#pack(int, int, int)}
+     */
+    public CompoundTag removeBlock(final int key) {
+        this.own();
+        final BlockSection section = this.sections.get(BlockSection.sectionOf(key));
+        if (section == null)
+            return null;
+        final CompoundTag tag = section.remove(BlockSection.indexOf(key));
+        if (tag != null && section.size() == 0)
+            this.sections.remove(section.getY());
+        return tag;
     }
 
     /**
@@ -108,7 +265,22 @@ public final class ChunkCompoundTag implements Tag {
      * @param key the key
      */
     public CompoundTag removeEntity(final UUID key) {
-        return this.entities.remove(key);
+        final CompoundTag previous = this.getEntity(key);
+        this.unshareEntities();
+        this.entities.remove(key);
+        return previous;
+    }
+
+    /**
+     * Drops the entity tags whose key is not in {@code keys}, without decoding them.
+     *
+     * @param keys the keys to keep
+     */
+    public void retainEntities(final Collection<UUID> keys) {
+        this.own();
+        this.unshareEntities();
+        this.entities.keySet().retainAll(keys);
+        this.encodedEntities.keySet().retainAll(keys);
     }
 
     /**
@@ -118,7 +290,18 @@ public final class ChunkCompoundTag implements Tag {
      * @return {@code true} if this compound has a block tag with the specified key
      */
     public boolean containsBlock(final BlockUUID key) {
-        return this.blocks.containsKey(key);
+        return this.containsBlock(toKey(key));
+    }
+
+    /**
+     * Checks if this compound has a block tag with the specified packed key.
+     *
+     * @param key the key, see {@link BlockUUID#pack(int, int, int)}
+     * @return {@code true} if this compound has a block tag with the specified key
+     */
+    public boolean containsBlock(final int key) {
+        final BlockSection section = this.sections.get(BlockSection.sectionOf(key));
+        return section != null && section.contains(BlockSection.indexOf(key));
     }
 
     /**
@@ -128,100 +311,510 @@ public final class ChunkCompoundTag implements Tag {
      * @return {@code true} if this compound has a entity tag with the specified key
      */
     public boolean containsEntity(final UUID key) {
-        return this.entities.containsKey(key);
+        return this.entities().containsKey(key) || this.encodedEntities.containsKey(key);
     }
 
     public int sizeBlocks() {
-        return this.blocks.size();
+        int size = 0;
+        for (BlockSection section : this.sections.values())
+            size += section.size();
+        return size;
     }
 
     public boolean isBlocksEmpty() {
-        return this.blocks.isEmpty();
+        for (BlockSection section : this.sections.values())
+            if (section.size() != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Gets the block sections of this chunk. Looking at a section does not decode it.
+     *
+     * @return the sections, unmodifiable
+     */
+    public Collection<BlockSection> getSections() {
+        return Collections.unmodifiableCollection(this.sections.values());
+    }
+
+    /**
+     * @param sectionY the section y, the world y shifted right by 4
+     * @return the section, or {@code null} if none of its blocks is tagged
+     */
+    public BlockSection getSection(final int sectionY) {
+        return this.sections.get(sectionY);
     }
 
     public int sizeEntities() {
-        return this.entities.size();
+        return this.entities.size() + this.encodedEntities.size();
     }
 
     public boolean isEntitiesEmpty() {
-        return this.entities.isEmpty();
+        return this.entities.isEmpty() && this.encodedEntities.isEmpty();
     }
 
     /**
      * Gets a set of keys of the entries in this compound tag.
      *
-     * @return a set of keys
+     * @return a view of the keys, removing a key removes its block
+     * @deprecated allocates a key per block, use {@link #forEachBlock(BlockConsumer)}
      */
+    @Deprecated
     public Set<BlockUUID> keySetBlocks() {
-        return this.blocks.keySet();
+        return new AbstractSet<BlockUUID>() {
+            @Override
+            public Iterator<BlockUUID> iterator() {
+                return new BlockIterator<BlockUUID>() {
+                    @Override
+                    BlockUUID next(final int key) {
+                        return fromKey(key);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ChunkCompoundTag.this.sizeBlocks();
+            }
+
+            @Override
+            public boolean contains(final Object o) {
+                return o instanceof BlockUUID && ChunkCompoundTag.this.containsBlock((BlockUUID) o);
+            }
+
+            @Override
+            public boolean remove(final Object o) {
+                return o instanceof BlockUUID && ChunkCompoundTag.this.removeBlock((BlockUUID) o) != null;
+            }
+
+            @Override
+            public void clear() {
+                ChunkCompoundTag.this.clearBlocks();
+            }
+        };
     }
 
     /**
-     * Gets a set of keys of the entries in this compound tag.
+     * Gets a set of keys of the entries in this compound tag, without decoding them.
      *
-     * @return a set of keys
+     * @return a copy of the keys
      */
     public Set<UUID> keySetEntities() {
-        return this.entities.keySet();
+        final Set<UUID> keys = new HashSet<>(this.entities().keySet());
+        keys.addAll(this.encodedEntities.keySet());
+        return keys;
     }
 
+    /**
+     * @return a view of the block entries, setting the value of an entry puts its block
+     * @deprecated allocates an entry per block, use {@link #forEachBlock(BlockConsumer)}
+     */
+    @Deprecated
     public Set<Map.Entry<BlockUUID, CompoundTag>> entrySetBlocks() {
-        return this.blocks.entrySet();
+        return new AbstractSet<Map.Entry<BlockUUID, CompoundTag>>() {
+            @Override
+            public Iterator<Map.Entry<BlockUUID, CompoundTag>> iterator() {
+                return new BlockIterator<Map.Entry<BlockUUID, CompoundTag>>() {
+                    @Override
+                    Map.Entry<BlockUUID, CompoundTag> next(final int key) {
+                        return new AbstractMap.SimpleEntry<BlockUUID, CompoundTag>(fromKey(key), ChunkCompoundTag.this.getBlock(key)) {
+                            private static final long serialVersionUID = 1L;
+
+                            @Override
+                            public CompoundTag setValue(final CompoundTag value) {
+                                ChunkCompoundTag.this.putBlock(key, value);
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ChunkCompoundTag.this.sizeBlocks();
+            }
+
+            @Override
+            public void clear() {
+                ChunkCompoundTag.this.clearBlocks();
+            }
+        };
+    }
+
+    /**
+     * Visits every block tag without boxing keys or creating entries.
+     *
+     * @param consumer gets the packed key and the tag of each block
+     */
+    public void forEachBlock(final BlockConsumer consumer) {
+        for (BlockSection section : this.sections.values())
+            this.forEachBlock(section, consumer, true);
+    }
+
+    /**
+     * Visits the block tags of one section, see {@link #forEachBlock(BlockConsumer)}.
+     *
+     * @param sectionY the section y, the world y shifted right by 4
+     * @param consumer gets the packed key and the tag of each block
+     */
+    public void forEachBlock(final int sectionY, final BlockConsumer consumer) {
+        final BlockSection section = this.sections.get(sectionY);
+        if (section != null)
+            this.forEachBlock(section, consumer, true);
+    }
+
+    /**
+     * Visits the block tags of one section without marking it dirty, the consumer must not change them.
+     *
+     * @param sectionY the section y, the world y shifted right by 4
+     * @param consumer gets the packed key and the tag of each block
+     */
+    public void forEachBlockReadOnly(final int sectionY, final BlockConsumer consumer) {
+        final BlockSection section = this.sections.get(sectionY);
+        if (section != null)
+            this.forEachBlock(section, consumer, false);
+    }
+
+    private void forEachBlock(final BlockSection section, final BlockConsumer consumer, final boolean handOut) {
+        if (handOut) {
+            this.own();
+            section.markDirty(); // the consumer may change the tags
+        }
+        section.forEach(consumer, handOut); // read only visits do not keep what they decode
     }
 
+    /**
+     * @return a view of the block tags, removing a tag removes its block
+     */
     public Collection<CompoundTag> blocksValues() {
-        return this.blocks.values();
+        return new AbstractCollection<CompoundTag>() {
+            @Override
+            public Iterator<CompoundTag> iterator() {
+                return new BlockIterator<CompoundTag>() {
+                    @Override
+                    CompoundTag next(final int key) {
+                        return ChunkCompoundTag.this.getBlock(key);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ChunkCompoundTag.this.sizeBlocks();
+            }
+
+            @Override
+            public void clear() {
+                ChunkCompoundTag.this.clearBlocks();
+            }
+        };
     }
 
+    /**
+     * Iterates the blocks present when it was created, a block removed meanwhile is skipped.
+     * Only the packed keys are collected up front, values are looked up as they are reached.
+     */
+    private abstract class BlockIterator<T> implements Iterator<T> {
+        private final int[] keys;
+        private int next;
+        private int last;
+        private boolean removable;
+
+        BlockIterator() {
+            int[] keys = new int[0];
+            for (BlockSection section : ChunkCompoundTag.this.sections.values()) {
+                final int[] sectionKeys = section.keys();
+                final int size = keys.length;
+                keys = Arrays.copyOf(keys, size + sectionKeys.length);
+                System.arraycopy(sectionKeys, 0, keys, size, sectionKeys.length);
+            }
+            this.keys = keys;
+            this.skipRemoved();
+        }
+
+        abstract T next(int key);
+
+        private void skipRemoved() {
+            while (this.next < this.keys.length && !ChunkCompoundTag.this.containsBlock(this.keys[this.next]))
+                this.next++;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next < this.keys.length;
+        }
+
+        @Override
+        public T next() {
+            if (this.next >= this.keys.length)
+                throw new NoSuchElementException();
+            this.last = this.keys[this.next++];
+            this.removable = true;
+            final T value = this.next(this.last);
+            this.skipRemoved();
+            return value;
+        }
+
+        @Override
+        public void remove() {
+            if (!this.removable)
+                throw new IllegalStateException();
+            ChunkCompoundTag.this.removeBlock(this.last);
+            this.removable = false;
+        }
+    }
+
+    /**
+     * @return the entity entries, decoding every entity tag
+     */
     public Set<Map.Entry<UUID, CompoundTag>> entrySetEntities() {
+        this.decodeEntities();
+        this.unshareEntities(); // the caller may change the map through it
         return this.entities.entrySet();
     }
 
+    /**
+     * @return the entity tags, decoding every entity tag
+     */
     public Collection<CompoundTag> entitiesValues() {
+        this.decodeEntities();
+        this.unshareEntities();
         return this.entities.values();
     }
 
+    private void decodeEntities() {
+        for (UUID key : new ArrayList<>(this.encodedEntities.keySet()))
+            this.getEntity(key);
+    }
+
+    /**
+     * @return the decoded entity tags, taken out of the snapshot this chunk belongs to first
+     */
+    private Map<UUID, CompoundTag> entities() {
+        final TagSnapshot view = this.entitiesView;
+        if (view != null) {
+            final Map<UUID, CompoundTag> entities = new HashMap<>(this.entities.size());
+            this.entities.forEach((key, value) -> entities.put(key, (CompoundTag) view.take(value)));
+            this.entities = entities; // the encoded ones are still shared
+            this.entitiesView = null;
+        }
+        return this.entities;
+    }
+
+    /**
+     * Copies the entity maps shared with a snapshot, before they change.
+     */
+    private void unshareEntities() {
+        this.entities();
+        if (!this.entitiesShared)
+            return;
+        this.entities = new HashMap<>(this.entities);
+        this.encodedEntities = new HashMap<>(this.encodedEntities);
+        this.entitiesShared = false;
+    }
+
+    /**
+     * Visits every entity tag, entity tags not asked for yet are decoded for the visit only.
+     *
+     * @param consumer gets the key and the tag of each entity, it must not change them
+     */
+    public void forEachEntityReadOnly(final BiConsumer<UUID, CompoundTag> consumer) {
+        this.entities().forEach(consumer);
+        this.encodedEntities.forEach((key, encoded) -> consumer.accept(key, decodeEntity(key, encoded)));
+    }
+
+    /**
+     * @return the estimated heap size of the entity tags kept as bytes
+     */
+    long encodedEntitiesSize() {
+        long size = 0;
+        for (byte[] encoded : this.encodedEntities.values())
+            size += encoded.length;
+        return size;
+    }
+
+    /**
+     * @return the decoded entity tags
+     */
+    Collection<CompoundTag> decodedEntities() {
+        return this.entities().values();
+    }
+
     @Override
     public void read(final DataInput input, final int depth) throws IOException {
         if (depth > MAX_DEPTH) {
             throw new IllegalStateException(String.format("Depth of %d is higher than max of %d", depth, MAX_DEPTH));
         }
-        while (input.readByte() == (byte) 1) {
-            final byte x = input.readByte();
-            final byte y = input.readByte();
-            final byte z = input.readByte();
-            final BlockUUID key = new BlockUUID(x, y, z);
-            final CompoundTag tag = new CompoundTag();
-            tag.read(input, depth + 1);
-            this.blocks.put(key, tag);
+        this.own();
+        byte marker = input.readByte();
+        if (marker == V2_MARKER || marker == V3_MARKER) {
+            this.readSized(input, depth, marker == V3_MARKER ? TagFormat.V3 : TagFormat.V2);
+            return;
+        }
+        for (; marker != (byte) 0; marker = input.readByte()) {
+            if (marker == (byte) 4) { // a whole section, decoded when first used
+                final int sectionY = input.readShort();
+                final int count = input.readShort();
+                final byte[] payload = new byte[input.readInt()];
+                input.readFully(payload);
+                this.sections.put(sectionY, new BlockSection(sectionY, count, payload, TagFormat.V1, this.owner));
+            } else if (marker == (byte) 1) { // a single block, the format before sections
+                final byte x = input.readByte();
+                final byte y = input.readByte();
+                final byte z = input.readByte();
+                final CompoundTag tag = new CompoundTag();
+                tag.join(this.owner);
+                tag.read(input, depth + 1);
+                this.putBlock(toKey(x, y, z), tag);
+            } else
+                throw new IOException("Unknown block record " + marker + ".");
         }
+        this.decodeEntities(); // entity bytes are kept in one format
+        this.unshareEntities();
+        this.encodedEntitiesFormat = TagFormat.V1;
+        final FastByteArrayOutputStream entity = new FastByteArrayOutputStream();
+        final DataOutputStream entityOutput = new DataOutputStream(entity);
         while (input.readByte() == (byte) 2) {
             final String id = input.readUTF();
             final UUID key = UUID.fromString(id);
-            final CompoundTag tag = new CompoundTag();
-            tag.read(input, depth + 1);
-            this.entities.put(key, tag);
+            entity.reset();
+            TagIO.copy(input, entityOutput, TagType.COMPOUND); // decoded when first used
+            this.entities.remove(key);
+            this.encodedEntities.put(key, Arrays.copyOf(entity.array, entity.length));
         }
         if (input.readByte() == (byte) 3) { //last byte
             this.chunktag.read(input, depth + 1);
+            input.readByte(); // the end written after the chunk tag, it would end a compound holding this chunk
         }
     }
 
+    /**
+     * Reads the rest of a chunk written in a sized format, after its marker.
+     */
+    private void readSized(final DataInput input, final int depth, final TagFormat format) throws IOException {
+        final int sectionCount = TagCodec.readVarInt(input);
+        final int[] sectionYs = new int[sectionCount];
+        final int[] counts = new int[sectionCount];
+        final int[] lengths = new int[sectionCount];
+        for (int i = 0; i < sectionCount; i++) { // the index comes first, the payloads follow in the same order
+            sectionYs[i] = TagCodec.unzigzag(TagCodec.readVarInt(input));
+            counts[i] = TagCodec.readVarInt(input);
+            lengths[i] = TagCodec.readVarInt(input);
+        }
+        for (int i = 0; i < sectionCount; i++) {
+            final byte[] payload = new byte[lengths[i]];
+            input.readFully(payload);
+            this.sections.put(sectionYs[i], new BlockSection(sectionYs[i], counts[i], payload, format, this.owner));
+        }
+        this.decodeEntities(); // entity bytes are kept in one format
+        this.unshareEntities();
+        this.encodedEntitiesFormat = format;
+        final int entityCount = TagCodec.readVarInt(input);
+        for (int i = 0; i < entityCount; i++) {
+            final UUID key = format == TagFormat.V3 ? new UUID(input.readLong(), input.readLong()) : UUID.fromString(TagCodec.readString(input));
+            final byte[] body = new byte[TagCodec.readVarInt(input)]; // decoded when first used
+            input.readFully(body);
+            this.entities.remove(key);
+            this.encodedEntities.put(key, body);
+        }
+        if (input.readByte() == (byte) 3)
+            TagCodec.readCompound(this.chunktag, input, depth + 1);
+    }
+
+    /**
+     * Streams a chunk, written in any {@link TagFormat}, to {@code visitor} without creating its tags.
+     *
+     * @param input   the chunk, as written by {@link #write(DataOutput)}
+     * @param visitor the visitor
+     * @return {@code false} if the visitor stopped the read
+     * @throws IOException if the chunk could not be read
+     */
+    public static boolean accept(final DataInput input, final TagVisitor visitor) throws IOException {
+        return TagReader.accept(input, TagType.CHUNK_COMPOUND, TagFormat.V1, visitor); // the chunk knows its format
+    }
+
+    /**
+     * Reads a single block tag from a chunk without reading the rest of it.
+     * Only chunks written in a sized format can be read this way, their index leads to the section of the block
+     * and the other sections and blocks are skipped without being parsed.
+     *
+     * @param input the chunk, as written by {@link #write(DataOutput)}
+     * @param key   the block key, see {@link BlockUUID#pack(int, int, int)}
+     * @return the tag, or {@code null} if the block is not tagged
+     * @throws IOException if the chunk is not in a sized format, or could not be read
+     */
+    public static CompoundTag readBlock(final DataInput input, final int key) throws IOException {
+        final byte marker = input.readByte();
+        if (marker != V2_MARKER && marker != V3_MARKER)
+            throw new IOException("Only chunks written in " + TagFormat.V2 + " or later can be read by block.");
+        final int wantedY = BlockSection.sectionOf(key);
+        final int wantedIndex = BlockSection.indexOf(key);
+        final int sectionCount = TagCodec.readVarInt(input);
+        long skip = 0;
+        int count = -1;
+        for (int i = 0; i < sectionCount; i++) {
+            final int sectionY = TagCodec.unzigzag(TagCodec.readVarInt(input));
+            final int blockCount = TagCodec.readVarInt(input);
+            final int length = TagCodec.readVarInt(input);
+            if (count >= 0)
+                continue; // found, the rest of the index is read only to reach the payloads
+            if (sectionY == wantedY)
+                count = blockCount;
+            else
+                skip += length;
+        }
+        if (count < 0)
+            return null;
+        TagCodec.skipBytes(input, skip);
+        for (int i = 0; i < count; i++) {
+            final int index = TagCodec.readVarInt(input);
+            if (index == wantedIndex) {
+                final CompoundTag tag = new CompoundTag();
+                TagCodec.readCompound(tag, input, 1);
+                return tag;
+            }
+            TagCodec.skip(input, TagType.COMPOUND);
+        }
+        return null;
+    }
+
+    /**
+     * Writes this chunk in the format chosen by {@link TagIO#setChunkFormat(TagFormat)}.
+     */
     @Override
     public void write(final DataOutput output) throws IOException {
-        for (Map.Entry<BlockUUID, CompoundTag> blocksEntry : this.blocks.entrySet()) {
-            final CompoundTag tag = blocksEntry.getValue();
-            if (tag.isEmpty())
+        this.write(output, TagIO.getChunkFormat());
+    }
+
+    /**
+     * Writes this chunk in {@code format}. Blocks and entities never asked for are copied as they are
+     * if they were read in a format they can be copied into, see {@link TagFormat#canCopy(TagFormat)}.
+     *
+     * @param output the output
+     * @param format the format
+     * @throws IOException if an exception was encountered while writing
+     */
+    public void write(final DataOutput output, final TagFormat format) throws IOException {
+        this.own(); // blocks and entities in another format are decoded
+        if (format.isSized()) {
+            this.writeSized(output, format);
+            return;
+        }
+        if (!format.canCopy(this.encodedEntitiesFormat))
+            this.decodeEntities();
+        for (BlockSection section : this.sections.values()) {
+            final byte[] payload = section.encode(TagFormat.V1); // clean sections are copied as they are
+            if (section.encodedCount() == 0)
                 continue; //skip some bytes
-            final BlockUUID key = blocksEntry.getKey();
-            output.writeByte((byte) 1); //write for blocks
-            output.writeByte(key.getX());
-            output.writeByte(key.getY());
-            output.writeByte(key.getZ());
-            tag.write(output);
+            output.writeByte((byte) 4); //write for block sections
+            output.writeShort(section.getY());
+            output.writeShort(section.encodedCount());
+            output.writeInt(payload.length);
+            output.write(payload);
         }
         output.writeByte((byte) 0); // 0 means end
-        for (Map.Entry<UUID, CompoundTag> entitiesEntry : this.entities.entrySet()) {
+        for (Map.Entry<UUID, CompoundTag> entitiesEntry : this.entities().entrySet()) {
             final CompoundTag tag = entitiesEntry.getValue();
             if (tag.isEmpty())
                 continue; //skip some bytes
@@ -230,6 +823,11 @@ public final class ChunkCompoundTag implements Tag {
             output.writeUTF(key.toString());
             tag.write(output);
         }
+        for (Map.Entry<UUID, byte[]> entitiesEntry : this.encodedEntities.entrySet()) {
+            output.writeByte((byte) 2); //write for entities
+            output.writeUTF(entitiesEntry.getKey().toString());
+            output.write(entitiesEntry.getValue()); // never asked for, copied as it is
+        }
         output.writeByte((byte) 0); // 0 means end
         if (!this.chunktag.isEmpty()) {
             output.writeByte((byte) 3); //write for chunk tag
@@ -238,6 +836,99 @@ public final class ChunkCompoundTag implements Tag {
         output.writeByte((byte) 0); // 0 means end
     }
 
+    private void writeSized(final DataOutput output, final TagFormat format) throws IOException {
+        if (!format.canCopy(this.encodedEntitiesFormat))
+            this.decodeEntities();
+        final List<BlockSection> written = new ArrayList<>(this.sections.size());
+        final List<byte[]> payloads = new ArrayList<>(this.sections.size());
+        for (BlockSection section : this.sections.values()) {
+            final byte[] payload = section.encode(format); // clean sections are copied as they are
+            if (section.encodedCount() == 0)
+                continue; //skip some bytes
+            written.add(section);
+            payloads.add(payload);
+        }
+        output.writeByte(format == TagFormat.V3 ? V3_MARKER : V2_MARKER);
+        TagCodec.writeVarInt(output, written.size());
+        for (int i = 0; i < written.size(); i++) { // the index of the sections, so a reader can skip to one
+            TagCodec.writeVarInt(output, TagCodec.zigzag(written.get(i).getY()));
+            TagCodec.writeVarInt(output, written.get(i).encodedCount());
+            TagCodec.writeVarInt(output, payloads.get(i).length);
+        }
+        for (byte[] payload : payloads)
+            output.write(payload);
+        int entityCount = this.encodedEntities.size();
+        for (CompoundTag tag : this.entities().values())
+            if (!tag.isEmpty())
+                entityCount++;
+        TagCodec.writeVarInt(output, entityCount);
+        for (Map.Entry<UUID, CompoundTag> entitiesEntry : this.entities.entrySet()) {
+            final CompoundTag tag = entitiesEntry.getValue();
+            if (tag.isEmpty())
+                continue; //skip some bytes
+            writeKey(output, entitiesEntry.getKey(), format);
+            TagCodec.writeCompound(tag, output, format);
+        }
+        for (Map.Entry<UUID, byte[]> entitiesEntry : this.encodedEntities.entrySet()) {
+            writeKey(output, entitiesEntry.getKey(), format);
+            TagCodec.writeVarInt(output, entitiesEntry.getValue().length);
+            output.write(entitiesEntry.getValue()); // never asked for, copied as it is
+        }
+        if (!this.chunktag.isEmpty()) {
+            output.writeByte((byte) 3); //write for chunk tag
+            TagCodec.writeCompound(this.chunktag, output, format);
+        } else
+            output.writeByte((byte) 0);
+    }
+
+    private static void writeKey(final DataOutput output, final UUID key, final TagFormat format) throws IOException {
+        if (format == TagFormat.V3) {
+            output.writeLong(key.getMostSignificantBits());
+            output.writeLong(key.getLeastSignificantBits());
+        } else
+            TagCodec.writeString(output, key.toString());
+    }
+
+    private Int2ObjectOpenHashMap<CompoundTag> flatBlocks() {
+        final Int2ObjectOpenHashMap<CompoundTag> blocks = new Int2ObjectOpenHashMap<>(this.sizeBlocks());
+        for (BlockSection section : this.sections.values())
+            this.forEachBlock(section, blocks::put, false);
+        return blocks;
+    }
+
+    private Map<UUID, CompoundTag> flatEntities() {
+        final Map<UUID, CompoundTag> entities = new HashMap<>(this.sizeEntities());
+        this.forEachEntityReadOnly(entities::put);
+        return entities;
+    }
+
+    /**
+     * @return the sections, without marking them dirty
+     */
+    Collection<BlockSection> sections() {
+        return this.sections.values();
+    }
+
+    private static int toKey(final byte x, final byte y, final byte z) {
+        return BlockUUID.pack(x, y + 128, z); // the old format kept y in a byte, shifted by -128
+    }
+
+    private static int toKey(final BlockUUID uuid) {
+        return uuid.toKey();
+    }
+
+    private static BlockUUID fromKey(final int key) {
+        return BlockUUID.fromKey(key);
+    }
+
+    /**
+     * Visits block tags by their packed key, see {@link #forEachBlock(BlockConsumer)}.
+     */
+    @FunctionalInterface
+    public interface BlockConsumer {
+        void accept(int key, CompoundTag tag);
+    }
+
     @Override
     public TagType type() {
         return TagType.CHUNK_COMPOUND;
@@ -246,15 +937,100 @@ public final class ChunkCompoundTag implements Tag {
     @Override
     public ChunkCompoundTag copy() {
         final ChunkCompoundTag copy = new ChunkCompoundTag();
-        this.blocks.forEach((key, value) -> copy.putBlock(key, value.copy()));
-        this.entities.forEach((key, value) -> copy.putEntity(key, value.copy()));
+        for (BlockSection section : this.sections.values())
+            copy.sections.put(section.getY(), section.copy(copy.owner));
+        this.entities().forEach((key, value) -> {
+            final CompoundTag tag = value.copy();
+            tag.join(copy.owner);
+            copy.entities.put(key, tag);
+        });
+        copy.encodedEntities.putAll(this.encodedEntities); // the bytes are never changed, share them
+        copy.encodedEntitiesFormat = this.encodedEntitiesFormat;
         copy.getChunkCompound().copyFrom(this.chunktag);
         return copy;
     }
 
+    /**
+     * Takes a snapshot in O(1), it has the same tags and changing either does not change the other.
+     * The sections and entity maps are shared until either side changes them, the tags in them are taken out
+     * of the {@link TagSnapshot} only as they are reached, see {@link CompoundTag#snapshot()}.
+     *
+     * @return the snapshot
+     */
+    public ChunkCompoundTag snapshot() {
+        this.own();
+        final int version = this.version;
+        final TagSnapshot snapshot = this.owner.root().snapshot();
+        final ChunkCompoundTag view = this.viewIn(snapshot);
+        if (snapshot.version() == version + 1)
+            this.version = snapshot.version(); // shared copy on write already, nothing to leave to it
+        return view;
+    }
+
+    TagOwner owner() {
+        return this.owner;
+    }
+
+    /**
+     * @return this chunk as it was when {@code snapshot} was taken
+     */
+    ChunkCompoundTag viewIn(final TagSnapshot snapshot) {
+        synchronized (snapshot) {
+            final ChunkCompoundTag kept = (ChunkCompoundTag) snapshot.kept(this);
+            return (kept != null ? kept : this).share(snapshot);
+        }
+    }
+
+    /**
+     * Leaves what this chunk had to the snapshots taken since it last did, before it changes.
+     */
+    private void own() {
+        final TagOwner root = this.owner.root();
+        final int version = root.version();
+        if (this.version == version)
+            return;
+        root.freeze(this, this.version, () -> this.share(null));
+        this.version = version;
+    }
+
+    /**
+     * Makes a chunk sharing the sections and entity maps of this one, in O(1) of the tags in them.
+     *
+     * @param snapshot the snapshot its tags are taken from once reached, or {@code null} to keep the live ones
+     * @return the chunk
+     */
+    private ChunkCompoundTag share(final TagSnapshot snapshot) {
+        this.entities(); // what is shared is never left to take from another snapshot
+        final TagOwner owner = snapshot == null ? this.owner : snapshot.owner();
+        final ChunkCompoundTag shared = new ChunkCompoundTag(owner, snapshot == null ? this.chunktag : (CompoundTag) snapshot.take(this.chunktag));
+        for (BlockSection section : this.sections.values())
+            shared.sections.put(section.getY(), section.share(snapshot, owner));
+        shared.entities = this.entities;
+        shared.encodedEntities = this.encodedEntities;
+        shared.encodedEntitiesFormat = this.encodedEntitiesFormat;
+        shared.entitiesShared = true;
+        shared.entitiesView = snapshot;
+        this.entitiesShared = true;
+        return shared;
+    }
+
+    /**
+     * Takes the payloads encoded while writing a snapshot of this tag, for the sections that did not change since,
+     * so the next write copies them instead of encoding them again. See {@link BlockSection#isDirty()}.
+     *
+     * @param written the snapshot, after it was written
+     */
+    public void adopt(final ChunkCompoundTag written) {
+        for (BlockSection section : this.sections.values()) {
+            final BlockSection writtenSection = written.sections.get(section.getY());
+            if (writtenSection != null)
+                section.adopt(writtenSection);
+        }
+    }
+
     @Override
     public int hashCode() {
-        return Objects.hash(this.blocks, this.entities, this.chunktag);
+        return Objects.hash(this.flatBlocks(), this.flatEntities(), this.chunktag);
     }
 
     @Override
@@ -264,7 +1040,7 @@ public final class ChunkCompoundTag implements Tag {
         if (!(obj instanceof ChunkCompoundTag))
             return false;
         ChunkCompoundTag that = (ChunkCompoundTag) obj;
-        return this.blocks.equals(that.blocks) && this.entities.equals(that.entities) && this.chunktag.equals(that.chunktag);
+        return this.flatBlocks().equals(that.flatBlocks()) && this.flatEntities().equals(that.flatEntities()) && this.chunktag.equals(that.chunktag);
     }
 }
 
@@ -14,16 +14,43 @@ public final class CompoundTag implements CollectionTag {
      * The maximum depth.
      */
     public static final int MAX_DEPTH = 512;
+    /**
+     * Up to this many entries a compound keeps them in a {@link TagArrayMap}, past it in a hash map.
+     */
+    static final int SMALL_THRESHOLD = 8;
+    /**
+     * Past this many entries a snapshotted compound keeps them in a {@link TagTrie}.
+     */
+    static final int TRIE_THRESHOLD = 32;
     /**
      * The map of tags.
      */
-    private final Map<String, Tag> tags = new HashMap<>();
+    private Map<String, Tag> tags = new TagArrayMap();
+    /**
+     * The owner of this compound and of the tags put in it, {@code null} until there is one.
+     */
+    private TagOwner owner;
+    /**
+     * The version of {@link #owner} {@link #tags} was last copied under, a snapshot taken since may share them.
+     */
+    private int version;
+    /**
+     * If this compound was snapshotted, large ones then keep their entries in a {@link TagTrie}.
+     */
+    private boolean snapshotted;
+    /**
+     * The snapshot this compound belongs to, until the compounds, lists and arrays in it are taken from it.
+     */
+    private volatile TagSnapshot view;
 
     /**
      * Clear the tag.
      */
     public void clear() {
-        tags.clear();
+        if (this.own() || !(this.tags instanceof TagArrayMap))
+            this.tags = new TagArrayMap();
+        else
+            this.tags.clear();
     }
 
     /**
@@ -33,6 +60,7 @@ public final class CompoundTag implements CollectionTag {
      * @return the tag, or {@code null}
      */
     public Tag get(final String key) {
+        this.resolve();
         return this.tags.get(key);
     }
 
@@ -43,7 +71,15 @@ public final class CompoundTag implements CollectionTag {
      * @param tag the tag
      */
     public Tag put(final String key, final Tag tag) {
-        return this.tags.put(key, tag);
+        final String canonical = TagKeys.intern(key); // one instance per key, shared with decoded tags
+        final Map<String, Tag> tags = this.tags();
+        this.claim(tag);
+        if (tags instanceof TagArrayMap) {
+            if (tags.size() >= SMALL_THRESHOLD && !tags.containsKey(canonical))
+                this.tags = new HashMap<>(tags);
+        } else if (this.snapshotted && !(tags instanceof TagTrie) && tags.size() >= TRIE_THRESHOLD)
+            this.tags = new TagTrie(tags);
+        return this.tags.put(canonical, tag);
     }
 
     /**
@@ -52,7 +88,153 @@ public final class CompoundTag implements CollectionTag {
      * @param key the key
      */
     public void remove(final String key) {
-        this.tags.remove(key);
+        if (this.tags.containsKey(key))
+            this.tags().remove(key);
+    }
+
+    /**
+     * Takes a snapshot in O(1), it has the same tags and changing either does not change the other,
+     * neither through the compounds themselves nor through any tag taken out of them, before or after.
+     * <p>
+     * Both share the entries, the first to change copies them, a large compound only the path to the change.
+     * The compounds, lists and arrays inside are shared the same way one level at a time: the live ones stay
+     * where they are, and the snapshot makes its own out of them when it reaches them. See {@link TagSnapshot}.
+     * An array taken out of the live compound before the snapshot and changed in place after it, without taking
+     * it out again, may still be seen changed by the snapshot.
+     *
+     * @return the snapshot
+     */
+    public CompoundTag snapshot() {
+        return this.viewIn(this.owner().snapshot());
+    }
+
+    /**
+     * @return the compound standing for this one in {@code snapshot}
+     */
+    CompoundTag viewIn(final TagSnapshot snapshot) {
+        this.resolve(); // what is shared is never left to resolve against another snapshot
+        final CompoundTag view = new CompoundTag();
+        synchronized (snapshot) {
+            final Object kept = snapshot.kept(this);
+            view.tags = kept != null ? castTags(kept) : this.tags;
+        }
+        view.owner = snapshot.owner();
+        view.version = -1; // shared, copied before it changes
+        view.snapshotted = true;
+        view.view = snapshot;
+        return view;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Tag> castTags(final Object tags) {
+        return (Map<String, Tag>) tags;
+    }
+
+    /**
+     * Takes the compounds, lists and arrays of a snapshot out of it, as they were when it was taken.
+     */
+    private void resolve() {
+        if (this.view == null)
+            return;
+        synchronized (this) {
+            final TagSnapshot view = this.view;
+            if (view == null)
+                return;
+            Map<String, Tag> resolved = null;
+            for (Map.Entry<String, Tag> entry : this.tags.entrySet()) {
+                final Tag tag = entry.getValue();
+                final Tag taken = view.take(tag);
+                if (taken != tag) {
+                    if (resolved == null)
+                        resolved = copyOf(this.tags); // still shared
+                    resolved.put(entry.getKey(), taken);
+                }
+            }
+            if (resolved != null)
+                this.tags = resolved;
+            this.view = null;
+        }
+    }
+
+    /**
+     * Leaves the tags to the snapshots taken since they were last copied, if any.
+     *
+     * @return {@code true} if the tags may be shared, they must be replaced rather than changed then
+     */
+    private boolean own() {
+        this.resolve();
+        if (this.owner == null)
+            return false;
+        final TagOwner owner = this.owner = this.owner.root();
+        final int version = owner.version();
+        if (this.version == version)
+            return false;
+        final Map<String, Tag> tags = this.tags;
+        owner.freeze(this, this.version, () -> tags);
+        this.version = version;
+        return true;
+    }
+
+    /**
+     * @return the tags, copied first if they may be shared with a snapshot
+     */
+    private Map<String, Tag> tags() {
+        if (this.own()) {
+            this.tags = copyOf(this.tags);
+            this.snapshotted = true;
+        }
+        return this.tags;
+    }
+
+    private static Map<String, Tag> copyOf(final Map<String, Tag> tags) {
+        if (tags instanceof TagTrie)
+            return ((TagTrie) tags).fork();
+        if (tags.size() <= SMALL_THRESHOLD)
+            return new TagArrayMap(tags);
+        return tags.size() > TRIE_THRESHOLD ? new TagTrie(tags) : new HashMap<>(tags);
+    }
+
+    /**
+     * @return the owner of this compound, made on first use
+     */
+    TagOwner owner() {
+        if (this.owner == null)
+            this.owner = new TagOwner(); // version 0, as this one
+        return this.owner = this.owner.root();
+    }
+
+    /**
+     * Puts this compound, and the tags in it, under {@code owner}.
+     */
+    void join(final TagOwner owner) {
+        if (this.owner == null) {
+            this.owner = owner.root();
+            this.version = this.owner.version(); // nothing was shared yet
+        } else
+            this.owner = TagOwner.union(owner, this.owner);
+    }
+
+    /**
+     * Puts a tag about to be put in this compound under its owner, before it is filled so nothing needs to be joined later.
+     */
+    void claim(final Tag tag) {
+        if (TagOwner.isOwned(tag))
+            TagOwner.join(this.owner(), tag);
+    }
+
+    /**
+     * @return how many entries fit in this compound's packed arrays, or {@code -1} if it keeps a hash map or a trie
+     */
+    int packedCapacity() {
+        return this.tags instanceof TagArrayMap ? ((TagArrayMap) this.tags).capacity() : -1;
+    }
+
+    /**
+     * @return the entries as they are, they must not be changed
+     */
+    Set<Map.Entry<String, Tag>> entries() {
+        this.resolve();
+        return this.tags.entrySet();
     }
 
     /**
@@ -81,15 +263,15 @@ public final class CompoundTag implements CollectionTag {
      * @return a set of keys
      */
     public Set<String> keySet() {
-        return this.tags.keySet();
+        return this.tags().keySet();
     }
 
     public Set<Map.Entry<String, Tag>> entrySet() {
-        return this.tags.entrySet();
+        return this.tags().entrySet();
     }
 
     public Collection<Tag> values() {
-        return this.tags.values();
+        return this.tags().values();
     }
 
     /**
@@ -101,7 +283,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public boolean contains(final String key, final TagType type) {
         final Tag tag = this.tags.get(key);
-        return tag != null && type.test(this.tags.get(key).type());
+        return tag != null && type.test(tag.type());
     }
 
     /**
@@ -136,7 +318,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public byte getByte(final String key, final byte defaultValue) {
         if (this.contains(key, TagType.BYTE)) {
-            return ((NumberTag) this.tags.get(key)).byteValue();
+            return ((NumberTag) this.get(key)).byteValue();
         }
         return defaultValue;
     }
@@ -148,7 +330,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public byte putByte(final String key, final byte value) {
-        this.tags.put(key, new ByteTag(value));
+        this.put(key, new ByteTag(value));
         return value;
     }
 
@@ -173,7 +355,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public short getShort(final String key, final short defaultValue) {
         if (this.contains(key, TagType.SHORT)) {
-            return ((NumberTag) this.tags.get(key)).shortValue();
+            return ((NumberTag) this.get(key)).shortValue();
         }
         return defaultValue;
     }
@@ -185,7 +367,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public short putShort(final String key, final short value) {
-        this.tags.put(key, new ShortTag(value));
+        this.put(key, new ShortTag(value));
         return value;
     }
 
@@ -210,7 +392,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public int getInt(final String key, final int defaultValue) {
         if (this.contains(key, TagType.INT)) {
-            return ((NumberTag) this.tags.get(key)).intValue();
+            return ((NumberTag) this.get(key)).intValue();
         }
         return defaultValue;
     }
@@ -222,7 +404,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public int putInt(final String key, final int value) {
-        this.tags.put(key, new IntTag(value));
+        this.put(key, new IntTag(value));
         return value;
     }
 
@@ -247,7 +429,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public long getLong(final String key, final long defaultValue) {
         if (this.contains(key, TagType.LONG)) {
-            return ((NumberTag) this.tags.get(key)).longValue();
+            return ((NumberTag) this.get(key)).longValue();
         }
         return defaultValue;
     }
@@ -259,7 +441,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public long putLong(final String key, final long value) {
-        this.tags.put(key, new LongTag(value));
+        this.put(key, new LongTag(value));
         return value;
     }
 
@@ -284,7 +466,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public float getFloat(final String key, final float defaultValue) {
         if (this.contains(key, TagType.FLOAT)) {
-            return ((NumberTag) this.tags.get(key)).floatValue();
+            return ((NumberTag) this.get(key)).floatValue();
         }
         return defaultValue;
     }
@@ -296,7 +478,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public float putFloat(final String key, final float value) {
-        this.tags.put(key, new FloatTag(value));
+        this.put(key, new FloatTag(value));
         return value;
     }
 
@@ -321,7 +503,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public double getDouble(final String key, final double defaultValue) {
         if (this.contains(key, TagType.DOUBLE)) {
-            return ((NumberTag) this.tags.get(key)).doubleValue();
+            return ((NumberTag) this.get(key)).doubleValue();
         }
         return defaultValue;
     }
@@ -333,7 +515,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public double putDouble(final String key, final double value) {
-        this.tags.put(key, new DoubleTag(value));
+        this.put(key, new DoubleTag(value));
         return value;
     }
 
@@ -346,7 +528,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public byte[] getByteArray(final String key) {
         if (this.contains(key, TagType.BYTE_ARRAY)) {
-            return ((ByteArrayTag) this.tags.get(key)).value();
+            return ((ByteArrayTag) this.get(key)).value();
         }
         return new byte[0];
     }
@@ -360,7 +542,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public byte[] getByteArray(final String key, final byte[] defaultValue) {
         if (this.contains(key, TagType.BYTE_ARRAY)) {
-            return ((ByteArrayTag) this.tags.get(key)).value();
+            return ((ByteArrayTag) this.get(key)).value();
         }
         return defaultValue;
     }
@@ -372,7 +554,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public byte[] putByteArray(final String key, final byte[] value) {
-        this.tags.put(key, new ByteArrayTag(value));
+        this.put(key, new ByteArrayTag(value));
         return value;
     }
 
@@ -397,7 +579,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public String getString(final String key, final String defaultValue) {
         if (this.contains(key, TagType.STRING)) {
-            return ((StringTag) this.tags.get(key)).value();
+            return ((StringTag) this.get(key)).value();
         }
         return defaultValue;
     }
@@ -409,7 +591,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public String putString(final String key, final String value) {
-        this.tags.put(key, new StringTag(value));
+        this.put(key, new StringTag(value));
         return value;
     }
 
@@ -422,7 +604,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public ListTag getList(final String key) {
         if (this.contains(key, TagType.LIST)) {
-            return (ListTag) this.tags.get(key);
+            return (ListTag) this.get(key);
         }
         return new ListTag();
     }
@@ -480,7 +662,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public ListTag getList(final String key, final ListTag defaultValue) {
         if (this.contains(key, TagType.LIST)) {
-            return (ListTag) this.tags.get(key);
+            return (ListTag) this.get(key);
         }
         return defaultValue;
     }
@@ -494,7 +676,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public CompoundTag getCompound(final String key) {
         if (this.contains(key, TagType.COMPOUND)) {
-            return (CompoundTag) this.tags.get(key);
+            return (CompoundTag) this.get(key);
         }
         return new CompoundTag();
     }
@@ -509,7 +691,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public CompoundTag getCompound(final String key, final CompoundTag defaultValue) {
         if (this.contains(key, TagType.COMPOUND)) {
-            return (CompoundTag) this.tags.get(key);
+            return (CompoundTag) this.get(key);
         }
         return defaultValue;
     }
@@ -521,7 +703,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public CompoundTag putCompound(final String key, final CompoundTag value) {
-        this.tags.put(key, value);
+        this.put(key, value);
         return value;
     }
 
@@ -534,7 +716,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public ChunkCompoundTag getChunkCompound(final String key) {
         if (this.contains(key, TagType.CHUNK_COMPOUND)) {
-            return (ChunkCompoundTag) this.tags.get(key);
+            return (ChunkCompoundTag) this.get(key);
         }
         return new ChunkCompoundTag();
     }
@@ -548,7 +730,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public int[] getIntArray(final String key) {
         if (this.contains(key, TagType.INT_ARRAY)) {
-            return ((IntArrayTag) this.tags.get(key)).value();
+            return ((IntArrayTag) this.get(key)).value();
         }
         return new int[0];
     }
@@ -562,7 +744,7 @@ public final class CompoundTag implements CollectionTag {
      */
     public int[] getIntArray(final String key, final int[] defaultValue) {
         if (this.contains(key, TagType.INT_ARRAY)) {
-            return ((IntArrayTag) this.tags.get(key)).value();
+            return ((IntArrayTag) this.get(key)).value();
         }
         return defaultValue;
     }
@@ -574,7 +756,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public int[] putIntArray(final String key, final int[] value) {
-        this.tags.put(key, new IntArrayTag(value));
+        this.put(key, new IntArrayTag(value));
         return value;
     }
 
@@ -586,8 +768,8 @@ public final class CompoundTag implements CollectionTag {
      * with the specified key, or has a tag with a different type
      */
     public long[] getLongArray(final String key) {
-        if (this.contains(key, TagType.BYTE_ARRAY)) {
-            return ((LongArrayTag) this.tags.get(key)).value();
+        if (this.contains(key, TagType.LONG_ARRAY)) {
+            return ((LongArrayTag) this.get(key)).value();
         }
         return new long[0];
     }
@@ -600,8 +782,8 @@ public final class CompoundTag implements CollectionTag {
      * @return the array of longs, or {@code defaultValue}
      */
     public long[] getLongArray(final String key, final long[] defaultValue) {
-        if (this.contains(key, TagType.BYTE_ARRAY)) {
-            return ((LongArrayTag) this.tags.get(key)).value();
+        if (this.contains(key, TagType.LONG_ARRAY)) {
+            return ((LongArrayTag) this.get(key)).value();
         }
         return defaultValue;
     }
@@ -613,7 +795,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public long[] putLongArray(final String key, final long[] value) {
-        this.tags.put(key, new LongArrayTag(value));
+        this.put(key, new LongArrayTag(value));
         return value;
     }
 
@@ -625,8 +807,8 @@ public final class CompoundTag implements CollectionTag {
      * with the specified key, or has a tag with a different type
      */
     public String[] getStringArray(final String key) {
-        if (this.contains(key, TagType.BYTE_ARRAY)) {
-            return ((StringArrayTag) this.tags.get(key)).value();
+        if (this.contains(key, TagType.STRING_ARRAY)) {
+            return ((StringArrayTag) this.get(key)).value();
         }
         return new String[0];
     }
@@ -639,8 +821,8 @@ public final class CompoundTag implements CollectionTag {
      * @return the array of strings, or {@code defaultValue}
      */
     public String[] getStringArray(final String key, final String[] defaultValue) {
-        if (this.contains(key, TagType.BYTE_ARRAY)) {
-            return ((StringArrayTag) this.tags.get(key)).value();
+        if (this.contains(key, TagType.STRING_ARRAY)) {
+            return ((StringArrayTag) this.get(key)).value();
         }
         return defaultValue;
     }
@@ -652,7 +834,7 @@ public final class CompoundTag implements CollectionTag {
      * @param value the value
      */
     public String[] putStringArray(final String key, final String[] value) {
-        this.tags.put(key, new StringArrayTag(value));
+        this.put(key, new StringArrayTag(value));
         return value;
     }
 
@@ -860,25 +1042,33 @@ public final class CompoundTag implements CollectionTag {
     /**
      * Gets a unique id.
      *
-     * <p>A unique id is stored as two {@code long}s internally.</p>
+     * <p>A unique id is stored as two {@code long}s in {@link TagFormat#V3}, or as a string, both forms are read.</p>
      *
      * @param key the key
      * @return the unique id
      */
     public UUID getUniqueId(final String key) {
-        return UUID.fromString(this.getString(key + "UUIDHash"));
+        final String hashKey = key + "UUIDHash";
+        final long[] bits = this.getLongArray(hashKey);
+        if (bits.length == 2)
+            return new UUID(bits[0], bits[1]);
+        return UUID.fromString(this.getString(hashKey));
     }
 
     /**
      * Inserts a unique id.
      *
-     * <p>A unique id is stored as two {@code long}s internally.</p>
+     * <p>A unique id is stored as two {@code long}s once chunks are written in {@link TagFormat#V3}, under the same key
+     * older versions keep its string. In earlier formats it stays a string, so older versions can still read it.</p>
      *
      * @param key   the key
      * @param value the value
      */
     public UUID putUniqueId(final String key, final UUID value) {
-        this.putString(key + "UUIDHash", value.toString());
+        if (TagIO.getChunkFormat() == TagFormat.V3)
+            this.putLongArray(key + "UUIDHash", new long[]{value.getMostSignificantBits(), value.getLeastSignificantBits()});
+        else
+            this.putString(key + "UUIDHash", value.toString());
         return value;
     }
 
@@ -889,7 +1079,8 @@ public final class CompoundTag implements CollectionTag {
      * @return {@code true} if this compound has a unique id tag with the specified key
      */
     public boolean containsUniqueId(final String key) {
-        return this.contains(key + "UUIDHash", TagType.STRING);
+        final String hashKey = key + "UUIDHash";
+        return this.contains(hashKey, TagType.LONG_ARRAY) || this.contains(hashKey, TagType.STRING);
     }
 
     @Override
@@ -899,16 +1090,17 @@ public final class CompoundTag implements CollectionTag {
         }
         TagType type;
         while ((type = TagType.of(input.readByte())) != TagType.END) {
-            final String key = input.readUTF();
+            final String key = TagKeys.readClassic(input);
             final Tag tag = type.create();
+            this.claim(tag);
             tag.read(input, depth + 1);
-            this.tags.put(key, tag);
+            this.put(key, tag);
         }
     }
 
     @Override
     public void write(final DataOutput output) throws IOException {
-        for (Map.Entry<String, Tag> tagsEntry : this.tags.entrySet()) {
+        for (Map.Entry<String, Tag> tagsEntry : this.entries()) { // read only, nothing is handed out
             final Tag tag = tagsEntry.getValue();
             if (tag instanceof CollectionTag)
                 if (((CollectionTag) tag).isEmpty())
@@ -931,27 +1123,36 @@ public final class CompoundTag implements CollectionTag {
     @Override
     public CompoundTag copy() {
         final CompoundTag copy = new CompoundTag();
-        this.tags.forEach((key, value) -> copy.put(key, value.copy()));
+        for (Map.Entry<String, Tag> entry : this.entries())
+            copy.put(entry.getKey(), entry.getValue().copy());
         return copy;
     }
 
     public void forEach(BiConsumer<? super String, ? super Tag> action) {
-        for (Map.Entry<String, Tag> entry : this.tags.entrySet()) {
+        for (Map.Entry<String, Tag> entry : this.entrySet()) {
             action.accept(entry.getKey(), entry.getValue());
         }
     }
 
     public void copyFrom(CompoundTag from) {
-        from.forEach((key, value) -> this.tags.put(key, value.copy()));
+        for (Map.Entry<String, Tag> entry : from.entries())
+            this.put(entry.getKey(), entry.getValue().copy());
     }
 
     @Override
     public int hashCode() {
+        this.resolve();
         return this.tags.hashCode();
     }
 
     @Override
     public boolean equals(final Object that) {
-        return this == that || (that instanceof CompoundTag && this.tags.equals(((CompoundTag) that).tags));
+        if (this == that)
+            return true;
+        if (!(that instanceof CompoundTag))
+            return false;
+        this.resolve();
+        ((CompoundTag) that).resolve();
+        return this.tags.equals(((CompoundTag) that).tags);
     }
 }
@@ -20,11 +20,23 @@ public final class ListTag extends AbstractList<Tag> implements IndexedCollectio
     /**
      * The list of tags.
      */
-    private final List<Tag> tags = new ArrayList<>();
+    private List<Tag> tags = new ArrayList<>();
     /**
      * The type of this list.
      */
     private TagType type;
+    /**
+     * The owner of this list and of the tags put in it, {@code null} until there is one, see {@link CompoundTag#snapshot()}.
+     */
+    private TagOwner owner;
+    /**
+     * The version of {@link #owner} {@link #tags} was last copied under, a snapshot taken since may share them.
+     */
+    private int version;
+    /**
+     * The snapshot this list belongs to, until the compounds, lists and arrays in it are taken from it.
+     */
+    private volatile TagSnapshot view;
 
     public ListTag() {
         this(TagType.END);
@@ -94,9 +106,125 @@ public final class ListTag extends AbstractList<Tag> implements IndexedCollectio
      */
     @Override
     public Tag get(final int index) {
+        this.resolve();
         return this.tags.get(index);
     }
 
+    /**
+     * Takes a snapshot in O(1), see {@link CompoundTag#snapshot()}.
+     *
+     * @return the snapshot
+     */
+    public ListTag snapshot() {
+        return this.viewIn(this.owner().snapshot());
+    }
+
+    /**
+     * @return the list standing for this one in {@code snapshot}
+     */
+    ListTag viewIn(final TagSnapshot snapshot) {
+        this.resolve();
+        final ListTag kept;
+        synchronized (snapshot) {
+            final Object state = snapshot.kept(this);
+            kept = state != null ? (ListTag) state : this.state();
+        }
+        final ListTag view = new ListTag(kept.type);
+        view.tags = kept.tags;
+        view.owner = snapshot.owner();
+        view.version = -1; // shared, copied before it changes
+        view.view = snapshot;
+        return view;
+    }
+
+    /**
+     * @return a list holding the tags and the type of this one as they are, for a snapshot to keep
+     */
+    private ListTag state() {
+        final ListTag state = new ListTag(this.type);
+        state.tags = this.tags;
+        return state;
+    }
+
+    /**
+     * Takes the compounds, lists and arrays of a snapshot out of it, see {@link CompoundTag#snapshot()}.
+     */
+    private void resolve() {
+        if (this.view == null)
+            return;
+        synchronized (this) {
+            final TagSnapshot view = this.view;
+            if (view == null)
+                return;
+            List<Tag> resolved = null;
+            for (int i = 0; i < this.tags.size(); i++) {
+                final Tag tag = this.tags.get(i);
+                final Tag taken = view.take(tag);
+                if (taken != tag) {
+                    if (resolved == null)
+                        resolved = new ArrayList<>(this.tags); // still shared
+                    resolved.set(i, taken);
+                }
+            }
+            if (resolved != null)
+                this.tags = resolved;
+            this.view = null;
+        }
+    }
+
+    /**
+     * @return the tags, copied first if they may be shared with a snapshot
+     */
+    private List<Tag> tags() {
+        this.resolve();
+        if (this.owner != null) {
+            final TagOwner owner = this.owner = this.owner.root();
+            final int version = owner.version();
+            if (this.version != version) {
+                owner.freeze(this, this.version, this::state);
+                this.tags = new ArrayList<>(this.tags);
+                this.version = version;
+            }
+        }
+        return this.tags;
+    }
+
+    /**
+     * @return the owner of this list, made on first use
+     */
+    TagOwner owner() {
+        if (this.owner == null)
+            this.owner = new TagOwner();
+        return this.owner = this.owner.root();
+    }
+
+    /**
+     * Puts this list, and the tags in it, under {@code owner}.
+     */
+    void join(final TagOwner owner) {
+        if (this.owner == null) {
+            this.owner = owner.root();
+            this.version = this.owner.version();
+        } else
+            this.owner = TagOwner.union(owner, this.owner);
+    }
+
+    /**
+     * Puts a tag about to be put in this list under its owner, see {@link CompoundTag#claim(Tag)}.
+     */
+    void claim(final Tag tag) {
+        if (TagOwner.isOwned(tag))
+            TagOwner.join(this.owner(), tag);
+    }
+
+    /**
+     * @return the tags as they are, they must not be changed
+     */
+    List<Tag> elements() {
+        this.resolve();
+        return this.tags;
+    }
+
     /**
      * Gets a byte.
      *
@@ -400,10 +528,12 @@ public final class ListTag extends AbstractList<Tag> implements IndexedCollectio
             throw new IllegalArgumentException(String.format("Cannot add a '%s' to a '%s'", EndTag.class.getSimpleName(), ListTag.class.getSimpleName()));
         }
         // set the type if it has not yet been set
+        final List<Tag> tags = this.tags(); // before the type may change, a snapshot keeps it
         if (this.type == TagType.END) {
             this.type = tag.type();
         }
-        this.tags.add(tag);
+        this.claim(tag);
+        tags.add(tag);
         return true;
     }
 
@@ -421,10 +551,12 @@ public final class ListTag extends AbstractList<Tag> implements IndexedCollectio
             throw new IllegalArgumentException(String.format("Cannot add a '%s' to a '%s'", EndTag.class.getSimpleName(), ListTag.class.getSimpleName()));
         }
         // set the type if it has not yet been set
+        final List<Tag> tags = this.tags();
         if (this.type == TagType.END) {
             this.type = tag.type();
         }
-        return this.tags.set(index, tag);
+        this.claim(tag);
+        return tags.set(index, tag);
     }
 
     /**
@@ -436,7 +568,7 @@ public final class ListTag extends AbstractList<Tag> implements IndexedCollectio
      */
     @Override
     public Tag remove(final int index) {
-        return this.tags.remove(index);
+        return this.tags().remove(index);
     }
 
     @Override
@@ -460,8 +592,9 @@ public final class ListTag extends AbstractList<Tag> implements IndexedCollectio
         final int length = input.readInt();
         for (int i = 0; i < length; i++) {
             final Tag tag = this.type.create();
+            this.claim(tag);
             tag.read(input, depth + 1);
-            this.tags.add(tag);
+            this.tags().add(tag);
         }
     }
 
@@ -469,7 +602,7 @@ public final class ListTag extends AbstractList<Tag> implements IndexedCollectio
     public void write(final DataOutput output) throws IOException {
         output.writeByte(this.type.id());
         output.writeInt(this.tags.size());
-        for (Tag tag : this.tags) {
+        for (Tag tag : this.elements()) {
             tag.write(output);
         }
     }
@@ -482,19 +615,21 @@ public final class ListTag extends AbstractList<Tag> implements IndexedCollectio
     @Override
     public ListTag copy() {
         final ListTag copy = new ListTag(this.type);
-        for (final Tag tag : this.tags) {
-            copy.tags.add(tag.copy()); // add directly to list, we can skip sanity checks
+        for (final Tag tag : this.elements()) {
+            final Tag copied = tag.copy();
+            copy.claim(copied);
+            copy.tags.add(copied); // add directly to list, we can skip sanity checks
         }
         return copy;
     }
 
     @Override
     public int hashCode() {
-        return this.tags.hashCode();
+        return this.elements().hashCode();
     }
 
     @Override
     public boolean equals(final Object that) {
-        return this == that || (that instanceof ListTag && this.tags.equals(((ListTag) that).tags));
+        return this == that || (that instanceof ListTag && this.elements().equals(((ListTag) that).elements()));
     }
 }
@@ -14,6 +14,14 @@ public final class StringArrayTag extends AbstractList<StringTag> implements Ind
      * The array of strings.
      */
     private String[] value;
+    /**
+     * The owner of the tag this array was put in, {@code null} until there is one, see {@link CompoundTag#snapshot()}.
+     */
+    private TagOwner owner;
+    /**
+     * The version of {@link #owner} the array was last handed out under.
+     */
+    private int version;
 
     public StringArrayTag() {
     }
@@ -38,9 +46,43 @@ public final class StringArrayTag extends AbstractList<StringTag> implements Ind
      * @return the array of strings
      */
     public String[] value() {
+        if (this.owner != null) {
+            final TagOwner owner = this.owner = this.owner.root();
+            final int version = owner.version();
+            if (this.version != version) {
+                final String[] value = this.value;
+                owner.freeze(this, this.version, value::clone); // it may be changed in place from now on
+                this.version = version;
+            }
+        }
         return this.value;
     }
 
+    /**
+     * @return the array standing for this one in {@code snapshot}, a copy
+     */
+    StringArrayTag viewIn(final TagSnapshot snapshot) {
+        final String[] value;
+        synchronized (snapshot) {
+            final Object kept = snapshot.kept(this);
+            value = kept != null ? (String[]) kept : this.value;
+        }
+        final StringArrayTag view = new StringArrayTag(value.clone());
+        view.join(snapshot.owner());
+        return view;
+    }
+
+    /**
+     * Puts this array under {@code owner}.
+     */
+    void join(final TagOwner owner) {
+        if (this.owner == null) {
+            this.owner = owner.root();
+            this.version = this.owner.version();
+        } else
+            this.owner = TagOwner.union(owner, this.owner);
+    }
+
     @Override
     public void read(final DataInput input, final int depth) throws IOException {
         final int length = input.readInt();
@@ -0,0 +1,183 @@
+package ro.nicuch.tag.nbt;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * The entries of a small {@link CompoundTag}, keys and values packed in one array.
+ * <p>
+ * Lookups walk the entries comparing each key by identity, then by its cached hash before equals,
+ * which is as fast as hashing into a table for the few keys most block tags have and takes far less memory. {@link CompoundTag} moves the entries to a hash map once it grows
+ * past {@link CompoundTag#SMALL_THRESHOLD}, this map itself grows without bound.
+ */
+final class TagArrayMap extends AbstractMap<String, Tag> {
+    private static final Object[] NO_ENTRIES = new Object[0];
+    private static final int[] NO_HASHES = new int[0];
+
+    private Object[] entries = NO_ENTRIES; // the key and the value of each entry, in insertion order
+    private int[] hashes = NO_HASHES; // the hash of each key
+    private int size;
+
+    TagArrayMap() {
+    }
+
+    TagArrayMap(final Map<String, Tag> from) {
+        if (from instanceof TagArrayMap) {
+            final TagArrayMap map = (TagArrayMap) from;
+            this.entries = Arrays.copyOf(map.entries, 2 * map.size);
+            this.hashes = Arrays.copyOf(map.hashes, map.size);
+            this.size = map.size;
+        } else
+            from.forEach(this::put);
+    }
+
+    private int indexOf(final Object key) {
+        final Object[] entries = this.entries;
+        final int[] hashes = this.hashes;
+        final int hash = key.hashCode(); // cached by the string
+        for (int i = 0; i < this.size; i++) {
+            final Object entryKey = entries[2 * i];
+            if (entryKey == key || (hashes[i] == hash && key.equals(entryKey)))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return key instanceof String && this.indexOf(key) >= 0;
+    }
+
+    @Override
+    public Tag get(final Object key) {
+        if (!(key instanceof String))
+            return null;
+        final int i = this.indexOf(key);
+        return i < 0 ? null : (Tag) this.entries[2 * i + 1];
+    }
+
+    @Override
+    public Tag put(final String key, final Tag value) {
+        final int i = this.indexOf(key);
+        if (i >= 0) {
+            final Tag previous = (Tag) this.entries[2 * i + 1];
+            this.entries[2 * i + 1] = value;
+            return previous;
+        }
+        if (this.size == this.hashes.length) {
+            final int capacity = Math.max(2, 2 * this.size);
+            this.entries = Arrays.copyOf(this.entries, 2 * capacity);
+            this.hashes = Arrays.copyOf(this.hashes, capacity);
+        }
+        this.entries[2 * this.size] = key;
+        this.entries[2 * this.size + 1] = value;
+        this.hashes[this.size++] = key.hashCode();
+        return null;
+    }
+
+    @Override
+    public Tag remove(final Object key) {
+        if (!(key instanceof String))
+            return null;
+        final int i = this.indexOf(key);
+        if (i < 0)
+            return null;
+        final Tag previous = (Tag) this.entries[2 * i + 1];
+        this.removeAt(i);
+        return previous;
+    }
+
+    private void removeAt(final int i) {
+        final int moved = this.size - i - 1;
+        System.arraycopy(this.entries, 2 * i + 2, this.entries, 2 * i, 2 * moved);
+        System.arraycopy(this.hashes, i + 1, this.hashes, i, moved);
+        this.size--;
+        this.entries[2 * this.size] = null;
+        this.entries[2 * this.size + 1] = null;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.entries, 0, 2 * this.size, null);
+        this.size = 0;
+    }
+
+    @Override
+    public void forEach(final BiConsumer<? super String, ? super Tag> action) {
+        for (int i = 0; i < this.size; i++)
+            action.accept((String) this.entries[2 * i], (Tag) this.entries[2 * i + 1]);
+    }
+
+    /**
+     * @return how many entries fit before the arrays grow, for size estimates
+     */
+    int capacity() {
+        return this.hashes.length;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Tag>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Tag>>() {
+            @Override
+            public Iterator<Map.Entry<String, Tag>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return TagArrayMap.this.size;
+            }
+        };
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, Tag>> {
+        private int next;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return this.next < TagArrayMap.this.size;
+        }
+
+        @Override
+        public Map.Entry<String, Tag> next() {
+            if (this.next >= TagArrayMap.this.size)
+                throw new NoSuchElementException();
+            this.last = this.next++;
+            return new Entry(this.last);
+        }
+
+        @Override
+        public void remove() {
+            if (this.last < 0)
+                throw new IllegalStateException();
+            TagArrayMap.this.removeAt(this.last);
+            this.next = this.last;
+            this.last = -1;
+        }
+    }
+
+    /**
+     * An entry reading through to the arrays, valid until the map is changed by something else than its {@link #setValue(Tag)}.
+     */
+    private final class Entry extends AbstractMap.SimpleEntry<String, Tag> {
+        private static final long serialVersionUID = 1L;
+        private final int index;
+
+        private Entry(final int index) {
+            super((String) TagArrayMap.this.entries[2 * index], (Tag) TagArrayMap.this.entries[2 * index + 1]);
+            this.index = index;
+        }
+
+        @Override
+        public Tag setValue(final Tag value) {
+            TagArrayMap.this.entries[2 * this.index + 1] = value;
+            return super.setValue(value);
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package ro.nicuch.tag.nbt;
+
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Reads and writes tag payloads in the sized formats, {@link TagFormat#V2} and later.
+ * <p>
+ * Ints, shorts of lengths and counts are zigzag varints, strings are a varint length and UTF-8 bytes.
+ * Compounds and lists start with the varint byte length of their body, so {@link #skip(DataInput, TagType)} never parses them.
+ */
+final class TagCodec {
+    /**
+     * The first byte of a root tag written in a sized format, never a valid type id.
+     */
+    static final byte ROOT_MARKER = (byte) 0x80;
+
+    private TagCodec() {
+    }
+
+    /**
+     * Writes the payload of a tag, a chunk nested in it is written in {@code format} too.
+     */
+    static void write(final Tag tag, final DataOutput output, final TagFormat format) throws IOException {
+        switch (tag.type()) {
+            case END:
+                return;
+            case BYTE:
+                output.writeByte(((NumberTag) tag).byteValue());
+                return;
+            case SHORT:
+                output.writeShort(((NumberTag) tag).shortValue());
+                return;
+            case INT:
+                writeVarInt(output, zigzag(((NumberTag) tag).intValue()));
+                return;
+            case LONG:
+                writeVarLong(output, zigzag(((NumberTag) tag).longValue()));
+                return;
+            case FLOAT:
+                output.writeFloat(((NumberTag) tag).floatValue());
+                return;
+            case DOUBLE:
+                output.writeDouble(((NumberTag) tag).doubleValue());
+                return;
+            case BYTE_ARRAY:
+                writeBytes(output, ((ByteArrayTag) tag).value());
+                return;
+            case BIG_INT:
+                writeBytes(output, ((BigIntegerTag) tag).value().toByteArray());
+                return;
+            case STRING:
+                writeString(output, ((StringTag) tag).value());
+                return;
+            case INT_ARRAY: {
+                final int[] value = ((IntArrayTag) tag).value();
+                writeVarInt(output, value.length);
+                for (int i : value)
+                    writeVarInt(output, zigzag(i));
+                return;
+            }
+            case LONG_ARRAY: {
+                final long[] value = ((LongArrayTag) tag).value();
+                writeVarInt(output, value.length);
+                for (long l : value)
+                    output.writeLong(l); // mostly hashes and bits, varints would only grow them
+                return;
+            }
+            case STRING_ARRAY: {
+                final String[] value = ((StringArrayTag) tag).value();
+                writeVarInt(output, value.length);
+                for (String s : value)
+                    writeString(output, s);
+                return;
+            }
+            case LIST: {
+                final ListTag list = (ListTag) tag;
+                output.writeByte(list.listType().id());
+                final FastByteArrayOutputStream body = new FastByteArrayOutputStream();
+                try (DataOutputStream dos = new DataOutputStream(body)) {
+                    writeVarInt(dos, list.size());
+                    for (Tag element : list.elements())
+                        write(element, dos, format);
+                }
+                writeVarInt(output, body.length);
+                output.write(body.array, 0, body.length);
+                return;
+            }
+            case COMPOUND:
+                writeCompound((CompoundTag) tag, output, format);
+                return;
+            case CHUNK_COMPOUND:
+                ((ChunkCompoundTag) tag).write(output, format);
+                return;
+            default:
+                throw new IOException("Cannot write a " + tag.type() + " tag.");
+        }
+    }
+
+    static void writeCompound(final CompoundTag tag, final DataOutput output, final TagFormat format) throws IOException {
+        final FastByteArrayOutputStream body = new FastByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(body)) {
+            for (Map.Entry<String, Tag> entry : tag.entries()) {
+                final Tag value = entry.getValue();
+                if (value instanceof CollectionTag && ((CollectionTag) value).isEmpty())
+                    continue; //skip empty collection tags
+                if (value.type() == TagType.END)
+                    continue;
+                dos.writeByte(value.type().id());
+                writeString(dos, entry.getKey());
+                write(value, dos, format);
+            }
+            dos.writeByte(TagType.END.id());
+        }
+        writeVarInt(output, body.length);
+        output.write(body.array, 0, body.length);
+    }
+
+    static Tag read(final TagType type, final DataInput input, final int depth) throws IOException {
+        return read(type, input, depth, null);
+    }
+
+    /**
+     * @param parent the compound or list the tag is read for, compounds and lists are put under its owner before they are filled
+     */
+    private static Tag read(final TagType type, final DataInput input, final int depth, final Tag parent) throws IOException {
+        if (depth > CompoundTag.MAX_DEPTH) {
+            throw new IllegalStateException(String.format("Depth of %d is higher than max of %d", depth, CompoundTag.MAX_DEPTH));
+        }
+        switch (type) {
+            case END:
+                return type.create();
+            case BYTE:
+                return new ByteTag(input.readByte());
+            case SHORT:
+                return new ShortTag(input.readShort());
+            case INT:
+                return new IntTag(unzigzag(readVarInt(input)));
+            case LONG:
+                return new LongTag(unzigzag(readVarLong(input)));
+            case FLOAT:
+                return new FloatTag(input.readFloat());
+            case DOUBLE:
+                return new DoubleTag(input.readDouble());
+            case BYTE_ARRAY:
+                return new ByteArrayTag(readBytes(input));
+            case BIG_INT:
+                return new BigIntegerTag(new BigInteger(readBytes(input)));
+            case STRING:
+                return new StringTag(readString(input));
+            case INT_ARRAY: {
+                final int[] value = new int[readVarInt(input)];
+                for (int i = 0; i < value.length; i++)
+                    value[i] = unzigzag(readVarInt(input));
+                return new IntArrayTag(value);
+            }
+            case LONG_ARRAY: {
+                final long[] value = new long[readVarInt(input)];
+                for (int i = 0; i < value.length; i++)
+                    value[i] = input.readLong();
+                return new LongArrayTag(value);
+            }
+            case STRING_ARRAY: {
+                final String[] value = new String[readVarInt(input)];
+                for (int i = 0; i < value.length; i++)
+                    value[i] = readString(input);
+                return new StringArrayTag(value);
+            }
+            case LIST: {
+                final TagType elementType = TagType.of(input.readByte());
+                readVarInt(input); // the body length, only needed to skip
+                final ListTag list = new ListTag(elementType);
+                claim(parent, list);
+                final int size = readVarInt(input);
+                for (int i = 0; i < size; i++)
+                    list.add(read(elementType, input, depth + 1, list));
+                return list;
+            }
+            case COMPOUND: {
+                final CompoundTag compound = new CompoundTag();
+                claim(parent, compound);
+                readCompound(compound, input, depth);
+                return compound;
+            }
+            case CHUNK_COMPOUND: {
+                final ChunkCompoundTag chunk = new ChunkCompoundTag();
+                chunk.read(input, depth); // knows its own format
+                return chunk;
+            }
+            default:
+                throw new IOException("Cannot read a " + type + " tag.");
+        }
+    }
+
+    static void readCompound(final CompoundTag compound, final DataInput input, final int depth) throws IOException {
+        readVarInt(input); // the body length, only needed to skip
+        readCompoundBody(compound, input, depth);
+    }
+
+    /**
+     * Reads the entries of a compound whose length was already read.
+     */
+    static void readCompoundBody(final CompoundTag compound, final DataInput input, final int depth) throws IOException {
+        TagType type;
+        while ((type = TagType.of(input.readByte())) != TagType.END) {
+            final String key = TagKeys.read(input, readVarInt(input), true);
+            compound.put(key, read(type, input, depth + 1, compound));
+        }
+    }
+
+    private static void claim(final Tag parent, final Tag tag) {
+        if (parent instanceof CompoundTag)
+            ((CompoundTag) parent).claim(tag);
+        else if (parent instanceof ListTag)
+            ((ListTag) parent).claim(tag);
+    }
+
+    /**
+     * Skips the payload of a tag without parsing its subtrees.
+     */
+    static void skip(final DataInput input, final TagType type) throws IOException {
+        switch (type) {
+            case END:
+                return;
+            case BYTE:
+                skipBytes(input, 1);
+                return;
+            case SHORT:
+                skipBytes(input, 2);
+                return;
+            case INT:
+                readVarInt(input);
+                return;
+            case LONG:
+                readVarLong(input);
+                return;
+            case FLOAT:
+                skipBytes(input, 4);
+                return;
+            case DOUBLE:
+                skipBytes(input, 8);
+                return;
+            case BYTE_ARRAY:
+            case BIG_INT:
+            case STRING:
+                skipBytes(input, readVarInt(input));
+                return;
+            case INT_ARRAY: {
+                final int length = readVarInt(input);
+                for (int i = 0; i < length; i++)
+                    readVarInt(input);
+                return;
+            }
+            case LONG_ARRAY:
+                skipBytes(input, 8L * readVarInt(input));
+                return;
+            case STRING_ARRAY: {
+                final int length = readVarInt(input);
+                for (int i = 0; i < length; i++)
+                    skipBytes(input, readVarInt(input));
+                return;
+            }
+            case LIST:
+                input.readByte();
+                skipBytes(input, readVarInt(input));
+                return;
+            case COMPOUND:
+                skipBytes(input, readVarInt(input));
+                return;
+            default:
+                throw new IOException("Cannot skip a " + type + " tag.");
+        }
+    }
+
+    static void skipBytes(final DataInput input, long length) throws IOException {
+        if (length < 0)
+            throw new IOException("Negative length " + length + ".");
+        while (length > 0) {
+            int skipped = input.skipBytes((int) Math.min(length, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                input.readByte(); // skipBytes may give up early, make sure the input is not done
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    static void writeString(final DataOutput output, final String value) throws IOException {
+        writeBytes(output, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(final DataInput input) throws IOException {
+        return new String(readBytes(input), StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(final DataOutput output, final byte[] value) throws IOException {
+        writeVarInt(output, value.length);
+        output.write(value);
+    }
+
+    private static byte[] readBytes(final DataInput input) throws IOException {
+        final byte[] value = new byte[readVarInt(input)];
+        input.readFully(value);
+        return value;
+    }
+
+    static void writeVarInt(final DataOutput output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    /**
+     * @return how many bytes {@link #writeVarInt(DataOutput, int)} writes for {@code value}
+     */
+    static int varIntSize(final int value) {
+        int size = 1;
+        for (int rest = value >>> 7; rest != 0; rest >>>= 7)
+            size++;
+        return size;
+    }
+
+    static int readVarInt(final DataInput input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte b = input.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Varint is too long.");
+    }
+
+    static void writeVarLong(final DataOutput output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0L) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    static long readVarLong(final DataInput input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            final byte b = input.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Varlong is too long.");
+    }
+
+    static int zigzag(final int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(final int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
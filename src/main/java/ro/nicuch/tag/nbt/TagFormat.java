@@ -0,0 +1,92 @@
+package ro.nicuch.tag.nbt;
+
+import java.io.IOException;
+
+/**
+ * The wire formats of tags.
+ * <p>
+ * {@link #V1} is the classic NBT stream, a subtree must be parsed to be skipped.
+ * {@link #V2} puts a byte length before every compound and list and writes lengths and ints as varints,
+ * so a subtree is skipped in one step, and a chunk starts with the index of its block sections.
+ * {@link #V3} is {@link #V2} with the entity keys of a chunk written as two longs instead of a string.
+ * All are always readable, the writer picks one.
+ */
+public enum TagFormat {
+    V1((byte) 0), V2((byte) 2), V3((byte) 3);
+
+    private final byte version;
+
+    TagFormat(byte version) {
+        this.version = version;
+    }
+
+    public byte getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @param version the version byte of a format
+     * @return the format
+     * @throws IOException if the version is not known, written by a newer version of the plugin
+     */
+    public static TagFormat valueOf(byte version) throws IOException {
+        switch (version) {
+            case (byte) 0:
+                return TagFormat.V1;
+            case (byte) 2:
+                return TagFormat.V2;
+            case (byte) 3:
+                return TagFormat.V3;
+            default:
+                throw new IOException("Unsupported tag format " + version + ".");
+        }
+    }
+
+    /**
+     * @param name the name of a format, as in the config, like {@code v3}
+     * @return the format
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static TagFormat fromName(String name) {
+        for (TagFormat format : values())
+            if (format.name().equalsIgnoreCase(name))
+                return format;
+        throw new IllegalArgumentException("Unknown tag format " + name + ".");
+    }
+
+    /**
+     * @return {@code true} if compounds and lists carry their length, tags are then encoded the same in every such format,
+     * apart from the chunks nested in them
+     */
+    public boolean isSized() {
+        return this != V1;
+    }
+
+    /**
+     * @param written the format some tag bytes were written in
+     * @return {@code true} if those bytes can be copied as they are into this format, a chunk nested in them
+     * must not be in a format newer than this one
+     */
+    public boolean canCopy(TagFormat written) {
+        return written.isSized() == this.isSized() && written.version <= this.version;
+    }
+
+    /**
+     * Packs this format and a compression id in the version byte of a region file chunk,
+     * the compression keeps the low 4 bits so old chunks read as {@link #V1}.
+     *
+     * @param compression the compression id, see {@link ro.nicuch.tag.nbt.region.RegionFile.CompressionType}
+     * @return the version byte
+     */
+    public byte toRegionVersion(byte compression) {
+        return (byte) ((this.version << 4) | (compression & 0x0F));
+    }
+
+    /**
+     * @param regionVersion the version byte of a region file chunk
+     * @return the format of the chunk
+     */
+    public static TagFormat ofRegionVersion(byte regionVersion) throws IOException {
+        return valueOf((byte) ((regionVersion >> 4) & 0x0F));
+    }
+}
@@ -1,11 +1,31 @@
 package ro.nicuch.tag.nbt;
 
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 public final class TagIO {
+    private static volatile TagFormat chunkFormat = TagFormat.V1;
+
+    /**
+     * @return the format chunk tags are written in
+     */
+    public static TagFormat getChunkFormat() {
+        return chunkFormat;
+    }
+
+    /**
+     * Sets the format chunk tags are written in, chunks in any format can always be read.
+     *
+     * @param format the format
+     */
+    public static void setChunkFormat(final TagFormat format) {
+        chunkFormat = format;
+    }
 
     /**
      * Reads a compound tag from {@code file}.
@@ -88,14 +108,26 @@ public final class TagIO {
     }
 
     /**
-     * Reads a compound tag from {@code input}.
+     * Reads a compound tag from {@code input}, written in any {@link TagFormat}.
      *
      * @param input the input
      * @return the compound tag
      * @throws IOException if an exception was encountered while reading a compound tag
      */
     public static Tag readDataInput(final DataInput input, TagType tagType) throws IOException {
-        TagType type = TagType.of(input.readByte());
+        final byte id = input.readByte();
+        if (id == TagCodec.ROOT_MARKER) {
+            final TagFormat format = TagFormat.valueOf(input.readByte());
+            final TagType type = TagType.of(input.readByte());
+            if (type != tagType) {
+                throw new IOException(String.format("Expected root tag to be a %s, was %s", tagType, type));
+            }
+            if (!format.isSized()) {
+                throw new IOException("Unknown tag format " + format + ".");
+            }
+            return TagCodec.read(type, input, 0);
+        }
+        TagType type = TagType.of(id);
         if (type != tagType) {
             throw new IOException(String.format("Expected root tag to be a %s, was %s", tagType, type));
         }
@@ -105,6 +137,65 @@ public final class TagIO {
         return tag;
     }
 
+    /**
+     * Streams a root tag from {@code input}, written in any {@link TagFormat}, to {@code visitor}.
+     *
+     * @param input   the input
+     * @param visitor the visitor
+     * @return {@code false} if the visitor stopped the read
+     * @throws IOException if an exception was encountered while reading
+     */
+    public static boolean accept(final DataInput input, final TagVisitor visitor) throws IOException {
+        final byte id = input.readByte();
+        if (id == TagCodec.ROOT_MARKER) {
+            final TagFormat format = TagFormat.valueOf(input.readByte());
+            if (!format.isSized()) {
+                throw new IOException("Unknown tag format " + format + ".");
+            }
+            return TagReader.accept(input, TagType.of(input.readByte()), format, visitor);
+        }
+        input.skipBytes(input.readUnsignedShort()); // read empty name
+        return TagReader.accept(input, TagType.of(id), TagFormat.V1, visitor);
+    }
+
+    /**
+     * Streams a root tag from the remaining bytes of {@code buffer} to {@code visitor}, the buffer position is not moved.
+     *
+     * @param buffer  the buffer
+     * @param visitor the visitor
+     * @return {@code false} if the visitor stopped the read
+     * @throws IOException if an exception was encountered while reading
+     */
+    public static boolean accept(final ByteBuffer buffer, final TagVisitor visitor) throws IOException {
+        final byte[] bytes;
+        final int offset;
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            offset = 0;
+        }
+        try (DataInputStream dis = new DataInputStream(new FastByteArrayInputStream(bytes, offset, buffer.remaining()))) {
+            return accept(dis, visitor);
+        }
+    }
+
+    /**
+     * Streams a root tag from the compressed {@code file} to {@code visitor}.
+     *
+     * @param file    the file
+     * @param visitor the visitor
+     * @return {@code false} if the visitor stopped the read
+     * @throws IOException if an exception was encountered while reading
+     */
+    public static boolean acceptCompressedFile(final File file, final TagVisitor visitor) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            return accept(dis, visitor);
+        }
+    }
+
     /**
      * Writes a compound tag to {@code file}.
      *
@@ -193,10 +284,172 @@ public final class TagIO {
      * @throws IOException if an exception was encountered while writing the compound tag
      */
     public static void writeDataOutput(final Tag tag, final DataOutput output) throws IOException {
+        writeDataOutput(tag, output, TagFormat.V1);
+    }
+
+    /**
+     * Writes a compound tag to {@code output} in {@code format}.
+     *
+     * @param tag    the compound tag
+     * @param output the output
+     * @param format the format
+     * @throws IOException if an exception was encountered while writing the compound tag
+     */
+    public static void writeDataOutput(final Tag tag, final DataOutput output, final TagFormat format) throws IOException {
+        if (format.isSized()) {
+            output.writeByte(TagCodec.ROOT_MARKER);
+            output.writeByte(format.getVersion());
+            output.writeByte(tag.type().id());
+            TagCodec.write(tag, output, format);
+            return;
+        }
         output.writeByte(tag.type().id());
         if (tag.type() != TagType.END) {
             output.writeUTF(""); // write empty name
             tag.write(output);
         }
     }
+
+    /**
+     * Skips the payload of a tag of {@code type} without creating it.
+     *
+     * @param input the input
+     * @param type  the type of the tag
+     * @throws IOException if an exception was encountered while reading
+     */
+    public static void skip(final DataInput input, final TagType type) throws IOException {
+        transfer(input, null, type, 0);
+    }
+
+    /**
+     * Skips the payload of a tag of {@code type} written in {@code format}, in sized formats
+     * compounds and lists are skipped without being parsed.
+     *
+     * @param input  the input
+     * @param type   the type of the tag
+     * @param format the format of the tag
+     * @throws IOException if an exception was encountered while reading
+     */
+    public static void skip(final DataInput input, final TagType type, final TagFormat format) throws IOException {
+        if (format.isSized())
+            TagCodec.skip(input, type);
+        else
+            transfer(input, null, type, 0);
+    }
+
+    /**
+     * Copies the payload of a tag of {@code type} from {@code input} to {@code output} without creating it.
+     *
+     * @param input  the input
+     * @param output the output
+     * @param type   the type of the tag
+     * @throws IOException if an exception was encountered while reading or writing
+     */
+    public static void copy(final DataInput input, final DataOutput output, final TagType type) throws IOException {
+        transfer(input, output, type, 0);
+    }
+
+    private static void transfer(final DataInput input, final DataOutput output, final TagType type, final int depth) throws IOException {
+        if (depth > CompoundTag.MAX_DEPTH) {
+            throw new IllegalStateException(String.format("Depth of %d is higher than max of %d", depth, CompoundTag.MAX_DEPTH));
+        }
+        switch (type) {
+            case END:
+                return;
+            case BYTE:
+                transferBytes(input, output, 1);
+                return;
+            case SHORT:
+                transferBytes(input, output, 2);
+                return;
+            case INT:
+            case FLOAT:
+                transferBytes(input, output, 4);
+                return;
+            case LONG:
+            case DOUBLE:
+                transferBytes(input, output, 8);
+                return;
+            case BYTE_ARRAY:
+            case BIG_INT:
+                transferBytes(input, output, transferInt(input, output));
+                return;
+            case STRING:
+                transferBytes(input, output, transferShort(input, output));
+                return;
+            case INT_ARRAY:
+                transferBytes(input, output, 4L * transferInt(input, output));
+                return;
+            case LONG_ARRAY:
+                transferBytes(input, output, 8L * transferInt(input, output));
+                return;
+            case STRING_ARRAY: {
+                final int length = transferInt(input, output);
+                for (int i = 0; i < length; i++)
+                    transferBytes(input, output, transferShort(input, output));
+                return;
+            }
+            case LIST: {
+                final byte id = input.readByte();
+                if (output != null)
+                    output.writeByte(id);
+                final TagType elementType = TagType.of(id);
+                final int length = transferInt(input, output);
+                for (int i = 0; i < length; i++)
+                    transfer(input, output, elementType, depth + 1);
+                return;
+            }
+            case COMPOUND: {
+                byte id;
+                while ((id = input.readByte()) != TagType.END.id()) {
+                    if (output != null)
+                        output.writeByte(id);
+                    transferBytes(input, output, transferShort(input, output)); // the key
+                    transfer(input, output, TagType.of(id), depth + 1);
+                }
+                if (output != null)
+                    output.writeByte(id);
+                return;
+            }
+            default:
+                throw new IOException("Cannot skip a " + type + " tag.");
+        }
+    }
+
+    private static int transferInt(final DataInput input, final DataOutput output) throws IOException {
+        final int value = input.readInt();
+        if (output != null)
+            output.writeInt(value);
+        return value;
+    }
+
+    private static int transferShort(final DataInput input, final DataOutput output) throws IOException {
+        final int value = input.readUnsignedShort();
+        if (output != null)
+            output.writeShort(value);
+        return value;
+    }
+
+    private static void transferBytes(final DataInput input, final DataOutput output, long length) throws IOException {
+        if (length < 0)
+            throw new IOException("Negative length " + length + ".");
+        if (output == null) {
+            while (length > 0) {
+                int skipped = input.skipBytes((int) Math.min(length, Integer.MAX_VALUE));
+                if (skipped <= 0) {
+                    input.readByte(); // skipBytes may give up early, make sure the input is not done
+                    skipped = 1;
+                }
+                length -= skipped;
+            }
+            return;
+        }
+        final byte[] buffer = new byte[(int) Math.min(length, 4096)];
+        while (length > 0) {
+            final int chunk = (int) Math.min(length, buffer.length);
+            input.readFully(buffer, 0, chunk);
+            output.write(buffer, 0, chunk);
+            length -= chunk;
+        }
+    }
 }
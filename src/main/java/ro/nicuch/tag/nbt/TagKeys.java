@@ -0,0 +1,203 @@
+package ro.nicuch.tag.nbt;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One canonical {@link String} per compound key, shared by every world.
+ * <p>
+ * Keys are looked up straight from the bytes being decoded, so a key already known costs no allocation,
+ * and compounds end up holding the same few instances instead of one string per key per tag.
+ * Canonical keys are the JVM's interned strings, so keys written as constants in code are the same instances too.
+ * Once {@link #MAX_KEYS} keys are known, new keys are not interned anymore.
+ */
+public final class TagKeys {
+    /**
+     * The most keys kept, keys used as dynamic ids should not grow the table forever.
+     */
+    public static final int MAX_KEYS = 1 << 16;
+    private static final int SCRATCH_SIZE = 256;
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+
+    private static volatile String[] table = new String[1024]; // open addressing, written under the class lock
+    private static int size;
+    private static volatile boolean full;
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder savedBytes = new LongAdder();
+
+    private TagKeys() {
+    }
+
+    /**
+     * Gets the canonical instance of a key, making it canonical if it is new.
+     *
+     * @param key the key
+     * @return the canonical key, or {@code key} itself if the table is full
+     */
+    public static String intern(final String key) {
+        final String[] table = TagKeys.table;
+        final int mask = table.length - 1;
+        for (int i = HashCommon.mix(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+            final String known = table[i];
+            if (known == null)
+                break;
+            if (known == key)
+                return key; // already canonical, nothing saved
+            if (known.equals(key)) {
+                hit(key.length());
+                return known;
+            }
+        }
+        return full ? key : add(key);
+    }
+
+    /**
+     * Reads a key of {@code length} bytes, without creating a string when the key is already known.
+     *
+     * @param input  the input, right at the key bytes
+     * @param length the length of the key in bytes
+     * @param sized  if the key is UTF-8, as in sized formats, rather than modified UTF-8
+     * @return the canonical key
+     */
+    static String read(final DataInput input, final int length, final boolean sized) throws IOException {
+        byte[] bytes = SCRATCH.get();
+        if (length > bytes.length)
+            bytes = new byte[length];
+        input.readFully(bytes, 0, length);
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            final byte b = bytes[i];
+            if (b <= 0)
+                return intern(decode(bytes, length, sized)); // not ascii, both encodings differ from the chars
+            hash = 31 * hash + b; // the same as String#hashCode for ascii
+        }
+        final String[] table = TagKeys.table;
+        final int mask = table.length - 1;
+        for (int i = HashCommon.mix(hash) & mask; ; i = (i + 1) & mask) {
+            final String known = table[i];
+            if (known == null)
+                break;
+            if (matches(known, bytes, length)) {
+                hit(length);
+                return known;
+            }
+        }
+        final String key = new String(bytes, 0, length, StandardCharsets.US_ASCII);
+        return full ? key : add(key);
+    }
+
+    /**
+     * Reads a key written by {@link java.io.DataOutput#writeUTF(String)}.
+     */
+    static String readClassic(final DataInput input) throws IOException {
+        return read(input, input.readUnsignedShort(), false);
+    }
+
+    private static boolean matches(final String known, final byte[] bytes, final int length) {
+        if (known.length() != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (known.charAt(i) != bytes[i])
+                return false;
+        return true;
+    }
+
+    private static String decode(final byte[] bytes, final int length, final boolean sized) throws IOException {
+        if (sized)
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        final byte[] prefixed = new byte[length + 2];
+        prefixed[0] = (byte) (length >>> 8);
+        prefixed[1] = (byte) length;
+        System.arraycopy(bytes, 0, prefixed, 2, length);
+        return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(prefixed)));
+    }
+
+    private static void hit(final int length) {
+        hits.increment();
+        savedBytes.add(24 + 16 + length); // the string and its array that were not kept, see TagSizes
+    }
+
+    private static synchronized String add(final String key) {
+        String[] table = TagKeys.table;
+        int mask = table.length - 1;
+        int i = HashCommon.mix(key.hashCode()) & mask;
+        for (String known; (known = table[i]) != null; i = (i + 1) & mask) {
+            if (known.equals(key)) {
+                hit(key.length()); // added meanwhile
+                return known;
+            }
+        }
+        if (size >= MAX_KEYS) {
+            full = true;
+            return key;
+        }
+        misses.increment();
+        final String canonical = key.intern();
+        if (2 * (size + 1) > table.length) {
+            table = grow(table);
+            mask = table.length - 1;
+            i = HashCommon.mix(canonical.hashCode()) & mask;
+            while (table[i] != null)
+                i = (i + 1) & mask;
+        }
+        table[i] = canonical;
+        size++;
+        TagKeys.table = table; // a reader missing the new slot comes here and finds it
+        return canonical;
+    }
+
+    private static String[] grow(final String[] table) {
+        final String[] grown = new String[table.length * 2];
+        final int mask = grown.length - 1;
+        for (String known : table) {
+            if (known == null)
+                continue;
+            int i = HashCommon.mix(known.hashCode()) & mask;
+            while (grown[i] != null)
+                i = (i + 1) & mask;
+            grown[i] = known;
+        }
+        return grown;
+    }
+
+    /**
+     * @return how many keys are canonical
+     */
+    public static synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return how many times a key was found already known, each one a string not kept
+     */
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return how many keys were made canonical
+     */
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static double getHitRatio() {
+        long hits = TagKeys.hits.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 0D : (double) hits / total;
+    }
+
+    /**
+     * @return the estimated heap not used by duplicate keys, counted once per hit
+     */
+    public static long getSavedBytes() {
+        return savedBytes.sum();
+    }
+}
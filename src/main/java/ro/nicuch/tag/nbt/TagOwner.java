@@ -0,0 +1,129 @@
+package ro.nicuch.tag.nbt;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Stands for the tags put in one another, so a snapshot of any of them is taken in O(1).
+ * <p>
+ * Compounds, lists, arrays and chunks point to the owner of the tag they were put in, owners joined later answer to one root.
+ * A snapshot only raises the version of the root. A tag whose entries were last copied under an older version
+ * leaves them to the snapshots taken since and copies them before it changes, see {@link TagSnapshot}.
+ */
+final class TagOwner {
+    private volatile TagOwner parent; // set once joined with another owner, the root of that one answers for both
+    private volatile int version;
+    private List<WeakReference<TagSnapshot>> snapshots; // taken and not collected yet, guarded by this
+
+    /**
+     * @return the owner answering for this one
+     */
+    TagOwner root() {
+        TagOwner root = this;
+        for (TagOwner parent = root.parent; parent != null; parent = root.parent)
+            root = parent;
+        return root;
+    }
+
+    /**
+     * @return the version, raised by every snapshot, of a root
+     */
+    int version() {
+        return this.version;
+    }
+
+    /**
+     * Makes one root answer for both owners.
+     *
+     * @return the root
+     */
+    static TagOwner union(final TagOwner owner, final TagOwner other) {
+        synchronized (TagOwner.class) {
+            final TagOwner root = owner.root();
+            final TagOwner otherRoot = other.root();
+            if (root == otherRoot)
+                return root;
+            synchronized (root) {
+                synchronized (otherRoot) {
+                    if (otherRoot.snapshots != null) {
+                        if (root.snapshots == null)
+                            root.snapshots = new ArrayList<>(otherRoot.snapshots.size());
+                        root.snapshots.addAll(otherRoot.snapshots);
+                    }
+                    root.version = Math.max(root.version, otherRoot.version); // the tags of the older one copy once more, nothing worse
+                    otherRoot.parent = root;
+                }
+            }
+            return root;
+        }
+    }
+
+    /**
+     * Puts a tag that can change under this owner, with the tags inside it.
+     */
+    static void join(final TagOwner owner, final Tag tag) {
+        if (tag instanceof CompoundTag)
+            ((CompoundTag) tag).join(owner);
+        else if (tag instanceof ListTag)
+            ((ListTag) tag).join(owner);
+        else if (tag instanceof ChunkCompoundTag)
+            union(owner, ((ChunkCompoundTag) tag).owner());
+        else if (tag instanceof ByteArrayTag)
+            ((ByteArrayTag) tag).join(owner);
+        else if (tag instanceof IntArrayTag)
+            ((IntArrayTag) tag).join(owner);
+        else if (tag instanceof LongArrayTag)
+            ((LongArrayTag) tag).join(owner);
+        else if (tag instanceof StringArrayTag)
+            ((StringArrayTag) tag).join(owner);
+    }
+
+    /**
+     * @return {@code true} if {@code tag} can change, so it needs an owner
+     */
+    static boolean isOwned(final Tag tag) {
+        return tag instanceof CompoundTag || tag instanceof ListTag || tag instanceof ChunkCompoundTag
+                || tag instanceof ByteArrayTag || tag instanceof IntArrayTag || tag instanceof LongArrayTag || tag instanceof StringArrayTag;
+    }
+
+    /**
+     * Raises the version of a root.
+     *
+     * @return the snapshot taken under the new version
+     */
+    synchronized TagSnapshot snapshot() {
+        final TagSnapshot snapshot = new TagSnapshot(this.version + 1);
+        this.version = snapshot.version();
+        if (this.snapshots == null)
+            this.snapshots = new ArrayList<>(2);
+        this.snapshots.removeIf(reference -> reference.get() == null);
+        this.snapshots.add(new WeakReference<>(snapshot));
+        return snapshot;
+    }
+
+    /**
+     * Leaves what a tag of this root had since {@code version} to the snapshots taken since, before the tag changes it.
+     *
+     * @param tag     the tag about to change
+     * @param version the version its state was copied under
+     * @param state   makes the state kept by the snapshots, called at most once
+     */
+    synchronized void freeze(final Object tag, final int version, final Supplier<?> state) {
+        if (this.snapshots == null)
+            return;
+        Object kept = null;
+        for (Iterator<WeakReference<TagSnapshot>> iterator = this.snapshots.iterator(); iterator.hasNext(); ) {
+            final TagSnapshot snapshot = iterator.next().get();
+            if (snapshot == null)
+                iterator.remove();
+            else if (snapshot.version() > version) {
+                if (kept == null)
+                    kept = state.get();
+                snapshot.keep(tag, kept);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package ro.nicuch.tag.nbt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled path to a nested value, like {@code quest.stages[2].progress}.
+ * <p>
+ * Keys are separated by dots and list elements are picked by {@code [index]}, keys holding a dot or a bracket
+ * cannot be reached. A path is evaluated against a live {@link CompoundTag}, or against serialized bytes
+ * where only the value it leads to is read, every other entry is skipped, and keys are compared as bytes.
+ */
+public final class TagPath {
+    private final String path;
+    private final String[] keys; // null for list steps
+    private final int[] indexes; // the element of list steps
+    private final byte[][] classicKeys; // the keys as written by DataOutput.writeUTF, without the length
+    private final byte[][] sizedKeys; // the keys as UTF-8, as written in sized formats
+    private final int maxKeyLength;
+
+    private TagPath(final String path, final List<String> keys, final List<Integer> indexes) throws IOException {
+        this.path = path;
+        final int steps = keys.size();
+        this.keys = keys.toArray(new String[0]);
+        this.indexes = new int[steps];
+        this.classicKeys = new byte[steps][];
+        this.sizedKeys = new byte[steps][];
+        int maxKeyLength = 0;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        for (int i = 0; i < steps; i++) {
+            this.indexes[i] = indexes.get(i);
+            if (this.keys[i] == null)
+                continue;
+            bytes.reset();
+            output.writeUTF(this.keys[i]);
+            this.classicKeys[i] = Arrays.copyOfRange(bytes.toByteArray(), 2, bytes.size());
+            this.sizedKeys[i] = this.keys[i].getBytes(StandardCharsets.UTF_8);
+            maxKeyLength = Math.max(maxKeyLength, Math.max(this.classicKeys[i].length, this.sizedKeys[i].length));
+        }
+        this.maxKeyLength = maxKeyLength;
+    }
+
+    /**
+     * Compiles a path, to be kept and evaluated many times.
+     *
+     * @param path the path, starting with a key
+     * @return the compiled path
+     * @throws IllegalArgumentException if the path is malformed
+     */
+    public static TagPath compile(final String path) {
+        final List<String> keys = new ArrayList<>();
+        final List<Integer> indexes = new ArrayList<>();
+        int i = 0;
+        final int length = path.length();
+        while (i < length) {
+            final char c = path.charAt(i);
+            if (c == '[') {
+                final int close = path.indexOf(']', i);
+                if (keys.isEmpty() || close < 0)
+                    throw new IllegalArgumentException("Malformed path " + path + " at " + i + ".");
+                final int index;
+                try {
+                    index = Integer.parseInt(path.substring(i + 1, close));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Malformed index in path " + path + " at " + i + ".");
+                }
+                if (index < 0)
+                    throw new IllegalArgumentException("Negative index in path " + path + " at " + i + ".");
+                keys.add(null);
+                indexes.add(index);
+                i = close + 1;
+                if (i < length && path.charAt(i) == '.')
+                    i++;
+                else if (i < length && path.charAt(i) != '[')
+                    throw new IllegalArgumentException("Malformed path " + path + " at " + i + ".");
+                continue;
+            }
+            int end = i;
+            while (end < length && path.charAt(end) != '.' && path.charAt(end) != '[')
+                end++;
+            if (end == i)
+                throw new IllegalArgumentException("Empty key in path " + path + " at " + i + ".");
+            keys.add(path.substring(i, end));
+            indexes.add(-1);
+            i = end < length && path.charAt(end) == '.' ? end + 1 : end;
+            if (end < length && i == length)
+                throw new IllegalArgumentException("Path " + path + " ends with a dot.");
+        }
+        if (keys.isEmpty())
+            throw new IllegalArgumentException("Empty path.");
+        try {
+            return new TagPath(path, keys, indexes);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Key too long in path " + path + ".");
+        }
+    }
+
+    /**
+     * @return how many keys and indexes the path has
+     */
+    public int length() {
+        return this.keys.length;
+    }
+
+    /**
+     * Gets the value the path leads to in a live tag.
+     *
+     * @param root the tag
+     * @return the value itself, not a copy, or {@code null} if the path leads nowhere
+     */
+    public Tag get(final CompoundTag root) {
+        Tag tag = root;
+        for (int step = 0; step < this.keys.length && tag != null; step++) {
+            if (this.keys[step] != null) {
+                if (tag.type() != TagType.COMPOUND)
+                    return null;
+                tag = ((CompoundTag) tag).get(this.keys[step]);
+            } else {
+                if (tag.type() != TagType.LIST)
+                    return null;
+                final ListTag list = (ListTag) tag;
+                tag = this.indexes[step] < list.size() ? list.get(this.indexes[step]) : null;
+            }
+        }
+        return tag;
+    }
+
+    /**
+     * Reads the value the path leads to from the payload of a compound, without reading anything else.
+     * The input is left right after the value, or wherever the path was found to lead nowhere.
+     *
+     * @param input  the payload of the compound
+     * @param format the format it was written in
+     * @return the value, or {@code null} if the path leads nowhere
+     * @throws IOException if an exception was encountered while reading
+     */
+    public Tag read(final DataInput input, final TagFormat format) throws IOException {
+        if (format.isSized())
+            TagCodec.readVarInt(input); // the length of the body, not needed to walk it
+        return this.readBody(input, format);
+    }
+
+    /**
+     * Reads the value the path leads to from a root compound written by {@link TagIO}, in any format.
+     *
+     * @param input the input
+     * @return the value, or {@code null} if the path leads nowhere
+     * @throws IOException if an exception was encountered while reading
+     */
+    public Tag readRoot(final DataInput input) throws IOException {
+        final byte id = input.readByte();
+        if (id == TagCodec.ROOT_MARKER) {
+            final TagFormat format = TagFormat.valueOf(input.readByte());
+            if (!format.isSized()) {
+                throw new IOException("Unknown tag format " + format + ".");
+            }
+            return TagType.of(input.readByte()) == TagType.COMPOUND ? this.read(input, format) : null;
+        }
+        input.skipBytes(input.readUnsignedShort()); // read empty name
+        return TagType.of(id) == TagType.COMPOUND ? this.read(input, TagFormat.V1) : null;
+    }
+
+    /**
+     * Reads the value from the entries of a compound, its length already read in sized formats.
+     */
+    Tag readBody(final DataInput input, final TagFormat format) throws IOException {
+        return this.readEntries(input, format, 0, new byte[this.maxKeyLength]);
+    }
+
+    private Tag readEntries(final DataInput input, final TagFormat format, final int step, final byte[] scratch) throws IOException {
+        final byte[] key = format.isSized() ? this.sizedKeys[step] : this.classicKeys[step];
+        byte id;
+        while ((id = input.readByte()) != TagType.END.id()) {
+            final TagType type = TagType.of(id);
+            final int length = format.isSized() ? TagCodec.readVarInt(input) : input.readUnsignedShort();
+            if (length != key.length) {
+                TagCodec.skipBytes(input, length);
+                TagIO.skip(input, type, format);
+                continue;
+            }
+            input.readFully(scratch, 0, length);
+            if (!Arrays.equals(scratch, 0, length, key, 0, length)) {
+                TagIO.skip(input, type, format);
+                continue;
+            }
+            return this.readValue(input, type, format, step + 1, scratch);
+        }
+        return null;
+    }
+
+    private Tag readValue(final DataInput input, final TagType type, final TagFormat format, final int step, final byte[] scratch) throws IOException {
+        if (step == this.keys.length) {
+            if (format.isSized())
+                return TagCodec.read(type, input, step);
+            final Tag tag = type.create();
+            tag.read(input, step);
+            return tag;
+        }
+        if (this.keys[step] != null) {
+            if (type != TagType.COMPOUND)
+                return null;
+            if (format.isSized())
+                TagCodec.readVarInt(input);
+            return this.readEntries(input, format, step, scratch);
+        }
+        if (type != TagType.LIST)
+            return null;
+        final TagType elementType = TagType.of(input.readByte());
+        if (format.isSized())
+            TagCodec.readVarInt(input); // the length of the body
+        final int size = format.isSized() ? TagCodec.readVarInt(input) : input.readInt();
+        final int index = this.indexes[step];
+        if (index >= size)
+            return null;
+        for (int i = 0; i < index; i++)
+            TagIO.skip(input, elementType, format);
+        return this.readValue(input, elementType, format, step + 1, scratch);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return this == obj || (obj instanceof TagPath && this.path.equals(((TagPath) obj).path));
+    }
+
+    @Override
+    public int hashCode() {
+        return this.path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.path;
+    }
+}
@@ -0,0 +1,246 @@
+package ro.nicuch.tag.nbt;
+
+import ro.nicuch.tag.wrapper.BlockUUID;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.UUID;
+
+/**
+ * Streams a serialized tag to a {@link TagVisitor}, in any {@link TagFormat}.
+ * <p>
+ * Only values the visitor gets are created, skipped subtrees are passed over.
+ */
+public final class TagReader {
+
+    private TagReader() {
+    }
+
+    /**
+     * Reads the payload of a tag of {@code type}.
+     *
+     * @param input   the input
+     * @param type    the type of the tag
+     * @param format  the format the tag was written in
+     * @param visitor the visitor
+     * @return {@code false} if the visitor stopped the read
+     * @throws IOException if an exception was encountered while reading
+     */
+    public static boolean accept(final DataInput input, final TagType type, final TagFormat format, final TagVisitor visitor) throws IOException {
+        return payload(input, type, format, visitor, 0);
+    }
+
+    private static boolean payload(final DataInput input, final TagType type, final TagFormat format, final TagVisitor visitor, final int depth) throws IOException {
+        if (depth > CompoundTag.MAX_DEPTH) {
+            throw new IllegalStateException(String.format("Depth of %d is higher than max of %d", depth, CompoundTag.MAX_DEPTH));
+        }
+        final boolean sized = format.isSized();
+        switch (type) {
+            case END:
+                return true;
+            case BYTE:
+                return visitor.visitByte(input.readByte()) != TagVisitor.Result.STOP;
+            case SHORT:
+                return visitor.visitShort(input.readShort()) != TagVisitor.Result.STOP;
+            case INT:
+                return visitor.visitInt(sized ? TagCodec.unzigzag(TagCodec.readVarInt(input)) : input.readInt()) != TagVisitor.Result.STOP;
+            case LONG:
+                return visitor.visitLong(sized ? TagCodec.unzigzag(TagCodec.readVarLong(input)) : input.readLong()) != TagVisitor.Result.STOP;
+            case FLOAT:
+                return visitor.visitFloat(input.readFloat()) != TagVisitor.Result.STOP;
+            case DOUBLE:
+                return visitor.visitDouble(input.readDouble()) != TagVisitor.Result.STOP;
+            case BYTE_ARRAY:
+                return visitor.visitByteArray(bytes(input, sized)) != TagVisitor.Result.STOP;
+            case BIG_INT:
+                return visitor.visitBigInteger(new BigInteger(bytes(input, sized))) != TagVisitor.Result.STOP;
+            case STRING:
+                return visitor.visitString(string(input, sized)) != TagVisitor.Result.STOP;
+            case INT_ARRAY: {
+                final int[] value = new int[length(input, sized)];
+                for (int i = 0; i < value.length; i++)
+                    value[i] = sized ? TagCodec.unzigzag(TagCodec.readVarInt(input)) : input.readInt();
+                return visitor.visitIntArray(value) != TagVisitor.Result.STOP;
+            }
+            case LONG_ARRAY: {
+                final long[] value = new long[length(input, sized)];
+                for (int i = 0; i < value.length; i++)
+                    value[i] = input.readLong();
+                return visitor.visitLongArray(value) != TagVisitor.Result.STOP;
+            }
+            case STRING_ARRAY: {
+                final String[] value = new String[length(input, sized)];
+                for (int i = 0; i < value.length; i++)
+                    value[i] = string(input, sized);
+                return visitor.visitStringArray(value) != TagVisitor.Result.STOP;
+            }
+            case LIST:
+                return list(input, format, visitor, depth);
+            case COMPOUND:
+                return compound(input, format, visitor, depth);
+            case CHUNK_COMPOUND:
+                return chunk(input, visitor, depth);
+            default:
+                throw new IOException("Cannot read a " + type + " tag.");
+        }
+    }
+
+    private static boolean list(final DataInput input, final TagFormat format, final TagVisitor visitor, final int depth) throws IOException {
+        final TagType elementType = TagType.of(input.readByte());
+        final int bodyLength = format.isSized() ? TagCodec.readVarInt(input) : -1;
+        final int size = format.isSized() ? TagCodec.readVarInt(input) : input.readInt();
+        final TagVisitor.Result result = visitor.visitListStart(elementType, size);
+        if (result == TagVisitor.Result.STOP)
+            return false;
+        if (result == TagVisitor.Result.SKIP) {
+            if (format.isSized())
+                TagCodec.skipBytes(input, bodyLength - TagCodec.varIntSize(size)); // the size was read already
+            else
+                for (int i = 0; i < size; i++)
+                    TagIO.skip(input, elementType);
+            return true;
+        }
+        for (int i = 0; i < size; i++)
+            if (!payload(input, elementType, format, visitor, depth + 1))
+                return false;
+        visitor.visitListEnd();
+        return true;
+    }
+
+    private static boolean compound(final DataInput input, final TagFormat format, final TagVisitor visitor, final int depth) throws IOException {
+        final int bodyLength = format.isSized() ? TagCodec.readVarInt(input) : -1;
+        final TagVisitor.Result result = visitor.visitCompoundStart();
+        if (result == TagVisitor.Result.STOP)
+            return false;
+        if (result == TagVisitor.Result.SKIP) {
+            if (format.isSized())
+                TagCodec.skipBytes(input, bodyLength);
+            else
+                TagIO.skip(input, TagType.COMPOUND);
+            return true;
+        }
+        byte id;
+        while ((id = input.readByte()) != TagType.END.id()) {
+            final TagType type = TagType.of(id);
+            final String key = format.isSized() ? TagKeys.read(input, TagCodec.readVarInt(input), true) : TagKeys.readClassic(input);
+            final TagVisitor.Result entry = visitor.visitEntry(key, type);
+            if (entry == TagVisitor.Result.STOP)
+                return false;
+            if (entry == TagVisitor.Result.SKIP)
+                TagIO.skip(input, type, format);
+            else if (!payload(input, type, format, visitor, depth + 1))
+                return false;
+        }
+        visitor.visitCompoundEnd();
+        return true;
+    }
+
+    /**
+     * Reads a chunk as written by {@link ChunkCompoundTag#write(java.io.DataOutput, TagFormat)}, it knows its own format.
+     */
+    private static boolean chunk(final DataInput input, final TagVisitor visitor, final int depth) throws IOException {
+        final byte marker = input.readByte();
+        if (marker == (byte) 5 || marker == (byte) 6)
+            return sizedChunk(input, marker == (byte) 6 ? TagFormat.V3 : TagFormat.V2, visitor, depth);
+        for (byte record = marker; record != (byte) 0; record = input.readByte()) {
+            if (record == (byte) 4) {
+                final int sectionY = input.readShort();
+                final int count = input.readShort();
+                final int length = input.readInt();
+                final TagVisitor.Result result = visitor.visitSection(sectionY, count);
+                if (result == TagVisitor.Result.STOP)
+                    return false;
+                if (result == TagVisitor.Result.SKIP) {
+                    TagCodec.skipBytes(input, length);
+                    continue;
+                }
+                for (int i = 0; i < count; i++)
+                    if (!block(input, BlockSection.keyOf(sectionY, input.readShort()), TagFormat.V1, visitor, depth))
+                        return false;
+            } else if (record == (byte) 1) {
+                final byte x = input.readByte();
+                final byte y = input.readByte();
+                final byte z = input.readByte();
+                if (!block(input, BlockUUID.pack(x, y + 128, z), TagFormat.V1, visitor, depth))
+                    return false;
+            } else
+                throw new IOException("Unknown block record " + record + ".");
+        }
+        while (input.readByte() == (byte) 2) {
+            final UUID uuid = UUID.fromString(input.readUTF());
+            if (!member(input, visitor.visitEntity(uuid), TagFormat.V1, visitor, depth))
+                return false;
+        }
+        if (input.readByte() == (byte) 3) {
+            if (!member(input, visitor.visitChunkTag(), TagFormat.V1, visitor, depth))
+                return false;
+            input.readByte(); // the end written after the chunk tag
+        }
+        return true;
+    }
+
+    private static boolean sizedChunk(final DataInput input, final TagFormat format, final TagVisitor visitor, final int depth) throws IOException {
+        final int sectionCount = TagCodec.readVarInt(input);
+        final int[] sectionYs = new int[sectionCount];
+        final int[] counts = new int[sectionCount];
+        final int[] lengths = new int[sectionCount];
+        for (int i = 0; i < sectionCount; i++) {
+            sectionYs[i] = TagCodec.unzigzag(TagCodec.readVarInt(input));
+            counts[i] = TagCodec.readVarInt(input);
+            lengths[i] = TagCodec.readVarInt(input);
+        }
+        for (int i = 0; i < sectionCount; i++) {
+            final TagVisitor.Result result = visitor.visitSection(sectionYs[i], counts[i]);
+            if (result == TagVisitor.Result.STOP)
+                return false;
+            if (result == TagVisitor.Result.SKIP) {
+                TagCodec.skipBytes(input, lengths[i]);
+                continue;
+            }
+            for (int j = 0; j < counts[i]; j++)
+                if (!block(input, BlockSection.keyOf(sectionYs[i], TagCodec.readVarInt(input)), format, visitor, depth))
+                    return false;
+        }
+        final int entityCount = TagCodec.readVarInt(input);
+        for (int i = 0; i < entityCount; i++) {
+            final UUID uuid = format == TagFormat.V3 ? new UUID(input.readLong(), input.readLong()) : UUID.fromString(TagCodec.readString(input));
+            if (!member(input, visitor.visitEntity(uuid), format, visitor, depth))
+                return false;
+        }
+        if (input.readByte() == (byte) 3)
+            return member(input, visitor.visitChunkTag(), format, visitor, depth);
+        return true;
+    }
+
+    private static boolean block(final DataInput input, final int key, final TagFormat format, final TagVisitor visitor, final int depth) throws IOException {
+        return member(input, visitor.visitBlock(key), format, visitor, depth);
+    }
+
+    /**
+     * Reads or skips a compound of a chunk, after the visitor was told what it belongs to.
+     */
+    private static boolean member(final DataInput input, final TagVisitor.Result result, final TagFormat format, final TagVisitor visitor, final int depth) throws IOException {
+        if (result == TagVisitor.Result.STOP)
+            return false;
+        if (result == TagVisitor.Result.SKIP) {
+            TagIO.skip(input, TagType.COMPOUND, format);
+            return true;
+        }
+        return payload(input, TagType.COMPOUND, format, visitor, depth + 1);
+    }
+
+    private static int length(final DataInput input, final boolean sized) throws IOException {
+        return sized ? TagCodec.readVarInt(input) : input.readInt();
+    }
+
+    private static byte[] bytes(final DataInput input, final boolean sized) throws IOException {
+        final byte[] value = new byte[length(input, sized)];
+        input.readFully(value);
+        return value;
+    }
+
+    private static String string(final DataInput input, final boolean sized) throws IOException {
+        return sized ? TagCodec.readString(input) : input.readUTF();
+    }
+}
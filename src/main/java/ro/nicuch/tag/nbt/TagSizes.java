@@ -0,0 +1,118 @@
+package ro.nicuch.tag.nbt;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Rough heap footprint estimates of tags, used to bound caches and buffers.
+ * <p>
+ * The numbers assume compressed oops and compact strings, they are meant for budgeting, not for exact accounting.
+ */
+public final class TagSizes {
+    private static final int OBJECT_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int ARRAY_HEADER = 16;
+    private static final int MAP_NODE = 32;
+    private static final int MAP_HEADER = 48;
+
+    private TagSizes() {
+    }
+
+    /**
+     * Estimates the heap footprint of {@code tag} and everything it references.
+     *
+     * @param tag the tag
+     * @return the estimated size in bytes
+     */
+    public static long estimate(final Tag tag) {
+        switch (tag.type()) {
+            case END:
+                return 0;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case FLOAT:
+                return OBJECT_HEADER;
+            case LONG:
+            case DOUBLE:
+                return OBJECT_HEADER + 8;
+            case BIG_INT:
+                return OBJECT_HEADER + REFERENCE + OBJECT_HEADER + 24 + ARRAY_HEADER + ((BigIntegerTag) tag).value().bitLength() / 8;
+            case STRING:
+                return OBJECT_HEADER + REFERENCE + string(((StringTag) tag).value());
+            case BYTE_ARRAY:
+                return OBJECT_HEADER + REFERENCE + ARRAY_HEADER + ((ByteArrayTag) tag).value().length;
+            case INT_ARRAY:
+                return OBJECT_HEADER + REFERENCE + ARRAY_HEADER + 4L * ((IntArrayTag) tag).value().length;
+            case LONG_ARRAY:
+                return OBJECT_HEADER + REFERENCE + ARRAY_HEADER + 8L * ((LongArrayTag) tag).value().length;
+            case STRING_ARRAY: {
+                long size = OBJECT_HEADER + REFERENCE + ARRAY_HEADER;
+                for (String value : ((StringArrayTag) tag).value())
+                    size += REFERENCE + string(value);
+                return size;
+            }
+            case LIST: {
+                ListTag list = (ListTag) tag;
+                long size = OBJECT_HEADER + 2 * REFERENCE + OBJECT_HEADER + ARRAY_HEADER + (long) REFERENCE * list.size();
+                for (Tag element : list.elements())
+                    size += estimate(element);
+                return size;
+            }
+            case COMPOUND:
+                return compound((CompoundTag) tag);
+            case CHUNK_COMPOUND:
+                return chunk((ChunkCompoundTag) tag);
+            default:
+                return OBJECT_HEADER;
+        }
+    }
+
+    private static long compound(final CompoundTag tag) {
+        int packed = tag.packedCapacity();
+        long size = OBJECT_HEADER + REFERENCE + (packed >= 0
+                ? OBJECT_HEADER + 2 * REFERENCE + 4 + 2 * ARRAY_HEADER + (long) (2 * REFERENCE + 4) * packed // key, value and hash arrays
+                : MAP_HEADER + ARRAY_HEADER + (long) REFERENCE * table(tag.size()) + (long) MAP_NODE * tag.size());
+        for (Map.Entry<String, Tag> entry : tag.entries())
+            size += string(entry.getKey()) + estimate(entry.getValue());
+        return size;
+    }
+
+    private static long chunk(final ChunkCompoundTag tag) {
+        long size = OBJECT_HEADER + 4 * REFERENCE + 2 * (MAP_HEADER + ARRAY_HEADER);
+        size += (long) (4 + REFERENCE) * (table(tag.sections().size()) + 1);
+        for (BlockSection section : tag.sections())
+            size += section(section);
+        size += MAP_HEADER + ARRAY_HEADER + (long) REFERENCE * table(tag.sizeEntities()); // the map of encoded entities
+        for (CompoundTag entity : tag.decodedEntities())
+            size += MAP_NODE + OBJECT_HEADER + 16 + compound(entity); // node + uuid key
+        size += (long) (MAP_NODE + OBJECT_HEADER + 16 + ARRAY_HEADER) * (tag.sizeEntities() - tag.decodedEntities().size()) + tag.encodedEntitiesSize();
+        return size + compound(tag.getChunkCompound());
+    }
+
+    private static long section(final BlockSection section) {
+        long size = OBJECT_HEADER + 7 * REFERENCE + 8;
+        int encodedLength = section.encodedLength();
+        if (encodedLength >= 0)
+            size += ARRAY_HEADER + encodedLength + 3L * (ARRAY_HEADER + 4L * section.encodedCount()) // the scanned offsets
+                    + MAP_HEADER + ARRAY_HEADER * 2 + 8L * (table(section.encodedCount()) + 1);
+        Collection<CompoundTag> decoded = section.decodedValues();
+        if (decoded.isEmpty())
+            return size;
+        size += MAP_HEADER + ARRAY_HEADER * 2 + (long) (4 + REFERENCE) * (table(decoded.size()) + 1); // open addressing int keys and values, no nodes
+        for (CompoundTag block : decoded)
+            size += compound(block);
+        return size;
+    }
+
+    private static long string(final String value) {
+        return OBJECT_HEADER + 8 + ARRAY_HEADER + value.length();
+    }
+
+    private static int table(final int size) {
+        int capacity = 16;
+        while (capacity * 0.75f < size)
+            capacity <<= 1;
+        return capacity;
+    }
+}
@@ -0,0 +1,70 @@
+package ro.nicuch.tag.nbt;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A snapshot taken of the tags of a {@link TagOwner}.
+ * <p>
+ * It starts with the entries of the tag it was taken of and makes its own compounds, lists and arrays out of the live ones
+ * only as they are reached. A live tag changed before it is reached left the state it had to this snapshot,
+ * the others are reached as they are. Either way the live tags, and every reference held to them, stay live.
+ */
+final class TagSnapshot {
+    private final int version;
+    private final TagOwner owner = new TagOwner(); // owns the tags made for this snapshot
+    private final Map<Object, Object> kept = new IdentityHashMap<>(); // live tag -> its state when this snapshot was taken, guarded by this
+
+    TagSnapshot(final int version) {
+        this.version = version;
+    }
+
+    int version() {
+        return this.version;
+    }
+
+    /**
+     * @return the owner of the tags made for this snapshot
+     */
+    TagOwner owner() {
+        return this.owner;
+    }
+
+    synchronized void keep(final Object tag, final Object state) {
+        this.kept.putIfAbsent(tag, state);
+    }
+
+    /**
+     * Must be called while holding this snapshot's monitor, with the current state read under it too,
+     * so a tag cannot change in between.
+     *
+     * @return the state {@code tag} had when this snapshot was taken, or {@code null} if it did not change since
+     */
+    Object kept(final Object tag) {
+        return this.kept.get(tag);
+    }
+
+    /**
+     * Takes a live tag reached from this snapshot.
+     *
+     * @param tag the live tag
+     * @return the tag of this snapshot standing for it, or {@code tag} itself if it never changes
+     */
+    Tag take(final Tag tag) {
+        if (tag instanceof CompoundTag)
+            return ((CompoundTag) tag).viewIn(this);
+        if (tag instanceof ListTag)
+            return ((ListTag) tag).viewIn(this);
+        if (tag instanceof ChunkCompoundTag)
+            return ((ChunkCompoundTag) tag).viewIn(this);
+        if (tag instanceof ByteArrayTag)
+            return ((ByteArrayTag) tag).viewIn(this);
+        if (tag instanceof IntArrayTag)
+            return ((IntArrayTag) tag).viewIn(this);
+        if (tag instanceof LongArrayTag)
+            return ((LongArrayTag) tag).viewIn(this);
+        if (tag instanceof StringArrayTag)
+            return ((StringArrayTag) tag).viewIn(this);
+        return tag;
+    }
+}
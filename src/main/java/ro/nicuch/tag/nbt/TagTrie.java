@@ -0,0 +1,342 @@
+package ro.nicuch.tag.nbt;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.*;
+
+/**
+ * The entries of a large {@link CompoundTag} that is snapshotted, a hash array mapped trie.
+ * <p>
+ * {@link #fork()} shares every node in O(1), from then on both tries copy the nodes on the path they change.
+ * Nodes created since the last fork are changed in place. An iterator stops that for the nodes it walks,
+ * so it keeps walking the entries it started with whatever is changed meanwhile.
+ */
+final class TagTrie extends AbstractMap<String, Tag> {
+    private static final int BITS = 5;
+    private static final int MAX_SHIFT = 30; // below it the hash still has bits left, above it keys collide
+
+    private Node root; // null when empty
+    private int size;
+    private Object edit = new Object(); // nodes made under this token can be changed in place
+    private Tag previous; // the result of the last put or remove
+    private boolean resized;
+
+    TagTrie() {
+    }
+
+    TagTrie(final Map<String, Tag> from) {
+        from.forEach(this::put);
+    }
+
+    private TagTrie(final Node root, final int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @return a trie with the same entries, made in O(1), changing either does not change the other
+     */
+    TagTrie fork() {
+        this.edit = new Object();
+        return new TagTrie(this.root, this.size);
+    }
+
+    private static int hash(final Object key) {
+        return HashCommon.mix(key.hashCode());
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return this.get(key) != null; // values are never null
+    }
+
+    @Override
+    public Tag get(final Object key) {
+        if (this.root == null || !(key instanceof String))
+            return null;
+        return this.root.find(0, hash(key), key);
+    }
+
+    @Override
+    public Tag put(final String key, final Tag value) {
+        Objects.requireNonNull(value);
+        this.previous = null;
+        this.resized = false;
+        this.root = (this.root == null ? new Node(this.edit, 0, new Object[0]) : this.root).put(this, 0, hash(key), key, value);
+        if (this.resized)
+            this.size++;
+        return this.previous;
+    }
+
+    @Override
+    public Tag remove(final Object key) {
+        if (this.root == null || !(key instanceof String))
+            return null;
+        this.previous = null;
+        this.resized = false;
+        this.root = this.root.remove(this, 0, hash(key), key);
+        if (this.resized)
+            this.size--;
+        return this.previous;
+    }
+
+    @Override
+    public void clear() {
+        this.root = null;
+        this.size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Tag>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Tag>>() {
+            @Override
+            public Iterator<Map.Entry<String, Tag>> iterator() {
+                TagTrie.this.edit = new Object(); // the nodes walked are not changed in place anymore
+                return new EntryIterator(TagTrie.this.root);
+            }
+
+            @Override
+            public int size() {
+                return TagTrie.this.size;
+            }
+        };
+    }
+
+    private static final class Node {
+        private final Object edit;
+        private int bitmap; // the used slots, unused in collision nodes
+        private Object[] array; // per used slot the key and the value, or null and a child node
+
+        private Node(final Object edit, final int bitmap, final Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private static int bit(final int hash, final int shift) {
+            return 1 << ((hash >>> shift) & 31);
+        }
+
+        private int index(final int bit) {
+            return Integer.bitCount(this.bitmap & (bit - 1));
+        }
+
+        private Tag find(final int shift, final int hash, final Object key) {
+            if (shift > MAX_SHIFT) {
+                for (int i = 0; i < this.array.length; i += 2)
+                    if (key.equals(this.array[i]))
+                        return (Tag) this.array[i + 1];
+                return null;
+            }
+            final int bit = bit(hash, shift);
+            if ((this.bitmap & bit) == 0)
+                return null;
+            final int i = 2 * this.index(bit);
+            final Object slotKey = this.array[i];
+            if (slotKey == null)
+                return ((Node) this.array[i + 1]).find(shift + BITS, hash, key);
+            return key.equals(slotKey) ? (Tag) this.array[i + 1] : null;
+        }
+
+        private Node editable(final Object edit) {
+            return this.edit == edit ? this : new Node(edit, this.bitmap, this.array.clone());
+        }
+
+        private Node with(final Object edit, final int bitmap, final Object[] array) {
+            if (this.edit == edit) {
+                this.bitmap = bitmap;
+                this.array = array;
+                return this;
+            }
+            return new Node(edit, bitmap, array);
+        }
+
+        private Node set(final Object edit, final int i, final Object value) {
+            final Node node = this.editable(edit);
+            node.array[i] = value;
+            return node;
+        }
+
+        private Node put(final TagTrie trie, final int shift, final int hash, final String key, final Tag value) {
+            if (shift > MAX_SHIFT) {
+                for (int i = 0; i < this.array.length; i += 2) {
+                    if (key.equals(this.array[i])) {
+                        trie.previous = (Tag) this.array[i + 1];
+                        return trie.previous == value ? this : this.set(trie.edit, i + 1, value);
+                    }
+                }
+                trie.resized = true;
+                final Object[] array = Arrays.copyOf(this.array, this.array.length + 2);
+                array[this.array.length] = key;
+                array[this.array.length + 1] = value;
+                return this.with(trie.edit, 0, array);
+            }
+            final int bit = bit(hash, shift);
+            final int i = 2 * this.index(bit);
+            if ((this.bitmap & bit) != 0) {
+                final Object slotKey = this.array[i];
+                final Object slotValue = this.array[i + 1];
+                if (slotKey == null) {
+                    final Node child = (Node) slotValue;
+                    final Node changed = child.put(trie, shift + BITS, hash, key, value);
+                    return changed == child ? this : this.set(trie.edit, i + 1, changed);
+                }
+                if (key.equals(slotKey)) {
+                    trie.previous = (Tag) slotValue;
+                    return slotValue == value ? this : this.set(trie.edit, i + 1, value);
+                }
+                trie.resized = true;
+                final Node child = pair(trie.edit, shift + BITS, hash(slotKey), (String) slotKey, slotValue, hash, key, value);
+                final Node node = this.editable(trie.edit);
+                node.array[i] = null;
+                node.array[i + 1] = child;
+                return node;
+            }
+            trie.resized = true;
+            final Object[] array = new Object[this.array.length + 2];
+            System.arraycopy(this.array, 0, array, 0, i);
+            array[i] = key;
+            array[i + 1] = value;
+            System.arraycopy(this.array, i, array, i + 2, this.array.length - i);
+            return this.with(trie.edit, this.bitmap | bit, array);
+        }
+
+        private static Node pair(final Object edit, final int shift, final int hash1, final String key1, final Object value1, final int hash2, final String key2, final Object value2) {
+            if (shift > MAX_SHIFT)
+                return new Node(edit, 0, new Object[]{key1, value1, key2, value2});
+            final int bit1 = bit(hash1, shift);
+            final int bit2 = bit(hash2, shift);
+            if (bit1 == bit2)
+                return new Node(edit, bit1, new Object[]{null, pair(edit, shift + BITS, hash1, key1, value1, hash2, key2, value2)});
+            // slots are ordered by their bit, compared unsigned as the top bit is used too
+            return Integer.compareUnsigned(bit1, bit2) < 0
+                    ? new Node(edit, bit1 | bit2, new Object[]{key1, value1, key2, value2})
+                    : new Node(edit, bit1 | bit2, new Object[]{key2, value2, key1, value1});
+        }
+
+        /**
+         * @return the node without the key, or {@code null} if it was left empty
+         */
+        private Node remove(final TagTrie trie, final int shift, final int hash, final Object key) {
+            if (shift > MAX_SHIFT) {
+                for (int i = 0; i < this.array.length; i += 2) {
+                    if (key.equals(this.array[i])) {
+                        trie.previous = (Tag) this.array[i + 1];
+                        trie.resized = true;
+                        if (this.array.length == 2)
+                            return null;
+                        final Object[] array = new Object[this.array.length - 2];
+                        System.arraycopy(this.array, 0, array, 0, i);
+                        System.arraycopy(this.array, i + 2, array, i, array.length - i);
+                        return this.with(trie.edit, 0, array);
+                    }
+                }
+                return this;
+            }
+            final int bit = bit(hash, shift);
+            if ((this.bitmap & bit) == 0)
+                return this;
+            final int i = 2 * this.index(bit);
+            final Object slotKey = this.array[i];
+            if (slotKey == null) {
+                final Node child = (Node) this.array[i + 1];
+                final Node changed = child.remove(trie, shift + BITS, hash, key);
+                if (changed == child)
+                    return this;
+                if (changed != null)
+                    return this.set(trie.edit, i + 1, changed);
+            } else if (key.equals(slotKey)) {
+                trie.previous = (Tag) this.array[i + 1];
+                trie.resized = true;
+            } else
+                return this;
+            if (this.bitmap == bit)
+                return null;
+            final Object[] array = new Object[this.array.length - 2];
+            System.arraycopy(this.array, 0, array, 0, i);
+            System.arraycopy(this.array, i + 2, array, i, array.length - i);
+            return this.with(trie.edit, this.bitmap ^ bit, array);
+        }
+    }
+
+    /**
+     * Walks a forked root, its nodes are never changed.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<String, Tag>> {
+        private final Deque<Node> nodes = new ArrayDeque<>();
+        private final Deque<Integer> positions = new ArrayDeque<>();
+        private Map.Entry<String, Tag> next;
+        private String last;
+
+        private EntryIterator(final Node root) {
+            if (root != null) {
+                this.nodes.push(root);
+                this.positions.push(0);
+            }
+            this.advance();
+        }
+
+        private void advance() {
+            this.next = null;
+            while (!this.nodes.isEmpty()) {
+                final Node node = this.nodes.peek();
+                final int position = this.positions.pop();
+                if (position >= node.array.length) {
+                    this.nodes.pop();
+                    continue;
+                }
+                this.positions.push(position + 2);
+                final Object key = node.array[position];
+                if (key == null) {
+                    this.nodes.push((Node) node.array[position + 1]);
+                    this.positions.push(0);
+                    continue;
+                }
+                this.next = new Entry((String) key, (Tag) node.array[position + 1]);
+                return;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @Override
+        public Map.Entry<String, Tag> next() {
+            if (this.next == null)
+                throw new NoSuchElementException();
+            final Map.Entry<String, Tag> entry = this.next;
+            this.last = entry.getKey();
+            this.advance();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (this.last == null)
+                throw new IllegalStateException();
+            TagTrie.this.remove(this.last);
+            this.last = null;
+        }
+    }
+
+    private final class Entry extends AbstractMap.SimpleEntry<String, Tag> {
+        private static final long serialVersionUID = 1L;
+
+        private Entry(final String key, final Tag value) {
+            super(key, value);
+        }
+
+        @Override
+        public Tag setValue(final Tag value) {
+            TagTrie.this.put(this.getKey(), value);
+            return super.setValue(value);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package ro.nicuch.tag.nbt;
+
+import java.math.BigInteger;
+import java.util.UUID;
+
+/**
+ * Gets the parts of a serialized tag as they are read by {@link TagReader}, no tag objects are created.
+ * <p>
+ * Every method does nothing by default. Methods announcing a subtree can skip it without it being parsed,
+ * in sized formats, see {@link TagFormat#isSized()}, a skip does not even walk it. Any method can stop the read.
+ */
+public interface TagVisitor {
+
+    enum Result {
+        /**
+         * Reads on.
+         */
+        CONTINUE,
+        /**
+         * Skips what was just announced, same as {@link #CONTINUE} for values.
+         */
+        SKIP,
+        /**
+         * Stops the read.
+         */
+        STOP
+    }
+
+    /**
+     * A compound starts, its entries follow and then {@link #visitCompoundEnd()}.
+     */
+    default Result visitCompoundStart() {
+        return Result.CONTINUE;
+    }
+
+    default void visitCompoundEnd() {
+    }
+
+    /**
+     * An entry of a compound, its value follows unless skipped.
+     *
+     * @param key  the key
+     * @param type the type of the value
+     */
+    default Result visitEntry(String key, TagType type) {
+        return Result.CONTINUE;
+    }
+
+    /**
+     * A list starts, its elements follow and then {@link #visitListEnd()}.
+     *
+     * @param elementType the type of the elements
+     * @param size        how many elements follow
+     */
+    default Result visitListStart(TagType elementType, int size) {
+        return Result.CONTINUE;
+    }
+
+    default void visitListEnd() {
+    }
+
+    default Result visitByte(byte value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitShort(short value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitInt(int value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitLong(long value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitFloat(float value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitDouble(double value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitString(String value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitByteArray(byte[] value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitIntArray(int[] value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitLongArray(long[] value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitStringArray(String[] value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitBigInteger(BigInteger value) {
+        return Result.CONTINUE;
+    }
+
+    /**
+     * A block section of a chunk, its blocks follow unless skipped.
+     *
+     * @param sectionY the section y, the world y shifted right by 4
+     * @param count    how many blocks follow
+     */
+    default Result visitSection(int sectionY, int count) {
+        return Result.CONTINUE;
+    }
+
+    /**
+     * A block of a chunk, its compound follows unless skipped.
+     *
+     * @param key the block key, see {@link ro.nicuch.tag.wrapper.BlockUUID#pack(int, int, int)}
+     */
+    default Result visitBlock(int key) {
+        return Result.CONTINUE;
+    }
+
+    /**
+     * An entity of a chunk, its compound follows unless skipped.
+     *
+     * @param uuid the entity
+     */
+    default Result visitEntity(UUID uuid) {
+        return Result.CONTINUE;
+    }
+
+    /**
+     * The tag of a chunk itself, its compound follows unless skipped.
+     */
+    default Result visitChunkTag() {
+        return Result.CONTINUE;
+    }
+}
@@ -0,0 +1,310 @@
+package ro.nicuch.tag.nbt.async;
+
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongFunction;
+
+/**
+ * A concurrent map with primitive {@code long} keys, made of open addressing segments.
+ * <p>
+ * Reads are optimistic and take no lock unless a write to the same segment happens at the same time,
+ * writes lock only their segment. Null values are not allowed.
+ *
+ * @param <V> the value
+ */
+public class ConcurrentLong2ObjectHashMap<V> {
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    public ConcurrentLong2ObjectHashMap() {
+        this(16, Hash.DEFAULT_INITIAL_SIZE);
+    }
+
+    /**
+     * @param concurrencyLevel how many segments, rounded up to a power of two
+     * @param capacity         the expected number of entries
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLong2ObjectHashMap(int concurrencyLevel, int capacity) {
+        int segmentCount = HashCommon.nextPowerOfTwo(Math.max(1, concurrencyLevel));
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+        this.segments = (Segment<V>[]) new Segment<?>[segmentCount];
+        int segmentCapacity = Math.max(4, capacity / segmentCount);
+        for (int i = 0; i < segmentCount; i++)
+            this.segments[i] = new Segment<>(segmentCapacity);
+    }
+
+    private Segment<V> segmentFor(long hash) {
+        return this.segments.length == 1 ? this.segments[0] : this.segments[(int) (hash >>> this.segmentShift)];
+    }
+
+    public V get(long key) {
+        long hash = HashCommon.mix(key);
+        return this.segmentFor(hash).get(key, (int) hash);
+    }
+
+    public boolean containsKey(long key) {
+        return this.get(key) != null;
+    }
+
+    public V put(long key, V value) {
+        long hash = HashCommon.mix(key);
+        return this.segmentFor(hash).put(key, (int) hash, value, false);
+    }
+
+    public V putIfAbsent(long key, V value) {
+        long hash = HashCommon.mix(key);
+        return this.segmentFor(hash).put(key, (int) hash, value, true);
+    }
+
+    /**
+     * Gets the value of {@code key}, creating it under the segment lock if missing.
+     * The function must not touch this map.
+     */
+    public V computeIfAbsent(long key, LongFunction<V> mappingFunction) {
+        long hash = HashCommon.mix(key);
+        Segment<V> segment = this.segmentFor(hash);
+        V value = segment.get(key, (int) hash);
+        if (value != null)
+            return value;
+        return segment.computeIfAbsent(key, (int) hash, mappingFunction);
+    }
+
+    public V remove(long key) {
+        long hash = HashCommon.mix(key);
+        return this.segmentFor(hash).remove(key, (int) hash, null);
+    }
+
+    /**
+     * Removes {@code key} only if it is still mapped to {@code value}, compared by identity.
+     */
+    public boolean remove(long key, V value) {
+        long hash = HashCommon.mix(key);
+        return this.segmentFor(hash).remove(key, (int) hash, value) != null;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : this.segments)
+            size += segment.size;
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (Segment<V> segment : this.segments)
+            if (segment.size != 0)
+                return false;
+        return true;
+    }
+
+    public void clear() {
+        for (Segment<V> segment : this.segments)
+            segment.clear();
+    }
+
+    /**
+     * @return a snapshot of the values, later changes are not reflected
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<>(this.size());
+        for (Segment<V> segment : this.segments)
+            segment.collect(values);
+        return values;
+    }
+
+    private static final class Segment<V> {
+        private final StampedLock lock = new StampedLock();
+        private long[] keys;
+        private Object[] values; // null marks a free slot
+        private volatile int size;
+        private int maxFill;
+
+        private Segment(int capacity) {
+            int length = HashCommon.arraySize(capacity, Hash.DEFAULT_LOAD_FACTOR);
+            this.keys = new long[length];
+            this.values = new Object[length];
+            this.maxFill = HashCommon.maxFill(length, Hash.DEFAULT_LOAD_FACTOR);
+        }
+
+        private V get(long key, int hash) {
+            long stamp = this.lock.tryOptimisticRead();
+            if (stamp != 0L) {
+                try {
+                    V value = this.find(key, hash);
+                    if (this.lock.validate(stamp))
+                        return value;
+                } catch (RuntimeException ignored) {
+                    // torn read during a resize, retry under the read lock
+                }
+            }
+            stamp = this.lock.readLock();
+            try {
+                return this.find(key, hash);
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V find(long key, int hash) {
+            long[] keys = this.keys;
+            Object[] values = this.values;
+            int mask = values.length - 1;
+            int pos = hash & mask;
+            for (int probes = 0; probes <= mask; probes++) { // bounded, a torn read never loops forever
+                Object value = values[pos];
+                if (value == null)
+                    return null;
+                if (keys[pos] == key)
+                    return (V) value;
+                pos = (pos + 1) & mask;
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private V put(long key, int hash, V value, boolean onlyIfAbsent) {
+            if (value == null)
+                throw new NullPointerException("Null values are not allowed.");
+            long stamp = this.lock.writeLock();
+            try {
+                int mask = this.values.length - 1;
+                int pos = hash & mask;
+                Object current;
+                while ((current = this.values[pos]) != null) {
+                    if (this.keys[pos] == key) {
+                        if (!onlyIfAbsent)
+                            this.values[pos] = value;
+                        return (V) current;
+                    }
+                    pos = (pos + 1) & mask;
+                }
+                this.keys[pos] = key;
+                this.values[pos] = value;
+                if (++this.size >= this.maxFill)
+                    this.rehash(this.values.length * 2);
+                return null;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        private V computeIfAbsent(long key, int hash, LongFunction<V> mappingFunction) {
+            long stamp = this.lock.writeLock();
+            try {
+                V value = this.find(key, hash);
+                if (value != null)
+                    return value;
+                value = mappingFunction.apply(key);
+                if (value == null)
+                    return null;
+                int mask = this.values.length - 1;
+                int pos = hash & mask;
+                while (this.values[pos] != null)
+                    pos = (pos + 1) & mask;
+                this.keys[pos] = key;
+                this.values[pos] = value;
+                if (++this.size >= this.maxFill)
+                    this.rehash(this.values.length * 2);
+                return value;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V remove(long key, int hash, V expected) {
+            long stamp = this.lock.writeLock();
+            try {
+                int mask = this.values.length - 1;
+                int pos = hash & mask;
+                Object current;
+                while ((current = this.values[pos]) != null) {
+                    if (this.keys[pos] == key) {
+                        if (expected != null && current != expected)
+                            return null;
+                        this.shiftKeys(pos);
+                        this.size--;
+                        return (V) current;
+                    }
+                    pos = (pos + 1) & mask;
+                }
+                return null;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Backward shift deletion, keeps probe chains without tombstones.
+         */
+        private void shiftKeys(int pos) {
+            long[] keys = this.keys;
+            Object[] values = this.values;
+            int mask = values.length - 1;
+            int last;
+            while (true) {
+                pos = ((last = pos) + 1) & mask;
+                while (true) {
+                    if (values[pos] == null) {
+                        values[last] = null;
+                        return;
+                    }
+                    int slot = (int) HashCommon.mix(keys[pos]) & mask;
+                    if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos)
+                        break;
+                    pos = (pos + 1) & mask;
+                }
+                keys[last] = keys[pos];
+                values[last] = values[pos];
+            }
+        }
+
+        private void rehash(int length) {
+            long[] oldKeys = this.keys;
+            Object[] oldValues = this.values;
+            long[] newKeys = new long[length];
+            Object[] newValues = new Object[length];
+            int mask = length - 1;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] == null)
+                    continue;
+                int pos = (int) HashCommon.mix(oldKeys[i]) & mask;
+                while (newValues[pos] != null)
+                    pos = (pos + 1) & mask;
+                newKeys[pos] = oldKeys[i];
+                newValues[pos] = oldValues[i];
+            }
+            this.keys = newKeys;
+            this.values = newValues;
+            this.maxFill = HashCommon.maxFill(length, Hash.DEFAULT_LOAD_FACTOR);
+        }
+
+        private void clear() {
+            long stamp = this.lock.writeLock();
+            try {
+                Arrays.fill(this.values, null);
+                this.size = 0;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void collect(List<V> into) {
+            long stamp = this.lock.readLock();
+            try {
+                for (Object value : this.values)
+                    if (value != null)
+                        into.add((V) value);
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+    }
+}
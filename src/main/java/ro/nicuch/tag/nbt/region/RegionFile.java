@@ -6,6 +6,10 @@ import it.unimi.dsi.fastutil.ints.IntBidirectionalIterator;
 import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
 import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
 import org.jetbrains.annotations.Nullable;
+import ro.nicuch.tag.nbt.TagFormat;
+import ro.nicuch.tag.nbt.TagReader;
+import ro.nicuch.tag.nbt.TagType;
+import ro.nicuch.tag.nbt.TagVisitor;
 import ro.nicuch.test.nbt.CompoundTag;
 import ro.nicuch.test.nbt.async.AsyncIntSortedSet;
 
@@ -162,6 +166,58 @@ public class RegionFile implements AutoCloseable {
         }
     }
 
+    /**
+     * Streams the tag of a chunk to {@code visitor} without creating it, the format is read from the region version byte.
+     *
+     * @return {@code false} if the visitor stopped the read or the chunk could not be read
+     */
+    public final boolean acceptChunkCompoundTag(final int chunk_x, final int chunk_y, final int chunk_z, final TagVisitor visitor) {
+        int region_chunk_x = chunk_x & 31;
+        int region_chunk_y = chunk_y & 31;
+        int region_chunk_z = chunk_z & 31;
+        if (this.outOfBounds(region_chunk_x, region_chunk_y, region_chunk_z)) {
+            throw new IllegalStateException("Chunk out of bounds!"); // might never happen
+        }
+        ReentrantLock lock = this.regionLocks[region_chunk_x][region_chunk_y][region_chunk_z];
+        lock.lock();
+        try {
+            ByteBuffer buffer = this.readChunkData(region_chunk_x, region_chunk_y, region_chunk_z);
+            if (buffer == null)
+                return true;
+            buffer.flip();
+            if (!buffer.hasArray() || !buffer.hasRemaining()) {
+                return true;
+            }
+            try (FastByteArrayInputStream bais = new FastByteArrayInputStream(buffer.array())) {
+                try (DataInputStream dis = new DataInputStream(bais)) {
+                    byte regionVersion = dis.readByte();
+                    TagFormat format = TagFormat.ofRegionVersion(regionVersion);
+                    switch (CompressionType.valueOf(regionVersion)) {
+                        case ZLIB:
+                            try (InflaterInputStream zlib = new InflaterInputStream(dis)) {
+                                try (DataInputStream ret = new DataInputStream(zlib)) {
+                                    return TagReader.accept(ret, TagType.COMPOUND, format, visitor);
+                                }
+                            }
+                        case GZIP:
+                            try (GZIPInputStream gzip = new GZIPInputStream(dis)) {
+                                try (DataInputStream ret = new DataInputStream(gzip)) {
+                                    return TagReader.accept(ret, TagType.COMPOUND, format, visitor);
+                                }
+                            }
+                        default:
+                            return TagReader.accept(dis, TagType.COMPOUND, format, visitor);
+                    }
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public final void putChunkCompoundTag(final int chunk_x, final int chunk_y, final int chunk_z, final CompoundTag compoundTag) {
         this.putChunkCompoundTag(chunk_x, chunk_y, chunk_z, compoundTag, CompressionType.ZLIB); // default compression
     }
@@ -404,8 +460,11 @@ public class RegionFile implements AutoCloseable {
             return this.version;
         }
 
+        /**
+         * @param version the version byte of a chunk, its high bits are the {@link ro.nicuch.tag.nbt.TagFormat}
+         */
         public static CompressionType valueOf(byte version) {
-            switch (version) {
+            switch (version & 0x0F) {
                 case (byte) 1:
                     return CompressionType.GZIP;
                 case (byte) 2:
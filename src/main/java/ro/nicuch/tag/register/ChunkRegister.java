@@ -3,6 +3,8 @@ package ro.nicuch.tag.register;
 import org.bukkit.Chunk;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Entity;
+import ro.nicuch.tag.TagRegister;
+import ro.nicuch.tag.nbt.BlockSection;
 import ro.nicuch.tag.nbt.ChunkCompoundTag;
 import ro.nicuch.tag.nbt.CompoundTag;
 import ro.nicuch.tag.nbt.region.RegionFile;
@@ -10,12 +12,15 @@ import ro.nicuch.tag.wrapper.BlockUUID;
 import ro.nicuch.tag.wrapper.ChunkUUID;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ChunkRegister {
     private final RegionRegister register;
     private final Chunk chunk;
     private final ChunkCompoundTag chunkTag;
-    private final Set<UUID> entities = new HashSet<>();
+    private final Set<UUID> entities = ConcurrentHashMap.newKeySet();
+    private volatile boolean dirty;
+    private ChunkCompoundTag snapshot; // the last one captured, until it is written
 
     private final ChunkUUID uuid;
 
@@ -32,16 +37,18 @@ public class ChunkRegister {
         this.register = register;
         this.chunk = chunk;
         RegionFile regionTag = register.getRegionFile();
-        if (regionTag.containsChunkCompounds(this.uuid))
-            this.chunkTag = regionTag.getChunkCompound(this.uuid);
-        else {
+        String worldName = register.getWorldRegister().getWorldInstance().getName();
+        ChunkCompoundTag pendingTag = TagRegister.getPlugin().getWriteBehindBuffer().take(worldName, this.uuid);
+        if (pendingTag != null)
+            this.chunkTag = pendingTag; // not written yet, read our own write
+        else if (regionTag.containsChunkCompounds(this.uuid)) {
+            ChunkCompoundTag cachedTag = TagRegister.getPlugin().getChunkTagCache().take(worldName, this.uuid);
+            this.chunkTag = cachedTag != null ? cachedTag : regionTag.getChunkCompound(this.uuid);
+        } else {
             this.chunkTag = new ChunkCompoundTag();
         }
-        for (Map.Entry<UUID, CompoundTag> entitiesEntry : this.chunkTag.entrySetEntities()) {
-            UUID entityUUID = entitiesEntry.getKey();
-            register.getWorldRegister().loadEntityInternal(entityUUID, entitiesEntry.getValue());
-            this.entities.add(entityUUID);
-        }
+        for (UUID entityUUID : this.chunkTag.keySetEntities())
+            register.getWorldRegister().claimEntity(entityUUID, this); // the tag is decoded when first asked for
     }
 
     public Chunk getChunk() {
@@ -57,64 +64,192 @@ public class ChunkRegister {
     }
 
     public void unload(boolean checkEntities, Set<UUID> entitiesArray) {
-        this.savePopulation(checkEntities, entitiesArray);
-        this.entities.clear();
+        this.populate(checkEntities ? entitiesArray : null, true);
+        this.register.getWorldRegister().getPresence().update(this.uuid.getX(), this.uuid.getZ(), this.chunkTag); // still found while pending
+        TagRegister.getPlugin().getWriteBehindBuffer().put(this.register, this.uuid, this.chunkTag); // written later
+    }
+
+    /**
+     * Unloads this chunk without writing it, used on shutdown.
+     *
+     * @return the chunk tag to write, owned by the caller
+     */
+    public ChunkCompoundTag close() {
+        this.populate(null, true);
+        return this.chunkTag;
+    }
+
+    /**
+     * Takes a point in time copy of this chunk, to be written off the main thread while its tags keep changing.
+     * Must be called on the main thread, where tags are changed, under this register's monitor.
+     *
+     * @return the snapshot, owned by the caller
+     */
+    ChunkCompoundTag capture() {
+        this.dirty = false; // cleared first, a write after the capture marks it again
+        this.populate(null, false);
+        synchronized (this.chunkTag) {
+            return this.snapshot = this.chunkTag.snapshot();
+        }
+    }
+
+    /**
+     * Takes a snapshot of this chunk to be read off the main thread, unlike {@link #capture()} it is not written.
+     * Must be called on the main thread.
+     *
+     * @return the snapshot, owned by the caller
+     */
+    ChunkCompoundTag snapshotForReading() {
+        synchronized (this.chunkTag) {
+            return this.chunkTag.snapshot();
+        }
+    }
+
+    /**
+     * Writes a snapshot taken by {@link #capture()}, unless a newer one was taken since.
+     * Called under this register's monitor, so an unload never races with the write.
+     *
+     * @param snapshot the snapshot
+     * @return {@code true} if it was written
+     */
+    boolean writeSnapshot(ChunkCompoundTag snapshot) {
+        if (this.snapshot != snapshot)
+            return false; // a newer one is written instead
+        this.snapshot = null;
+        this.register.writeChunkCompound(this.uuid, snapshot);
+        synchronized (this.chunkTag) {
+            this.chunkTag.adopt(snapshot); // clean sections are copied as they are by the next save
+        }
+        return true;
     }
 
-    public void savePopulation(boolean checkEntities, Set<UUID> entities) {
+    /**
+     * Checks if a tag of this chunk was handed out or created since the last save.
+     * Tags are mutable, so any tag handed out counts as a possible write, also the ones still held since an earlier save:
+     * a section holding decoded blocks is dirty, see {@link BlockSection#isDirty()}, and so is a decoded entity tag.
+     *
+     * @return {@code true} if this chunk needs saving
+     */
+    public boolean isDirty() {
+        if (this.dirty)
+            return true;
+        synchronized (this.chunkTag) {
+            for (BlockSection section : this.chunkTag.getSections())
+                if (section.isDirty())
+                    return true;
+        }
         WorldRegister worldRegister = this.register.getWorldRegister();
-        if (checkEntities) {
-            this.chunkTag.clearEntities();
-            for (UUID uuid : entities) {
-                worldRegister.getStoredEntityInternal(uuid).ifPresent(compoundTag -> {
-                    if (!compoundTag.isEmpty())
-                        this.chunkTag.putEntity(uuid, compoundTag);
-                });
-            }
-            this.entities.clear(); // clean-up entities that doesn't exist
-            this.entities.addAll(entities); // these are the new entities in that chunk
-        } else {
-            for (UUID uuid : this.entities) {
-                if (worldRegister.isEntityStoredInternal(uuid)) {
-                    this.chunkTag.putEntity(uuid, worldRegister.unloadEntityInternal(uuid));
+        for (UUID uuid : this.entities)
+            if (worldRegister.getLoadedEntityInternal(uuid) != null)
+                return true;
+        return false;
+    }
+
+    public void markDirty() {
+        this.dirty = true;
+    }
+
+    /**
+     * Puts the tags of the entities owned by this chunk in the chunk tag.
+     *
+     * @param present   the entities found in the chunk, they are claimed by it, or {@code null} to trust the owner index
+     * @param unloading if the entity tags leave the memory with this chunk
+     */
+    private void populate(Set<UUID> present, boolean unloading) {
+        WorldRegister worldRegister = this.register.getWorldRegister();
+        if (present != null) {
+            for (UUID uuid : present)
+                if (worldRegister.isEntityStoredInternal(uuid))
+                    worldRegister.claimEntity(uuid, this); // moved in since it was tagged
+            for (UUID uuid : this.entities)
+                if (!present.contains(uuid)) {
+                    worldRegister.getStoredEntityInternalUnsafe(uuid); // decoded, it stays in memory without a chunk
+                    worldRegister.releaseEntity(uuid, this); // moved out, the chunk holding it claims it
                 }
-            }
         }
-        RegionFile regionTag = this.register.getRegionFile();
-        if (!this.chunkTag.isEmpty(true))
-            regionTag.putChunkCompound(this.uuid, this.chunkTag);
-        else if (regionTag.containsChunkCompounds(uuid))
-            regionTag.removeChunkCompound(uuid);
+        this.chunkTag.retainEntities(this.entities); // the others moved out or are gone
+        for (UUID uuid : this.entities) {
+            CompoundTag entityTag = unloading ? worldRegister.unloadEntityInternal(uuid) : worldRegister.getLoadedEntityInternal(uuid);
+            if (entityTag == null)
+                continue; // never asked for, the chunk tag still has its bytes
+            if (entityTag.isEmpty())
+                this.chunkTag.removeEntity(uuid);
+            else
+                this.chunkTag.putEntity(uuid, entityTag);
+        }
+        if (unloading) {
+            for (UUID uuid : this.entities)
+                worldRegister.releaseEntity(uuid, this);
+        }
+    }
+
+    /**
+     * Decodes the tag of an entity owned by this chunk that was not asked for since the chunk was read.
+     *
+     * @param uuid the entity
+     * @return the tag, or {@code null} if this chunk does not own it or has no tag for it
+     */
+    CompoundTag decodeEntity(UUID uuid) {
+        if (!this.entities.contains(uuid))
+            return null;
+        synchronized (this.chunkTag) {
+            return this.chunkTag.getEntity(uuid);
+        }
+    }
+
+    boolean hasEncodedEntity(UUID uuid) {
+        if (!this.entities.contains(uuid))
+            return false;
+        synchronized (this.chunkTag) {
+            return this.chunkTag.containsEntity(uuid);
+        }
+    }
+
+    void ownEntity(UUID uuid) {
+        this.entities.add(uuid);
+    }
+
+    void disownEntity(UUID uuid) {
+        if (this.entities.remove(uuid))
+            this.dirty = true; // drop it from disk on the next save
     }
 
     public boolean isBlockStored(Block block) {
-        BlockUUID blockUUID = new BlockUUID(block);
-        return this.chunkTag.containsBlock(blockUUID);
+        int blockKey = BlockUUID.pack(block);
+        return this.chunkTag.containsBlock(blockKey);
     }
 
     public Optional<CompoundTag> getStoredBlock(Block block) {
-        BlockUUID blockUUID = new BlockUUID(block);
-        return Optional.ofNullable(this.chunkTag.getBlock(blockUUID));
+        int blockKey = BlockUUID.pack(block);
+        CompoundTag tag = this.chunkTag.getBlock(blockKey);
+        if (tag != null)
+            this.dirty = true;
+        return Optional.ofNullable(tag);
     }
 
     public CompoundTag getStoredBlockUnsafe(Block block) {
-        BlockUUID blockUUID = new BlockUUID(block);
-        return this.chunkTag.getBlock(blockUUID);
+        int blockKey = BlockUUID.pack(block);
+        CompoundTag tag = this.chunkTag.getBlock(blockKey);
+        if (tag != null)
+            this.dirty = true;
+        return tag;
     }
 
     public CompoundTag createStoredBlock(Block block) {
-        BlockUUID blockUUID = new BlockUUID(block);
+        this.dirty = true;
+        int blockKey = BlockUUID.pack(block);
         CompoundTag tag = new CompoundTag();
-        this.chunkTag.putBlock(blockUUID, tag);
+        this.chunkTag.putBlock(blockKey, tag);
         return tag;
     }
 
     public CompoundTag getOrCreateBlock(Block block) {
-        BlockUUID blockUUID = new BlockUUID(block);
-        if (this.chunkTag.containsBlock(blockUUID))
-            return this.chunkTag.getBlock(blockUUID);
+        this.dirty = true;
+        int blockKey = BlockUUID.pack(block);
+        if (this.chunkTag.containsBlock(blockKey))
+            return this.chunkTag.getBlock(blockKey);
         CompoundTag tag = new CompoundTag();
-        this.chunkTag.putBlock(blockUUID, tag);
+        this.chunkTag.putBlock(blockKey, tag);
         return tag;
     }
 
@@ -139,11 +274,17 @@ public class ChunkRegister {
     }
 
     public Optional<CompoundTag> getStoredEntity(UUID uuid) {
-        return this.register.getStoredEntity(uuid);
+        Optional<CompoundTag> tag = this.register.getStoredEntity(uuid);
+        if (tag.isPresent())
+            this.refferenceEntity(uuid); // the entity is here now
+        return tag;
     }
 
     public CompoundTag getStoredEntityUnsafe(UUID uuid) {
-        return this.register.getStoredEntityUnsafe(uuid);
+        CompoundTag tag = this.register.getStoredEntityUnsafe(uuid);
+        if (tag != null)
+            this.refferenceEntity(uuid); // the entity is here now
+        return tag;
     }
 
     public CompoundTag createStoredEntity(UUID uuid) {
@@ -158,7 +299,8 @@ public class ChunkRegister {
 
 
     public void refferenceEntity(UUID uuid) {
-        this.entities.add(uuid);
+        this.dirty = true;
+        this.register.getWorldRegister().claimEntity(uuid, this);
     }
 
     public RegionRegister getRegionRegister() {
@@ -166,6 +308,7 @@ public class ChunkRegister {
     }
 
     public ChunkCompoundTag getChunkTag() {
+        this.dirty = true;
         synchronized (this.chunkTag) {
             return this.chunkTag;
         }
@@ -1,36 +1,37 @@
 package ro.nicuch.tag.register;
 
+import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Entity;
+import ro.nicuch.tag.TagRegister;
+import ro.nicuch.tag.nbt.BlockSection;
+import ro.nicuch.tag.nbt.ChunkCompoundTag;
 import ro.nicuch.tag.nbt.CompoundTag;
+import ro.nicuch.tag.nbt.async.ConcurrentLong2ObjectHashMap;
 import ro.nicuch.tag.nbt.region.RegionFile;
+import ro.nicuch.tag.thread.SingleFlight;
+import ro.nicuch.tag.wrapper.BlockUUID;
 import ro.nicuch.tag.wrapper.ChunkUUID;
 import ro.nicuch.tag.wrapper.RegionUUID;
 
 import java.io.File;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class RegionRegister {
     private final WorldRegister register;
-    private final ConcurrentMap<ChunkUUID, ChunkRegister> chunks = new ConcurrentHashMap<>();
-    private final Map<ChunkUUID, ReentrantLock> chunksLock = Collections.synchronizedMap(new WeakHashMap<>());
+    private final ConcurrentLong2ObjectHashMap<ChunkRegister> chunks = new ConcurrentLong2ObjectHashMap<>(4, 64);
+    private final SingleFlight<Long, ChunkRegister> chunkLoader = new SingleFlight<>();
     private final int x;
     private final int z;
     private RegionFile regionFile;
     private final RegionUUID uuid;
-
-    private ReentrantLock getChunkLock(ChunkUUID chunkUUID) {
-        if (this.chunksLock.containsKey(chunkUUID))
-            return this.chunksLock.get(chunkUUID);
-        ReentrantLock lock = new ReentrantLock();
-        chunksLock.put(chunkUUID, lock);
-        return lock;
-    }
+    private final AtomicInteger liveChunks = new AtomicInteger();
+    private volatile long lastSaveNanos;
 
     public final RegionUUID getRegionUUID() {
         return this.uuid;
@@ -66,6 +67,21 @@ public class RegionRegister {
         return this.regionFile;
     }
 
+    /**
+     * Writes a chunk tag to this region's file, removing the chunk from the file when the tag is empty.
+     *
+     * @param chunkUUID the chunk
+     * @param chunkTag  the chunk tag
+     */
+    public void writeChunkCompound(ChunkUUID chunkUUID, ChunkCompoundTag chunkTag) {
+        boolean empty = chunkTag.isEmpty(true);
+        this.register.updateIndexes(chunkUUID, empty ? null : chunkTag); // before writing, it cleans the sections
+        if (!empty)
+            this.regionFile.putChunkCompound(chunkUUID, chunkTag);
+        else if (this.regionFile.containsChunkCompounds(chunkUUID))
+            this.regionFile.removeChunkCompound(chunkUUID);
+    }
+
     public int getX() {
         return this.x;
     }
@@ -75,115 +91,139 @@ public class RegionRegister {
     }
 
     public boolean isChunkLoaded(Chunk chunk) {
-        ChunkUUID chunkUUID = new ChunkUUID(chunk);
-        ReentrantLock lock = this.getChunkLock(chunkUUID);
-        lock.lock();
-        try {
-            return this.chunks.containsKey(chunkUUID);
-        } finally {
-            lock.unlock();
-        }
+        return this.chunks.containsKey(ChunkUUID.pack(chunk.getX(), chunk.getZ()));
     }
 
     public boolean isChunkLoaded(ChunkUUID chunkUUID) {
-        ReentrantLock lock = this.getChunkLock(chunkUUID);
-        lock.lock();
-        try {
-            return this.chunks.containsKey(chunkUUID);
-        } finally {
-            lock.unlock();
-        }
+        return this.chunks.containsKey(chunkUUID.toLong());
     }
 
+    /**
+     * Gets or loads a chunk of this region. If this region was closed since it was looked up,
+     * the chunk is loaded in the region that replaces it, so it never ends up in a closed region.
+     *
+     * @param chunk the chunk
+     * @return the chunk register
+     */
     public ChunkRegister getOrLoadChunk(Chunk chunk) {
-        ChunkUUID chunkUUID = new ChunkUUID(chunk);
-        ReentrantLock lock = this.getChunkLock(chunkUUID);
-        lock.lock();
-        try {
-            if (this.chunks.containsKey(chunkUUID))
-                return this.chunks.get(chunkUUID);
-            ChunkRegister chunkRegister = new ChunkRegister(this, chunk, chunkUUID);
-            this.chunks.put(chunkUUID, chunkRegister);
+        long key = ChunkUUID.pack(chunk.getX(), chunk.getZ());
+        ChunkRegister chunkRegister = this.chunks.get(key);
+        if (chunkRegister != null)
             return chunkRegister;
+        if (!this.pin())
+            return this.register.getOrLoadRegion(chunk).getOrLoadChunk(chunk); // closed meanwhile
+        try {
+            return this.chunkLoader.load(key, () -> this.chunks.get(key), () -> {
+                ChunkRegister loaded = new ChunkRegister(this, chunk, ChunkUUID.fromLong(key));
+                this.chunks.put(key, loaded);
+                this.liveChunks.incrementAndGet();
+                return loaded;
+            });
         } finally {
-            lock.unlock();
+            this.unpin();
         }
     }
 
     public ChunkRegister loadChunk(Chunk chunk) {
-        ChunkUUID chunkUUID = new ChunkUUID(chunk);
-        ReentrantLock lock = this.getChunkLock(chunkUUID);
-        lock.lock();
+        if (!this.pin())
+            return this.register.getOrLoadRegion(chunk).loadChunk(chunk); // closed meanwhile
         try {
+            ChunkUUID chunkUUID = new ChunkUUID(chunk);
             ChunkRegister chunkRegister = new ChunkRegister(this, chunk, chunkUUID);
-            this.chunks.put(chunkUUID, chunkRegister);
+            if (this.chunks.put(chunkUUID.toLong(), chunkRegister) == null)
+                this.liveChunks.incrementAndGet();
             return chunkRegister;
         } finally {
-            lock.unlock();
+            this.unpin();
         }
     }
 
-    public Optional<ChunkRegister> getChunk(Chunk chunk) {
-        ChunkUUID chunkUUID = new ChunkUUID(chunk);
-        ReentrantLock lock = this.getChunkLock(chunkUUID);
-        lock.lock();
-        try {
-            return Optional.ofNullable(this.chunks.get(chunkUUID));
-        } finally {
-            lock.unlock();
+    /**
+     * Keeps this region open while a chunk loads in it, the pin counts as a live chunk.
+     *
+     * @return {@code false} if this region was already closed
+     */
+    private boolean pin() {
+        synchronized (this) { // the monitor regions are closed under
+            if (!this.register.isRegionOpen(this))
+                return false;
+            this.liveChunks.incrementAndGet();
+            return true;
         }
     }
 
+    private void unpin() {
+        if (this.liveChunks.decrementAndGet() == 0)
+            this.register.unloadRegionIfUnused(this); // the chunk was unloaded while it loaded
+    }
+
+    public Optional<ChunkRegister> getChunk(Chunk chunk) {
+        return Optional.ofNullable(this.chunks.get(ChunkUUID.pack(chunk.getX(), chunk.getZ())));
+    }
+
     public Optional<ChunkRegister> getChunk(ChunkUUID chunkUUID) {
-        ReentrantLock lock = this.getChunkLock(chunkUUID);
-        lock.lock();
-        try {
-            return Optional.ofNullable(this.chunks.get(chunkUUID));
-        } finally {
-            lock.unlock();
-        }
+        return Optional.ofNullable(this.chunks.get(chunkUUID.toLong()));
     }
 
-    public ChunkRegister removeChunk(Chunk chunk) {
-        ChunkUUID chunkUUID = new ChunkUUID(chunk);
-        ReentrantLock lock = this.getChunkLock(chunkUUID);
-        lock.lock();
-        try {
-            return this.chunks.remove(chunkUUID);
-        } finally {
-            lock.unlock();
-        }
+    /**
+     * Gets a loaded chunk by its packed coordinates, without allocating.
+     *
+     * @param chunkKey the chunk coordinates, see {@link ChunkUUID#pack(int, int)}
+     * @return the chunk register, or {@code null} if not loaded
+     */
+    public ChunkRegister getChunkUnsafe(long chunkKey) {
+        return this.chunks.get(chunkKey);
     }
 
+    public ChunkRegister removeChunk(Chunk chunk) {
+        ChunkRegister chunkRegister = this.chunks.remove(ChunkUUID.pack(chunk.getX(), chunk.getZ()));
+        if (chunkRegister != null)
+            this.liveChunks.decrementAndGet();
+        return chunkRegister;
+    }
+
+    /**
+     * Unloads a chunk, and closes this region once it was the last loaded chunk.
+     * The chunk is saved before it leaves the map, so a reader never misses its tags.
+     *
+     * @param chunk         the chunk
+     * @param entitiesArray the entities still in the chunk
+     * @return the unloaded chunk register, or {@code null} if it was not loaded
+     */
     public ChunkRegister unloadChunk(Chunk chunk, Set<UUID> entitiesArray) {
-        ChunkUUID chunkUUID = new ChunkUUID(chunk);
-        ReentrantLock lock = this.getChunkLock(chunkUUID);
-        lock.lock();
-        try {
-            ChunkRegister chunkRegister = this.chunks.get(chunkUUID);
+        long key = ChunkUUID.pack(chunk.getX(), chunk.getZ());
+        ChunkRegister chunkRegister = this.chunks.get(key);
+        if (chunkRegister == null)
+            return null;
+        int left;
+        synchronized (chunkRegister) {
+            if (this.chunks.get(key) != chunkRegister)
+                return chunkRegister; // unloaded meanwhile
             chunkRegister.unload(true, entitiesArray);
-            this.chunks.remove(chunkUUID);
-            return chunkRegister;
-        } finally {
-            lock.unlock();
+            this.chunks.remove(key, chunkRegister);
+            left = this.liveChunks.decrementAndGet();
         }
+        if (left == 0)
+            this.register.unloadRegionIfUnused(this); // outside the chunk monitor, regions are locked before chunks
+        return chunkRegister;
+    }
+
+    /**
+     * @return how many chunks of this region are loaded or loading
+     */
+    public int getLiveChunks() {
+        return this.liveChunks.get();
     }
 
     public boolean canBeUnloaded() {
-        Iterator<Map.Entry<ChunkUUID, ChunkRegister>> chunksIterator = this.chunks.entrySet().iterator();
-        while (chunksIterator.hasNext()) {
-            Map.Entry<ChunkUUID, ChunkRegister> entry = chunksIterator.next();
-            ChunkUUID chunkUUID = entry.getKey();
-            ReentrantLock lock = this.getChunkLock(chunkUUID);
-            lock.lock();
-            try {
-                ChunkRegister chunkRegister = entry.getValue();
-                if (!chunkRegister.getChunk().isLoaded()) {
+        for (ChunkRegister chunkRegister : this.chunks.values()) {
+            long key = chunkRegister.getChunkUUID().toLong();
+            synchronized (chunkRegister) {
+                if (!chunkRegister.getChunk().isLoaded() && this.chunks.get(key) == chunkRegister) {
                     chunkRegister.unload(false, null);
-                    chunksIterator.remove();
+                    this.chunks.remove(key, chunkRegister);
+                    this.liveChunks.decrementAndGet();
                 }
-            } finally {
-                lock.unlock();
             }
         }
         /*Iterator<ChunkRegister> chunkIterator = this.chunks.values().iterator();
@@ -194,23 +234,42 @@ public class RegionRegister {
                 chunkIterator.remove();
             }
         }*/
-        return this.chunks.isEmpty();
+        return this.chunks.isEmpty() && this.liveChunks.get() == 0; // no chunk loading either
+    }
+
+    /**
+     * Captures a chunk of this region to be written off the main thread, see {@link ChunkRegister#capture()}.
+     * Must be called on the main thread.
+     *
+     * @param chunkRegister the chunk
+     * @return the snapshot, or {@code null} if the chunk is not loaded anymore
+     */
+    public ChunkCompoundTag captureChunk(ChunkRegister chunkRegister) {
+        synchronized (chunkRegister) {
+            if (this.chunks.get(chunkRegister.getChunkUUID().toLong()) != chunkRegister)
+                return null; // unloaded meanwhile, the unload saved it
+            return chunkRegister.capture();
+        }
     }
 
-    public void saveChunks() {
-        for (Map.Entry<ChunkUUID, ChunkRegister> entry : this.chunks.entrySet()) {
-            ChunkUUID chunkUUID = entry.getKey();
-            ReentrantLock lock = this.getChunkLock(chunkUUID);
-            lock.lock();
-            try {
-                ChunkRegister chunkRegister = entry.getValue();
-                if (chunkRegister.getChunk().isLoaded()) {
-                    chunkRegister.savePopulation(true, Arrays.stream(chunkRegister.getChunk().getEntities()).map(Entity::getUniqueId).collect(Collectors.toSet()));
-                } else
-                    chunkRegister.savePopulation(false, null);
-            } finally {
-                lock.unlock();
-            }
+    /**
+     * Captures every loaded chunk of this region. Must be called on the main thread.
+     *
+     * @return the snapshot of each chunk
+     */
+    public Map<ChunkRegister, ChunkCompoundTag> captureChunks() {
+        Map<ChunkRegister, ChunkCompoundTag> snapshots = new HashMap<>();
+        for (ChunkRegister chunkRegister : this.chunks.values()) {
+            ChunkCompoundTag snapshot = this.captureChunk(chunkRegister);
+            if (snapshot != null)
+                snapshots.put(chunkRegister, snapshot);
+        }
+        return snapshots;
+    }
+
+    public void saveChunks(Map<ChunkRegister, ChunkCompoundTag> snapshots) {
+        for (Map.Entry<ChunkRegister, ChunkCompoundTag> entry : snapshots.entrySet()) {
+            this.saveChunk(entry.getKey(), entry.getValue());
         }
         /*for (ChunkRegister chunk : this.chunks.values())
             if (chunk.getChunk().isLoaded()) {
@@ -219,6 +278,192 @@ public class RegionRegister {
                 chunk.savePopulation(false, null);*/
     }
 
+    /**
+     * Writes a snapshot taken by {@link #captureChunk(ChunkRegister)}, off the main thread.
+     * Only this chunk is locked while it is written, and only its unload waits for it, its tags keep changing meanwhile.
+     *
+     * @param chunkRegister the chunk
+     * @param snapshot      its snapshot
+     * @return {@code true} if the chunk was saved
+     */
+    public boolean saveChunk(ChunkRegister chunkRegister, ChunkCompoundTag snapshot) {
+        synchronized (chunkRegister) {
+            if (this.chunks.get(chunkRegister.getChunkUUID().toLong()) != chunkRegister)
+                return false; // unloaded meanwhile, the unload saved a newer state
+            return chunkRegister.writeSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Writes every chunk of this region for the last time and closes its file.
+     * Chunks that could not be written before the deadline go to {@code journal} instead.
+     *
+     * @param deadlineNanos the {@link System#nanoTime()} to stop writing at
+     * @param journal       where the chunks left over are put
+     */
+    public void shutdown(long deadlineNanos, Map<ChunkUUID, ChunkCompoundTag> journal) {
+        Map<ChunkUUID, ChunkCompoundTag> toWrite = TagRegister.getPlugin().getWriteBehindBuffer().takeRegion(this);
+        for (ChunkRegister chunkRegister : this.chunks.values()) {
+            synchronized (chunkRegister) {
+                if (this.chunks.remove(chunkRegister.getChunkUUID().toLong(), chunkRegister)) {
+                    toWrite.put(chunkRegister.getChunkUUID(), chunkRegister.close());
+                    this.liveChunks.decrementAndGet();
+                }
+            }
+        }
+        for (Map.Entry<ChunkUUID, ChunkCompoundTag> entry : toWrite.entrySet()) {
+            if (System.nanoTime() - deadlineNanos >= 0) {
+                journal.put(entry.getKey(), entry.getValue()); // empty ones too, they may remove a chunk
+                continue;
+            }
+            try {
+                this.writeChunkCompound(entry.getKey(), entry.getValue());
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                System.out.println("(Writing) Couldn't save chunk " + entry.getKey() + " of " + this + ", it goes to the journal.");
+                journal.put(entry.getKey(), entry.getValue());
+            }
+        }
+        this.regionFile.commit();
+        this.regionFile.close();
+    }
+
+    public long getLastSaveNanos() {
+        return this.lastSaveNanos;
+    }
+
+    protected void setLastSaveNanos(long lastSaveNanos) {
+        this.lastSaveNanos = lastSaveNanos;
+    }
+
+    public Collection<ChunkRegister> getChunks() {
+        return this.chunks.values();
+    }
+
+    /**
+     * Visits the tagged blocks of this region inside the given block bounds, all inclusive.
+     * On the main thread loaded chunks give their live tags, off it they give snapshots taken on the main thread.
+     * The others are read from the write-behind buffer, the cache or the file without loading them.
+     * Chunks and sections without tags are skipped without decoding.
+     */
+    public void forEachTaggedBlock(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, TaggedBlockConsumer consumer) {
+        Map<ChunkRegister, ChunkCompoundTag> snapshots = Bukkit.isPrimaryThread() ? null
+                : onMainThread(() -> this.snapshotChunks(minX, minZ, maxX, maxZ));
+        if (snapshots == null && !Bukkit.isPrimaryThread())
+            return; // failed, the live tags must not be walked off the main thread
+        this.forEachTaggedBlock(minX, minY, minZ, maxX, maxY, maxZ, snapshots, consumer);
+    }
+
+    /**
+     * @param snapshots the loaded chunks taken by {@link #snapshotChunks(int, int, int, int)}, or {@code null} on the main thread
+     */
+    void forEachTaggedBlock(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Map<ChunkRegister, ChunkCompoundTag> snapshots, TaggedBlockConsumer consumer) {
+        String worldName = this.register.getWorldInstance().getName();
+        int fromX = Math.max(minX >> 4, this.x << 5), toX = Math.min(maxX >> 4, (this.x << 5) + 31);
+        int fromZ = Math.max(minZ >> 4, this.z << 5), toZ = Math.min(maxZ >> 4, (this.z << 5) + 31);
+        for (int chunkX = fromX; chunkX <= toX; chunkX++) {
+            for (int chunkZ = fromZ; chunkZ <= toZ; chunkZ++) {
+                ChunkRegister chunkRegister = this.chunks.get(ChunkUUID.pack(chunkX, chunkZ));
+                if (chunkRegister != null && snapshots == null) {
+                    if (chunkRegister.getChunkTag().isBlocksEmpty())
+                        continue;
+                    chunkRegister.markDirty(); // live tags are handed out
+                    forEachTaggedBlock(chunkRegister.getChunkTag(), chunkX, chunkZ, minX, minY, minZ, maxX, maxY, maxZ, true, consumer);
+                    continue;
+                }
+                if (chunkRegister != null) {
+                    ChunkCompoundTag snapshot = snapshots.get(chunkRegister);
+                    if (snapshot == null) // loaded since the snapshots were taken
+                        snapshot = onMainThread(chunkRegister::snapshotForReading);
+                    if (snapshot != null)
+                        forEachTaggedBlock(snapshot, chunkX, chunkZ, minX, minY, minZ, maxX, maxY, maxZ, false, consumer);
+                    continue;
+                }
+                ChunkCompoundTag chunkTag = readChunkDetached(worldName, this.regionFile, new ChunkUUID(chunkX, chunkZ));
+                if (chunkTag != null)
+                    forEachTaggedBlock(chunkTag, chunkX, chunkZ, minX, minY, minZ, maxX, maxY, maxZ, false, consumer);
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of every loaded chunk of this region inside the given block bounds, on the main thread.
+     */
+    Map<ChunkRegister, ChunkCompoundTag> snapshotChunks(int minX, int minZ, int maxX, int maxZ) {
+        Map<ChunkRegister, ChunkCompoundTag> snapshots = new HashMap<>();
+        int fromX = Math.max(minX >> 4, this.x << 5), toX = Math.min(maxX >> 4, (this.x << 5) + 31);
+        int fromZ = Math.max(minZ >> 4, this.z << 5), toZ = Math.min(maxZ >> 4, (this.z << 5) + 31);
+        for (int chunkX = fromX; chunkX <= toX; chunkX++) {
+            for (int chunkZ = fromZ; chunkZ <= toZ; chunkZ++) {
+                ChunkRegister chunkRegister = this.chunks.get(ChunkUUID.pack(chunkX, chunkZ));
+                if (chunkRegister != null)
+                    snapshots.put(chunkRegister, chunkRegister.snapshotForReading());
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Runs a task on the main thread and waits for it, the calling thread must not be the one the main thread waits for.
+     *
+     * @return the result, or {@code null} if the task failed
+     */
+    static <T> T onMainThread(Callable<T> task) {
+        try {
+            return Bukkit.getScheduler().callSyncMethod(TagRegister.getPlugin(), task).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the tag of a chunk that is not loaded, without taking it from the write-behind buffer or the cache.
+     *
+     * @return the chunk tag, a snapshot or read from the file, or {@code null} if the chunk has no tags
+     */
+    static ChunkCompoundTag readChunkDetached(String worldName, RegionFile regionFile, ChunkUUID chunkUUID) {
+        ChunkCompoundTag chunkTag = TagRegister.getPlugin().getWriteBehindBuffer().peek(worldName, chunkUUID);
+        if (chunkTag != null)
+            return chunkTag;
+        if (!regionFile.containsChunkCompounds(chunkUUID))
+            return null;
+        chunkTag = TagRegister.getPlugin().getChunkTagCache().peek(worldName, chunkUUID);
+        if (chunkTag != null)
+            return chunkTag;
+        try {
+            return regionFile.getChunkCompound(chunkUUID);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("(Reading) Couldn't read chunk " + chunkUUID + " for a range query!!");
+            return null;
+        }
+    }
+
+    static void forEachTaggedBlock(ChunkCompoundTag chunkTag, int chunkX, int chunkZ, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, boolean loaded, TaggedBlockConsumer consumer) {
+        int baseX = chunkX << 4;
+        int baseZ = chunkZ << 4;
+        for (BlockSection section : chunkTag.getSections()) {
+            int sectionY = section.getY();
+            if (sectionY < minY >> 4 || sectionY > maxY >> 4 || section.size() == 0)
+                continue; // not decoded
+            ChunkCompoundTag.BlockConsumer filter = (key, tag) -> {
+                int blockX = baseX + BlockUUID.unpackX(key);
+                int blockY = BlockUUID.unpackY(key);
+                int blockZ = baseZ + BlockUUID.unpackZ(key);
+                if (blockX >= minX && blockX <= maxX && blockY >= minY && blockY <= maxY && blockZ >= minZ && blockZ <= maxZ)
+                    consumer.accept(blockX, blockY, blockZ, tag, loaded);
+            };
+            if (loaded)
+                chunkTag.forEachBlock(sectionY, filter);
+            else
+                chunkTag.forEachBlockReadOnly(sectionY, filter); // detached, keep the bytes of clean sections
+        }
+    }
+
     public boolean isBlockStored(Block block) {
         return this.getOrLoadChunk(block.getChunk()).isBlockStored(block);
     }
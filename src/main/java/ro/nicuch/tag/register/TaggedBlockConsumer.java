@@ -0,0 +1,20 @@
+package ro.nicuch.tag.register;
+
+import ro.nicuch.tag.nbt.CompoundTag;
+
+/**
+ * Gets the tagged blocks found by a range query, see {@link WorldRegister#forEachTaggedBlock(org.bukkit.util.BoundingBox, TaggedBlockConsumer)}.
+ */
+@FunctionalInterface
+public interface TaggedBlockConsumer {
+
+    /**
+     * @param x      the block x
+     * @param y      the block y
+     * @param z      the block z
+     * @param tag    the block tag, read only if {@code loaded} is {@code false}
+     * @param loaded if the tag is the live one of a loaded chunk, changes to any other tag are lost.
+     *               Off the main thread loaded chunks give snapshots, so it is always {@code false} there
+     */
+    void accept(int x, int y, int z, CompoundTag tag, boolean loaded);
+}
@@ -1,13 +1,24 @@
 package ro.nicuch.tag.register;
 
+import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
+import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Entity;
-import org.springframework.util.ConcurrentReferenceHashMap;
+import org.bukkit.util.BoundingBox;
+import ro.nicuch.tag.TagRegister;
+import ro.nicuch.tag.index.TagIndex;
+import ro.nicuch.tag.index.WorldPresence;
+import ro.nicuch.tag.nbt.ChunkCompoundTag;
 import ro.nicuch.tag.nbt.CompoundTag;
 import ro.nicuch.tag.nbt.TagIO;
+import ro.nicuch.tag.nbt.TagKeys;
 import ro.nicuch.tag.nbt.TagType;
+import ro.nicuch.tag.nbt.async.ConcurrentLong2ObjectHashMap;
+import ro.nicuch.tag.nbt.region.RegionFile;
+import ro.nicuch.tag.thread.SingleFlight;
+import ro.nicuch.tag.wrapper.ChunkUUID;
 import ro.nicuch.tag.wrapper.RegionUUID;
 
 import java.io.File;
@@ -15,23 +26,36 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class WorldRegister {
+    private static final Pattern REGION_FILE = Pattern.compile("r\\.(-?[0-9]+)\\.(-?[0-9]+)\\.dat");
     private CompoundTag worldTag;
     private final File worldFile;
+    private final File journalFile;
     private final File worldDataFolder;
     private final World world;
-    private final ConcurrentMap<RegionUUID, RegionRegister> regions = new ConcurrentHashMap<>(16);
-    private final ConcurrentReferenceHashMap<RegionUUID, ReentrantLock> regionsLock = new ConcurrentReferenceHashMap<>(16, ConcurrentReferenceHashMap.ReferenceType.WEAK);
+    private final ConcurrentLong2ObjectHashMap<RegionRegister> regions = new ConcurrentLong2ObjectHashMap<>(16, 16);
+    private final SingleFlight<Long, RegionRegister> regionLoader = new SingleFlight<>();
     private final ConcurrentMap<UUID, CompoundTag> entities = new ConcurrentHashMap<>(16);
+    private final ConcurrentMap<UUID, ChunkRegister> entityOwners = new ConcurrentHashMap<>(16);
+    private final ConcurrentMap<String, TagIndex> indexes = new ConcurrentHashMap<>(4);
+    private final File indexDirectory;
+    private final WorldPresence presence;
+    private volatile long lastSaveNanos;
 
     public WorldRegister(World world) {
         this.world = world;
         this.worldDataFolder = new File(world.getWorldFolder().getPath() + File.separator + "tags");
         this.worldDataFolder.mkdirs();
         this.worldFile = new File(world.getWorldFolder().getPath() + File.separator + "tag_level.dat");
+        this.journalFile = new File(this.worldDataFolder.getPath() + File.separator + "journal.dat");
+        this.indexDirectory = new File(this.worldDataFolder.getPath() + File.separator + "index");
         if (!this.worldFile.exists()) {
             this.worldTag = new CompoundTag();
         } else {
@@ -44,14 +68,230 @@ public class WorldRegister {
                 e.printStackTrace();
             }
         }
+        if (this.journalFile.exists())
+            this.replayJournal();
+        this.presence = new WorldPresence(new File(this.worldDataFolder.getPath() + File.separator + "presence.dat"),
+                TagRegister.getPlugin().getConfig().getInt("presence.bloom-bits-per-region", 32768));
+        if (!this.presence.load(this.getLastRegionChange())) // after the journal, it changes the regions
+            TagRegister.getPlugin().getSavePool().execute(this::rebuildPresence);
+        for (String key : TagRegister.getIndexedKeys())
+            this.openIndex(key);
+    }
+
+    /**
+     * @return which chunks and blocks may have tags, used to answer negative block lookups without I/O
+     */
+    public WorldPresence getPresence() {
+        return this.presence;
+    }
+
+    /**
+     * Builds the presence again from every region file of this world, one task per region on the plugin's save pool.
+     * Lookups answer "maybe" until it is done.
+     */
+    public void rebuildPresence() {
+        long start = System.nanoTime();
+        ForkJoinPool savePool = TagRegister.getPlugin().getSavePool();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (RegionUUID regionUUID : this.getStoredRegions()) {
+            int regionX = regionUUID.getX(), regionZ = regionUUID.getZ();
+            tasks.add(savePool.submit(() -> this.forEachChunkOnDisk(regionX, regionZ, regionX << 5, (regionX << 5) + 31, regionZ << 5, (regionZ << 5) + 31,
+                    (chunkUUID, chunkTag) -> this.presence.rebuild(chunkUUID.getX(), chunkUUID.getZ(), chunkTag))));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        this.presence.setReady();
+        this.presence.save();
+        if (TagRegister.isDebugging())
+            TagRegister.getLogger().info("(Index) Rebuilt the presence of " + this.world.getName() + " from " + tasks.size() + " regions in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms.");
+    }
+
+    /**
+     * Opens the index of a key, reading it from disk or rebuilding it in the background when missing or older than the regions.
+     *
+     * @param key the tag key
+     * @return the index
+     */
+    public TagIndex openIndex(String key) {
+        return this.indexes.computeIfAbsent(key, indexKey -> {
+            TagIndex index = new TagIndex(indexKey, new File(this.indexDirectory.getPath() + File.separator + indexKey.replaceAll("[^A-Za-z0-9_.-]", "_") + ".dat"));
+            if (!index.load(this.getLastRegionChange()))
+                TagRegister.getPlugin().getSavePool().execute(() -> this.rebuildIndex(index));
+            return index;
+        });
+    }
+
+    public Optional<TagIndex> getIndex(String key) {
+        return Optional.ofNullable(this.indexes.get(key));
+    }
+
+    public Collection<TagIndex> getIndexes() {
+        return Collections.unmodifiableCollection(this.indexes.values());
+    }
+
+    /**
+     * Indexes a chunk that is about to be written, called for every chunk write.
+     *
+     * @param chunkUUID the chunk
+     * @param chunkTag  the chunk tag, or {@code null} if the chunk has no tags anymore
+     */
+    void updateIndexes(ChunkUUID chunkUUID, ChunkCompoundTag chunkTag) {
+        this.presence.update(chunkUUID.getX(), chunkUUID.getZ(), chunkTag);
+        for (TagIndex index : this.indexes.values())
+            index.update(chunkUUID.getX(), chunkUUID.getZ(), chunkTag);
+    }
+
+    /**
+     * Builds an index again from every region file of this world, one task per region on the plugin's save pool.
+     * Chunks written meanwhile are indexed by their write and kept.
+     *
+     * @param index the index
+     */
+    public void rebuildIndex(TagIndex index) {
+        long start = System.nanoTime();
+        index.clear();
+        ForkJoinPool savePool = TagRegister.getPlugin().getSavePool();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (RegionUUID regionUUID : this.getStoredRegions()) {
+            int regionX = regionUUID.getX(), regionZ = regionUUID.getZ();
+            tasks.add(savePool.submit(() -> this.forEachChunkOnDisk(regionX, regionZ, regionX << 5, (regionX << 5) + 31, regionZ << 5, (regionZ << 5) + 31,
+                    (chunkUUID, chunkTag) -> index.rebuild(chunkUUID.getX(), chunkUUID.getZ(), chunkTag))));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        index.setReady();
+        index.save();
+        TagRegister.getLogger().info("(Index) Rebuilt index '" + index.getKey() + "' of " + this.world.getName() + " from " + tasks.size() + " regions in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, " + index.size() + " entries.");
+    }
+
+    /**
+     * Writes the indexes and the presence, after the regions so they are not older than them.
+     */
+    public void saveIndexes() {
+        this.presence.save();
+        for (TagIndex index : this.indexes.values())
+            index.save();
+    }
+
+    /**
+     * @return the regions that have a file in this world's tag folder
+     */
+    public List<RegionUUID> getStoredRegions() {
+        List<RegionUUID> stored = new ArrayList<>();
+        File[] files = this.worldDataFolder.listFiles();
+        if (files == null)
+            return stored;
+        for (File file : files) {
+            Matcher matcher = REGION_FILE.matcher(file.getName());
+            if (matcher.matches())
+                stored.add(new RegionUUID(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))));
+        }
+        return stored;
+    }
+
+    private long getLastRegionChange() {
+        long last = this.journalFile.lastModified();
+        File[] files = this.worldDataFolder.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (REGION_FILE.matcher(file.getName()).matches())
+                    last = Math.max(last, file.lastModified());
+        return last;
+    }
+
+    /**
+     * Reads the chunks of one region in the given chunk bounds from the disk, without loading them.
+     * The region file is opened just for this if the region is not loaded.
+     */
+    private void forEachChunkOnDisk(int regionX, int regionZ, int fromX, int toX, int fromZ, int toZ, BiConsumer<ChunkUUID, ChunkCompoundTag> consumer) {
+        RegionRegister regionRegister = this.regions.get(RegionUUID.pack(regionX, regionZ));
+        if (regionRegister != null) {
+            synchronized (regionRegister) { // not closed while reading
+                if (this.regions.get(regionRegister.getRegionUUID().toLong()) == regionRegister) {
+                    this.forEachChunkOnDisk(regionRegister.getRegionFile(), fromX, toX, fromZ, toZ, consumer);
+                    return;
+                }
+            }
+        }
+        File file = new File(this.getDirectory().getPath() + File.separator + "r." + regionX + "." + regionZ + ".dat");
+        if (!file.exists())
+            return;
+        RegionFile regionFile;
+        try {
+            regionFile = new RegionFile(file, regionX, regionZ);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("(Reading) This region is corupted. -> r." + regionX + "." + regionZ + ".dat!!");
+            return;
+        }
+        try {
+            this.forEachChunkOnDisk(regionFile, fromX, toX, fromZ, toZ, consumer);
+        } finally {
+            regionFile.close(); // only read, nothing to commit
+        }
     }
 
-    private ReentrantLock getRegionLock(RegionUUID regionUUID) {
-        if (this.regionsLock.containsKey(regionUUID))
-            return this.regionsLock.get(regionUUID);
-        ReentrantLock lock = new ReentrantLock();
-        regionsLock.put(regionUUID, lock);
-        return lock;
+    private void forEachChunkOnDisk(RegionFile regionFile, int fromX, int toX, int fromZ, int toZ, BiConsumer<ChunkUUID, ChunkCompoundTag> consumer) {
+        for (int chunkX = fromX; chunkX <= toX; chunkX++) {
+            for (int chunkZ = fromZ; chunkZ <= toZ; chunkZ++) {
+                ChunkUUID chunkUUID = new ChunkUUID(chunkX, chunkZ);
+                ChunkCompoundTag chunkTag = RegionRegister.readChunkDetached(this.world.getName(), regionFile, chunkUUID);
+                if (chunkTag != null)
+                    consumer.accept(chunkUUID, chunkTag);
+            }
+        }
+    }
+
+    /**
+     * Writes the chunks left over by the last shutdown to their regions.
+     */
+    private void replayJournal() {
+        try {
+            CompoundTag journal = (CompoundTag) TagIO.readFile(this.journalFile, TagType.COMPOUND);
+            Map<RegionUUID, RegionRegister> opened = new HashMap<>();
+            for (String key : journal.keySet()) {
+                String[] coords = key.split(";");
+                int chunkX = Integer.parseInt(coords[0]);
+                int chunkZ = Integer.parseInt(coords[1]);
+                opened.computeIfAbsent(new RegionUUID(Math.floorDiv(chunkX, 32), Math.floorDiv(chunkZ, 32)), regionUUID -> new RegionRegister(this, regionUUID))
+                        .writeChunkCompound(new ChunkUUID(chunkX, chunkZ), journal.getChunkCompound(key));
+            }
+            for (RegionRegister regionRegister : opened.values()) {
+                regionRegister.getRegionFile().commit();
+                regionRegister.getRegionFile().close();
+            }
+            this.journalFile.delete();
+            TagRegister.getLogger().info("(Reading) Replayed " + journal.size() + " chunks from " + this.world.getName() + "'s journal.");
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            System.out.println("(Reading) " + this.world.getName() + "'s journal is corupted.");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeJournal(Map<ChunkUUID, ChunkCompoundTag> chunks) {
+        CompoundTag journal = new CompoundTag();
+        for (Map.Entry<ChunkUUID, ChunkCompoundTag> entry : chunks.entrySet())
+            journal.put(entry.getKey().getX() + ";" + entry.getKey().getZ(), entry.getValue());
+        try {
+            TagIO.writeFile(journal, this.journalFile); // not compressed, it must be fast
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            System.out.println("(Writing) " + this.world.getName() + "'s journal is corupted.");
+        }
     }
 
     public File getDirectory() {
@@ -90,57 +330,62 @@ public class WorldRegister {
     }
 
     public boolean isRegionLoaded(Chunk chunk) {
-        return this.regions.containsKey(RegionUUID.fromChunk(chunk));
+        return this.regions.containsKey(RegionUUID.packFromChunk(chunk.getX(), chunk.getZ()));
     }
 
     public RegionRegister loadRegion(Chunk chunk) {
         RegionUUID regionUUID = RegionUUID.fromChunk(chunk);
-        ReentrantLock lock = this.getRegionLock(regionUUID);
-        lock.lock();
-        try {
-            RegionRegister region = new RegionRegister(this, regionUUID);
-            this.regions.put(regionUUID, region);
-            return region;
-        } finally {
-            lock.unlock();
-        }
+        RegionRegister region = new RegionRegister(this, regionUUID);
+        this.regions.put(regionUUID.toLong(), region);
+        return region;
     }
 
     public Optional<RegionRegister> getRegion(Chunk chunk) {
-        RegionUUID regionUUID = RegionUUID.fromChunk(chunk);
-        ReentrantLock lock = this.getRegionLock(regionUUID);
-        lock.lock();
-        try {
-            return Optional.ofNullable(this.regions.get(regionUUID));
-        } finally {
-            lock.unlock();
-        }
+        return Optional.ofNullable(this.regions.get(RegionUUID.packFromChunk(chunk.getX(), chunk.getZ())));
+    }
+
+    public Optional<RegionRegister> getRegion(RegionUUID regionUUID) {
+        return Optional.ofNullable(this.regions.get(regionUUID.toLong()));
+    }
+
+    /**
+     * Gets the chunk register only if both its region and the chunk are already loaded.
+     * Never opens a region file nor reads a chunk from disk.
+     *
+     * @param chunkX the chunk x coordinate
+     * @param chunkZ the chunk z coordinate
+     * @return the loaded chunk register, or empty
+     */
+    public Optional<ChunkRegister> getChunkIfLoaded(int chunkX, int chunkZ) {
+        return Optional.ofNullable(this.getChunkIfLoadedUnsafe(chunkX, chunkZ));
+    }
+
+    /**
+     * Same as {@link #getChunkIfLoaded(int, int)} but allocates nothing.
+     *
+     * @return the loaded chunk register, or {@code null}
+     */
+    public ChunkRegister getChunkIfLoadedUnsafe(int chunkX, int chunkZ) {
+        RegionRegister regionRegister = this.regions.get(RegionUUID.packFromChunk(chunkX, chunkZ));
+        if (regionRegister == null)
+            return null;
+        return regionRegister.getChunkUnsafe(ChunkUUID.pack(chunkX, chunkZ));
     }
 
     public RegionRegister getRegionUnsafe(Chunk chunk) {
-        RegionUUID regionUUID = RegionUUID.fromChunk(chunk);
-        ReentrantLock lock = this.getRegionLock(regionUUID);
-        lock.lock();
-        try {
-            return this.regions.get(regionUUID);
-        } finally {
-            lock.unlock();
-        }
+        return this.regions.get(RegionUUID.packFromChunk(chunk.getX(), chunk.getZ()));
     }
 
     public RegionRegister getOrLoadRegion(Chunk chunk) {
-        RegionUUID regionUUID = RegionUUID.fromChunk(chunk);
-        ReentrantLock lock = this.getRegionLock(regionUUID);
-        lock.lock();
-        try {
-            if (this.regions.containsKey(regionUUID))
-                return this.regions.get(regionUUID);
-            RegionRegister region = new RegionRegister(this, regionUUID);
-            this.regions.put(regionUUID, region);
-            return region;
-        } finally {
-            lock.unlock();
-        }
+        long key = RegionUUID.packFromChunk(chunk.getX(), chunk.getZ());
+        RegionRegister regionRegister = this.regions.get(key);
+        if (regionRegister != null)
+            return regionRegister;
+        return this.regionLoader.load(key, () -> this.regions.get(key), () -> {
+            RegionRegister loaded = new RegionRegister(this, RegionUUID.fromLong(key));
+            this.regions.put(key, loaded);
+            return loaded;
+        });
     }
 
     public CompoundTag loadEntityInternal(UUID uuid, CompoundTag tag) {
@@ -153,46 +398,180 @@ public class WorldRegister {
     }
 
     public boolean isEntityStoredInternal(UUID uuid) {
-        return this.entities.containsKey(uuid);
+        if (this.entities.containsKey(uuid))
+            return true;
+        ChunkRegister owner = this.entityOwners.get(uuid);
+        return owner != null && owner.hasEncodedEntity(uuid);
     }
 
     public CompoundTag getOrCreateEntityInternal(UUID uuid) {
-        if (this.entities.containsKey(uuid)) {
-            return this.entities.get(uuid);
-        }
-        CompoundTag entityTag = new CompoundTag();
-        this.entities.put(uuid, entityTag);
-        return entityTag;
+        CompoundTag entityTag = this.getLoadedOrDecodedEntity(uuid);
+        if (entityTag != null)
+            return entityTag;
+        entityTag = new CompoundTag();
+        CompoundTag raced = this.entities.putIfAbsent(uuid, entityTag);
+        return raced != null ? raced : entityTag;
+    }
+
+    /**
+     * Gets an entity tag, decoding it from the chunk owning the entity if it was not asked for since that chunk was read.
+     */
+    private CompoundTag getLoadedOrDecodedEntity(UUID uuid) {
+        CompoundTag entityTag = this.entities.get(uuid);
+        if (entityTag != null)
+            return entityTag;
+        ChunkRegister owner = this.entityOwners.get(uuid);
+        if (owner == null)
+            return null;
+        return this.loadDecodedEntity(uuid, owner);
+    }
+
+    private CompoundTag loadDecodedEntity(UUID uuid, ChunkRegister owner) {
+        CompoundTag entityTag = owner.decodeEntity(uuid);
+        if (entityTag == null)
+            return null;
+        CompoundTag raced = this.entities.putIfAbsent(uuid, entityTag);
+        return raced != null ? raced : entityTag;
+    }
+
+    /**
+     * @return the entity tag if it was asked for since its chunk was read, never decodes it
+     */
+    CompoundTag getLoadedEntityInternal(UUID uuid) {
+        return this.entities.get(uuid);
     }
 
     public CompoundTag unloadEntityInternal(UUID uuid) {
         return this.entities.remove(uuid);
     }
 
+    /**
+     * Makes a chunk the owner of an entity tag, the tag is saved with that chunk from now on.
+     *
+     * @param uuid          the entity
+     * @param chunkRegister the chunk the entity is in
+     */
+    public void claimEntity(UUID uuid, ChunkRegister chunkRegister) {
+        chunkRegister.ownEntity(uuid);
+        ChunkRegister previous = this.entityOwners.put(uuid, chunkRegister);
+        if (previous != null && previous != chunkRegister) {
+            this.loadDecodedEntity(uuid, previous); // the tag moves with the entity
+            previous.disownEntity(uuid);
+        }
+    }
+
+    /**
+     * Drops the owner of an entity tag if it is still {@code chunkRegister}, the tag stays loaded until claimed again.
+     *
+     * @param uuid          the entity
+     * @param chunkRegister the chunk the entity left
+     */
+    public void releaseEntity(UUID uuid, ChunkRegister chunkRegister) {
+        this.entityOwners.remove(uuid, chunkRegister);
+        chunkRegister.disownEntity(uuid);
+    }
+
+    /**
+     * Forgets the tag of an entity that is gone for good.
+     *
+     * @param uuid the entity
+     */
+    public void removeEntityInternal(UUID uuid) {
+        this.entities.remove(uuid);
+        ChunkRegister owner = this.entityOwners.remove(uuid);
+        if (owner != null)
+            owner.disownEntity(uuid);
+    }
+
+    public Optional<ChunkRegister> getEntityOwner(UUID uuid) {
+        return Optional.ofNullable(this.entityOwners.get(uuid));
+    }
+
+    /**
+     * Gives the entity tags left without a chunk to the chunk their entity is in now, or drops them if the entity is gone.
+     * Only looks up the orphans, never the whole world. Must be called on the main thread.
+     */
+    public void claimOrphans() {
+        this.claimOrphans(this.collectOrphans());
+    }
+
+    /**
+     * Finds the entity tags left without a chunk, safe off the main thread as no entity is looked up.
+     *
+     * @return the orphans' uuids
+     */
+    private List<UUID> collectOrphans() {
+        List<UUID> orphans = new ArrayList<>();
+        for (UUID uuid : this.entities.keySet()) {
+            if (!this.entityOwners.containsKey(uuid))
+                orphans.add(uuid);
+        }
+        return orphans;
+    }
+
+    private void claimOrphans(List<UUID> orphans) {
+        for (UUID uuid : orphans) {
+            if (this.entityOwners.containsKey(uuid))
+                continue; // claimed meanwhile
+            Entity entity = Bukkit.getEntity(uuid);
+            if (entity == null || !entity.isValid()) {
+                this.entities.remove(uuid);
+                continue;
+            }
+            Location location = entity.getLocation();
+            this.getChunkIfLoaded(location.getBlockX() >> 4, location.getBlockZ() >> 4).ifPresent(chunkRegister -> chunkRegister.refferenceEntity(uuid));
+        }
+    }
+
     public Optional<CompoundTag> getStoredEntityInternal(UUID uuid) {
-        return Optional.ofNullable(this.entities.get(uuid));
+        return Optional.ofNullable(this.getLoadedOrDecodedEntity(uuid));
     }
 
     public CompoundTag getStoredEntityInternalUnsafe(UUID uuid) {
-        return this.entities.get(uuid);
+        return this.getLoadedOrDecodedEntity(uuid);
+    }
+
+    /**
+     * @return {@code true} if the region is still the open one for its coordinates
+     */
+    boolean isRegionOpen(RegionRegister regionRegister) {
+        return this.regions.get(regionRegister.getRegionUUID().toLong()) == regionRegister;
+    }
+
+    /**
+     * Closes a region whose last chunk was unloaded, unless a chunk was loaded in it meanwhile.
+     *
+     * @param regionRegister the region
+     * @return {@code true} if the region was closed
+     */
+    public boolean unloadRegionIfUnused(RegionRegister regionRegister) {
+        synchronized (regionRegister) {
+            if (regionRegister.getLiveChunks() > 0 || this.regions.get(regionRegister.getRegionUUID().toLong()) != regionRegister)
+                return false;
+            this.closeRegion(regionRegister);
+            return true;
+        }
     }
 
+    /**
+     * Saves and closes a region, it stays in the map until its file is closed.
+     * Must be called while holding the region's monitor.
+     */
+    private void closeRegion(RegionRegister regionRegister) {
+        TagRegister.getPlugin().getWriteBehindBuffer().flushRegion(regionRegister); // pending chunks first
+        regionRegister.getRegionFile().commit(); // commit cache
+        regionRegister.getRegionFile().close(); // close cache
+        this.regions.remove(regionRegister.getRegionUUID().toLong(), regionRegister);
+    }
+
+    /**
+     * Safety net for chunks whose unload event was missed, regions are normally closed by {@link #unloadRegionIfUnused(RegionRegister)}.
+     */
     public void tryUnloading() {
-        Iterator<Map.Entry<RegionUUID, RegionRegister>> regionsIterator = this.regions.entrySet().iterator();
-        while (regionsIterator.hasNext()) {
-            Map.Entry<RegionUUID, RegionRegister> entry = regionsIterator.next();
-            RegionUUID regionUUID = entry.getKey();
-            ReentrantLock lock = this.getRegionLock(regionUUID);
-            lock.lock();
-            try {
-                RegionRegister regionRegister = entry.getValue();
-                if (regionRegister.canBeUnloaded()) {
-                    regionRegister.getRegionFile().commit(); // commit cache
-                    regionRegister.getRegionFile().close(); // close cache
-                    regionsIterator.remove();
-                }
-            } finally {
-                lock.unlock();
+        for (RegionRegister regionRegister : this.regions.values()) {
+            synchronized (regionRegister) {
+                if (this.regions.get(regionRegister.getRegionUUID().toLong()) == regionRegister && regionRegister.canBeUnloaded())
+                    this.closeRegion(regionRegister);
             }
         }
         /*Iterator<RegionRegister> regionIterator = this.regions.values().iterator();
@@ -204,45 +583,186 @@ public class WorldRegister {
                 regionIterator.remove();
             }
         }*/
-        Set<UUID> worldEntities = this.world.getEntities().stream().map(Entity::getUniqueId).collect(Collectors.toSet());
-        this.entities.keySet().removeIf(uuid -> !worldEntities.contains(uuid));
-        worldEntities.clear(); // manual gc
-    }
-
-    public void saveRegions() {
-        for (Map.Entry<RegionUUID, RegionRegister> entry : this.regions.entrySet()) {
-            RegionUUID regionUUID = entry.getKey();
-            ReentrantLock lock = this.getRegionLock(regionUUID);
-            lock.lock();
+        List<UUID> orphans = this.collectOrphans();
+        if (!orphans.isEmpty())
+            Bukkit.getScheduler().runTask(TagRegister.getPlugin(), () -> this.claimOrphans(orphans)); // entities can only be looked up on the main thread
+    }
+
+    /**
+     * Captures every loaded chunk of this world, as copy-on-write snapshots, to be written by {@link #saveRegions(Map)}.
+     * Must be called on the main thread, nothing is written here.
+     *
+     * @return the snapshots of each region
+     */
+    public Map<RegionRegister, Map<ChunkRegister, ChunkCompoundTag>> captureRegions() {
+        Map<RegionRegister, Map<ChunkRegister, ChunkCompoundTag>> snapshots = new HashMap<>();
+        for (RegionRegister regionRegister : this.regions.values())
+            snapshots.put(regionRegister, regionRegister.captureChunks());
+        return snapshots;
+    }
+
+    /**
+     * Saves captured regions, one task per region on the plugin's save pool.
+     * Only snapshots are serialized, the live tags keep being changed meanwhile.
+     *
+     * @param snapshots the snapshots taken by {@link #captureRegions()}
+     */
+    public void saveRegions(Map<RegionRegister, Map<ChunkRegister, ChunkCompoundTag>> snapshots) {
+        TagRegister.getPlugin().getWriteBehindBuffer().flushWorld(this.world.getName());
+        long start = System.nanoTime();
+        ForkJoinPool savePool = TagRegister.getPlugin().getSavePool();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(snapshots.size());
+        for (Map.Entry<RegionRegister, Map<ChunkRegister, ChunkCompoundTag>> entry : snapshots.entrySet())
+            tasks.add(savePool.submit(() -> this.saveRegion(entry.getKey(), entry.getValue())));
+        RegionRegister slowest = null;
+        for (ForkJoinTask<?> task : tasks) {
             try {
-                RegionRegister regionRegister = entry.getValue();
-                regionRegister.saveChunks();
-                regionRegister.getRegionFile().commit(); //commit to files
-            } finally {
-                lock.unlock();
+                task.join();
+            } catch (Exception ex) {
+                ex.printStackTrace();
             }
         }
+        for (RegionRegister regionRegister : snapshots.keySet())
+            if (slowest == null || regionRegister.getLastSaveNanos() > slowest.getLastSaveNanos())
+                slowest = regionRegister;
         /*for (RegionRegister region : this.regions.values()) {
             region.saveChunks();
             region.getRegionTag().commit(); //commit to files
         }*/
         this.writeWorldFile();
+        this.saveIndexes();
+        this.lastSaveNanos = System.nanoTime() - start;
+        if (TagRegister.isDebugging()) {
+            TagRegister.getLogger().info("(Save) Saved " + tasks.size() + " regions of " + this.world.getName() + " in " + TimeUnit.NANOSECONDS.toMillis(this.lastSaveNanos) + "ms"
+                    + (slowest == null ? "." : ", slowest " + slowest + " in " + TimeUnit.NANOSECONDS.toMillis(slowest.getLastSaveNanos()) + "ms."));
+            TagRegister.getLogger().info("(Keys) " + TagKeys.size() + " keys interned, hit ratio " + Math.round(TagKeys.getHitRatio() * 100D) + "%, ~" + TagKeys.getSavedBytes() / 1024L + "KB of duplicate keys saved.");
+        }
+    }
+
+    private void saveRegion(RegionRegister regionRegister, Map<ChunkRegister, ChunkCompoundTag> snapshots) {
+        synchronized (regionRegister) {
+            if (this.regions.get(regionRegister.getRegionUUID().toLong()) != regionRegister)
+                return; // unloaded meanwhile, it was committed when closed
+            long start = System.nanoTime();
+            regionRegister.saveChunks(snapshots);
+            regionRegister.getRegionFile().commit(); //commit to files
+            regionRegister.setLastSaveNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Saves and closes every region for the last time, one task per region on the plugin's save pool.
+     * Chunks not written before the deadline are journaled and replayed when this world is loaded again.
+     *
+     * @param deadlineNanos the {@link System#nanoTime()} to stop writing at
+     */
+    public void shutdown(long deadlineNanos) {
+        ForkJoinPool savePool = TagRegister.getPlugin().getSavePool();
+        ConcurrentMap<ChunkUUID, ChunkCompoundTag> journal = new ConcurrentHashMap<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(this.regions.size());
+        for (RegionRegister regionRegister : this.regions.values()) {
+            tasks.add(savePool.submit(() -> {
+                synchronized (regionRegister) {
+                    if (this.regions.get(regionRegister.getRegionUUID().toLong()) != regionRegister)
+                        return; // closed meanwhile
+                    regionRegister.shutdown(deadlineNanos, journal);
+                    this.regions.remove(regionRegister.getRegionUUID().toLong(), regionRegister);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        this.entities.clear();
+        this.entityOwners.clear();
+        this.writeWorldFile();
+        if (!journal.isEmpty()) {
+            this.writeJournal(journal);
+            TagRegister.getLogger().warning("(Writing) " + journal.size() + " chunks of " + this.world.getName() + " missed the shutdown deadline and were journaled.");
+        }
+        this.saveIndexes(); // last, so it is not older than the regions or the journal
+    }
+
+    /**
+     * @return how long the last full save of this world took
+     */
+    public long getLastSaveNanos() {
+        return this.lastSaveNanos;
+    }
+
+    /**
+     * Collects the loaded chunks that were written to since their last save.
+     *
+     * @return the dirty chunks
+     */
+    public List<ChunkRegister> getDirtyChunks() {
+        List<ChunkRegister> dirtyChunks = new ArrayList<>();
+        for (RegionRegister regionRegister : this.regions.values())
+            for (ChunkRegister chunkRegister : regionRegister.getChunks())
+                if (chunkRegister.isDirty())
+                    dirtyChunks.add(chunkRegister);
+        return dirtyChunks;
+    }
+
+    /**
+     * Completes an incremental save: flushes the pending chunks, commits the given regions and writes the level file.
+     *
+     * @param savedRegions the regions that had chunks saved
+     */
+    public void commitRegions(Collection<RegionRegister> savedRegions) {
+        TagRegister.getPlugin().getWriteBehindBuffer().flushWorld(this.world.getName());
+        for (RegionRegister regionRegister : savedRegions) {
+            synchronized (regionRegister) {
+                if (this.regions.get(regionRegister.getRegionUUID().toLong()) == regionRegister)
+                    regionRegister.getRegionFile().commit(); // unloaded regions were committed when closed
+            }
+        }
+        this.writeWorldFile();
+        this.saveIndexes();
+    }
+
+    /**
+     * Gets the chunk register of a block, the loaded case only does two primitive map reads.
+     */
+    private ChunkRegister getOrLoadChunk(Block block) {
+        ChunkRegister chunkRegister = this.getChunkIfLoadedUnsafe(block.getX() >> 4, block.getZ() >> 4);
+        if (chunkRegister != null)
+            return chunkRegister;
+        Chunk chunk = block.getChunk();
+        return this.getOrLoadRegion(chunk).getOrLoadChunk(chunk);
+    }
+
+    /**
+     * Checks the presence for a block whose chunk is not loaded, without opening its region nor reading its chunk.
+     *
+     * @return {@code true} if the block is surely not tagged
+     */
+    private boolean isSurelyNotStored(Block block) {
+        return this.getChunkIfLoadedUnsafe(block.getX() >> 4, block.getZ() >> 4) == null && !this.presence.mightHaveBlock(block.getX(), block.getY(), block.getZ());
     }
 
     public boolean isBlockStored(Block block) {
-        return this.getOrLoadRegion(block.getChunk()).isBlockStored(block);
+        if (this.isSurelyNotStored(block))
+            return false;
+        return this.getOrLoadChunk(block).isBlockStored(block);
     }
 
     public Optional<CompoundTag> getStoredBlock(Block block) {
-        return this.getOrLoadRegion(block.getChunk()).getStoredBlock(block);
+        if (this.isSurelyNotStored(block))
+            return Optional.empty();
+        return this.getOrLoadChunk(block).getStoredBlock(block);
     }
 
     public CompoundTag createStoredBlock(Block block) {
-        return this.getOrLoadRegion(block.getChunk()).createStoredBlock(block);
+        return this.getOrLoadChunk(block).createStoredBlock(block);
     }
 
     public CompoundTag getOrCreateBlock(Block block) {
-        return this.getOrLoadRegion(block.getChunk()).getOrCreateBlock(block);
+        return this.getOrLoadChunk(block).getOrCreateBlock(block);
     }
 
     public boolean isEntityStored(Entity entity) {
@@ -270,8 +790,64 @@ public class WorldRegister {
         return this.getOrLoadRegion(chunk).getOrLoadChunk(chunk).getStoredEntityUnsafe(entity.getUniqueId());
     }
 
+    public Optional<CompoundTag> getStoredBlockIfLoaded(Block block) {
+        ChunkRegister chunkRegister = this.getChunkIfLoadedUnsafe(block.getX() >> 4, block.getZ() >> 4);
+        if (chunkRegister == null)
+            return Optional.empty();
+        return chunkRegister.getStoredBlock(block);
+    }
+
+    public Optional<CompoundTag> getStoredEntityIfLoaded(Entity entity) {
+        return this.getStoredEntityInternal(entity.getUniqueId());
+    }
+
     public CompoundTag getStoredBlockUnsafe(Block block) {
-        return this.getOrLoadRegion(block.getChunk()).getStoredBlockUnsafe(block);
+        if (this.isSurelyNotStored(block))
+            return null;
+        return this.getOrLoadChunk(block).getStoredBlockUnsafe(block);
+    }
+
+    /**
+     * Visits every tagged block whose center is inside {@code box}, without loading chunks or regions into registers.
+     * Regions that were never saved and chunks or sections without tags are skipped.
+     * Reads from disk, so call it off the main thread for large boxes, loaded chunks then give snapshots
+     * taken in one task on the main thread, see {@link RegionRegister#forEachTaggedBlock(int, int, int, int, int, int, TaggedBlockConsumer)}.
+     *
+     * @param box      the box, in block coordinates
+     * @param consumer gets each tagged block
+     */
+    public void forEachTaggedBlock(BoundingBox box, TaggedBlockConsumer consumer) {
+        int minX = (int) Math.ceil(box.getMinX() - 0.5D), maxX = (int) Math.ceil(box.getMaxX() - 0.5D) - 1;
+        int minY = (int) Math.ceil(box.getMinY() - 0.5D), maxY = (int) Math.ceil(box.getMaxY() - 0.5D) - 1;
+        int minZ = (int) Math.ceil(box.getMinZ() - 0.5D), maxZ = (int) Math.ceil(box.getMaxZ() - 0.5D) - 1;
+        if (minX > maxX || minY > maxY || minZ > maxZ)
+            return;
+        Map<ChunkRegister, ChunkCompoundTag> snapshots = Bukkit.isPrimaryThread() ? null : RegionRegister.onMainThread(() -> {
+            Map<ChunkRegister, ChunkCompoundTag> taken = new HashMap<>();
+            for (int regionX = minX >> 9; regionX <= maxX >> 9; regionX++) {
+                for (int regionZ = minZ >> 9; regionZ <= maxZ >> 9; regionZ++) {
+                    RegionRegister regionRegister = this.regions.get(RegionUUID.pack(regionX, regionZ));
+                    if (regionRegister != null)
+                        taken.putAll(regionRegister.snapshotChunks(minX, minZ, maxX, maxZ));
+                }
+            }
+            return taken;
+        });
+        if (snapshots == null && !Bukkit.isPrimaryThread())
+            return; // failed, the live tags must not be walked off the main thread
+        for (int regionX = minX >> 9; regionX <= maxX >> 9; regionX++) {
+            for (int regionZ = minZ >> 9; regionZ <= maxZ >> 9; regionZ++) {
+                RegionRegister regionRegister = this.regions.get(RegionUUID.pack(regionX, regionZ));
+                if (regionRegister != null) {
+                    regionRegister.forEachTaggedBlock(minX, minY, minZ, maxX, maxY, maxZ, snapshots, consumer);
+                    continue;
+                }
+                int fromX = Math.max(minX >> 4, regionX << 5), toX = Math.min(maxX >> 4, (regionX << 5) + 31);
+                int fromZ = Math.max(minZ >> 4, regionZ << 5), toZ = Math.min(maxZ >> 4, (regionZ << 5) + 31);
+                this.forEachChunkOnDisk(regionX, regionZ, fromX, toX, fromZ, toZ, (chunkUUID, chunkTag) ->
+                        RegionRegister.forEachTaggedBlock(chunkTag, chunkUUID.getX(), chunkUUID.getZ(), minX, minY, minZ, maxX, maxY, maxZ, false, consumer));
+            }
+        }
     }
 
     public World getWorldInstance() {
@@ -0,0 +1,72 @@
+package ro.nicuch.tag.thread;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Loads each missing key of a register map once, threads asking for a key already being loaded wait for that same load.
+ * Lookups of loaded keys are a plain map read.
+ *
+ * @param <K> the key
+ * @param <V> the loaded register
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the value of {@code key} from {@code map}, loading and putting it first if missing.
+     *
+     * @param map    the register map
+     * @param key    the key
+     * @param loader creates the value, called at most once per missing key at a time
+     * @return the loaded value
+     */
+    public V getOrLoad(ConcurrentMap<K, V> map, K key, Function<K, V> loader) {
+        V value = map.get(key);
+        if (value != null)
+            return value;
+        return this.load(key, () -> map.get(key), () -> {
+            V loaded = loader.apply(key);
+            map.put(key, loaded);
+            return loaded;
+        });
+    }
+
+    /**
+     * Loads a missing value once, for maps that are not a {@link ConcurrentMap}. Callers look the value up first themselves.
+     *
+     * @param key    the key
+     * @param lookup reads the value, in case it was loaded meanwhile
+     * @param loader creates and publishes the value, called at most once per missing key at a time
+     * @return the loaded value
+     */
+    public V load(K key, Supplier<V> lookup, Supplier<V> loader) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = this.inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) ex.getCause();
+                throw ex;
+            }
+        }
+        try {
+            V value = lookup.get(); // loaded while we were getting here
+            if (value == null)
+                value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            this.inFlight.remove(key, future);
+        }
+    }
+}
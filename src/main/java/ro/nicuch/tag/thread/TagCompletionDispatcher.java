@@ -0,0 +1,129 @@
+package ro.nicuch.tag.thread;
+
+import ro.nicuch.tag.TagRegister;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers completions produced by the tag workers back on the main thread.
+ * <p>
+ * Workers only enqueue into a lock-free queue, the main thread drains it once per tick
+ * until the tick budget is spent. Whatever is left is deferred to the next tick.
+ */
+public class TagCompletionDispatcher implements Runnable {
+    private final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong totalDelivered = new AtomicLong();
+    private final AtomicLong totalDeferred = new AtomicLong();
+    private final long budgetNanos;
+    private volatile int deliveredLastTick;
+    private volatile int deferredLastTick;
+    private volatile long drains; // how many drains started, a completion queued during drain n is due in drain n + 1
+
+    public TagCompletionDispatcher(long budgetMillis) {
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, budgetMillis));
+    }
+
+    /**
+     * Queues the completion of {@code future} for the next main thread drain.
+     * Safe to call from any thread.
+     *
+     * @param future    the future to complete
+     * @param value     the value, ignored if {@code throwable} is not null
+     * @param throwable the failure, or {@code null}
+     */
+    public <T> void deliver(CompletableFuture<T> future, T value, Throwable throwable) {
+        this.pending.incrementAndGet(); // before it can be polled, so the count never goes below zero
+        this.completions.offer(new Completion(() -> {
+            if (throwable != null)
+                future.completeExceptionally(throwable);
+            else
+                future.complete(value);
+        }, this.drains));
+    }
+
+    // SYNC CALL, once per tick
+    @Override
+    public void run() {
+        long deadline = System.nanoTime() + this.budgetNanos;
+        long drain = ++this.drains; // only written here, on the main thread
+        int delivered = 0;
+        Completion completion;
+        while ((completion = this.completions.poll()) != null) {
+            this.deliver(completion, drain);
+            delivered++;
+            if (System.nanoTime() - deadline >= 0)
+                break;
+        }
+        int deferred = this.pending.get();
+        this.deliveredLastTick = delivered;
+        this.deferredLastTick = deferred;
+        this.totalDelivered.addAndGet(delivered);
+        if (deferred > 0) {
+            if (TagRegister.isDebugging())
+                TagRegister.getLogger().info("(Completions) Delivered " + delivered + ", deferred " + deferred + " to the next tick.");
+        }
+    }
+
+    /**
+     * Delivers everything still queued, ignoring the budget. Used on shutdown.
+     */
+    public void drainAll() {
+        long drain = ++this.drains;
+        Completion completion;
+        while ((completion = this.completions.poll()) != null) {
+            this.deliver(completion, drain);
+            this.totalDelivered.incrementAndGet();
+        }
+    }
+
+    private void deliver(Completion completion, long drain) {
+        this.pending.decrementAndGet();
+        if (drain > completion.dueDrain)
+            this.totalDeferred.incrementAndGet(); // counted once, when it is finally delivered
+        try {
+            completion.action.run();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    public int getDeliveredLastTick() {
+        return this.deliveredLastTick;
+    }
+
+    public int getDeferredLastTick() {
+        return this.deferredLastTick;
+    }
+
+    public int getPending() {
+        return this.pending.get();
+    }
+
+    public long getTotalDelivered() {
+        return this.totalDelivered.get();
+    }
+
+    /**
+     * How many completions had to wait for a later tick than the one they were due in, each counted once.
+     *
+     * @return the total deferred count
+     */
+    public long getTotalDeferred() {
+        return this.totalDeferred.get();
+    }
+
+    private static final class Completion {
+        private final Runnable action;
+        private final long dueDrain;
+
+        private Completion(Runnable action, long queuedDuring) {
+            this.action = action;
+            this.dueDrain = queuedDuring + 1;
+        }
+    }
+}
@@ -14,6 +14,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class TagProcessRunnable {
@@ -31,9 +32,55 @@ public class TagProcessRunnable {
         this.executorService.shutdown();
     }
 
+    /**
+     * Stops taking new work and runs what is still queued on the calling thread, until the deadline.
+     * Chunks whose unload did not run stay loaded and are saved with the rest.
+     *
+     * @param deadlineNanos the {@link System#nanoTime()} to give up at
+     */
+    public void shutdown(long deadlineNanos) {
+        this.executorService.shutdown();
+        try {
+            this.executorService.awaitTermination(Math.max(0L, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Runnable task;
+        while (System.nanoTime() - deadlineNanos < 0 && (task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs {@code supplier} on the tag worker and completes the returned future with its result.
+     * The future completes on the worker thread, callers that need the main thread must hop back themselves.
+     *
+     * @param supplier the work to run off the main thread
+     * @return a future completed with the supplied value, or exceptionally if the work failed
+     */
+    public <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (this.executorService.isShutdown()) {
+            future.completeExceptionally(new RejectedExecutionException("The tag process is shut down."));
+            return future;
+        }
+        this.tasks.offer(() -> {
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
     // SYNC CALLS
     public void addToLoad(ChunkLoadEvent event) {
-        if (this.executorService.isTerminated())
+        if (this.executorService.isShutdown())
             return;
         this.tasks.offer(() -> {
             Chunk chunk = event.getChunk();
@@ -42,7 +89,7 @@ public class TagProcessRunnable {
     }
 
     public void addToUnload(ChunkUnloadEvent event) {
-        if (this.executorService.isTerminated())
+        if (this.executorService.isShutdown())
             return;
         this.tasks.offer(() -> {
             Set<UUID> entitiesSync = Arrays.stream(event.getChunk().getEntities()).map(Entity::getUniqueId).collect(Collectors.toSet());
@@ -0,0 +1,151 @@
+package ro.nicuch.tag.thread;
+
+import ro.nicuch.tag.TagRegister;
+import ro.nicuch.tag.nbt.ChunkCompoundTag;
+import ro.nicuch.tag.nbt.TagSizes;
+import ro.nicuch.tag.register.ChunkRegister;
+import ro.nicuch.tag.register.RegionRegister;
+import ro.nicuch.tag.register.WorldRegister;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Spreads a save of dirty chunks over several ticks instead of writing every chunk in one pass.
+ * <p>
+ * The dirty chunks are captured when the save is requested on the main thread, each as a copy-on-write snapshot,
+ * so the slices only serialize snapshots and never see a chunk half changed. Each slice saves at most its share of the window, and stops early once its time or byte budget is spent.
+ * Regions are committed and the level file written once all the chunks of a world are saved.
+ */
+public class TagSaveScheduler implements Runnable {
+    private final ConcurrentLinkedQueue<ChunkRegister> queue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<ChunkRegister, ChunkCompoundTag> queued = new ConcurrentHashMap<>(); // the latest snapshot of each queued chunk
+    private final ConcurrentMap<WorldRegister, Set<RegionRegister>> savedRegions = new ConcurrentHashMap<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final int windowTicks;
+    private final long sliceNanos;
+    private final long sliceBytes;
+    private volatile int chunksPerSlice = 1;
+    private volatile long lastSliceChunks;
+    private volatile long lastSliceBytes;
+    private volatile long lastSliceNanos;
+
+    /**
+     * @param windowTicks      over how many ticks a save is spread
+     * @param sliceMillis      the maximum time of a slice
+     * @param sliceBytes       the maximum estimated bytes written by a slice
+     */
+    public TagSaveScheduler(int windowTicks, long sliceMillis, long sliceBytes) {
+        this.windowTicks = Math.max(1, windowTicks);
+        this.sliceNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, sliceMillis));
+        this.sliceBytes = Math.max(1L, sliceBytes);
+    }
+
+    /**
+     * Captures and queues the dirty chunks of a world, a chunk still queued keeps only its newest snapshot.
+     * Must be called on the main thread.
+     *
+     * @param worldRegister the world
+     */
+    public void requestSave(WorldRegister worldRegister) {
+        this.savedRegions.computeIfAbsent(worldRegister, key -> ConcurrentHashMap.newKeySet());
+        for (ChunkRegister chunkRegister : worldRegister.getDirtyChunks()) {
+            ChunkCompoundTag snapshot = chunkRegister.getRegionRegister().captureChunk(chunkRegister);
+            if (snapshot != null && this.queued.put(chunkRegister, snapshot) == null)
+                this.queue.offer(chunkRegister);
+        }
+        this.chunksPerSlice = Math.max(1, (this.queued.size() + this.windowTicks - 1) / this.windowTicks);
+    }
+
+    /**
+     * Captures and queues the dirty chunks of every loaded world. Must be called on the main thread.
+     */
+    public void requestSaveAll() {
+        for (WorldRegister worldRegister : TagRegister.getWorlds())
+            this.requestSave(worldRegister);
+    }
+
+    // ASYNC CALL, once per tick
+    @Override
+    public void run() {
+        if (this.queued.isEmpty() && this.savedRegions.isEmpty())
+            return;
+        if (!this.running.compareAndSet(false, true))
+            return; // the previous slice is still running
+        try {
+            this.slice(this.chunksPerSlice, this.sliceNanos, this.sliceBytes);
+        } finally {
+            this.running.set(false);
+        }
+    }
+
+    /**
+     * Drops every queued chunk, used on shutdown where everything is saved anyway.
+     * Waits for the running slice, and no slice starts anymore once this returns.
+     */
+    public void cancel() {
+        while (!this.running.compareAndSet(false, true))
+            Thread.onSpinWait(); // let the running slice finish, then keep the flag so the next ones return
+        this.queue.clear();
+        this.queued.clear();
+        this.savedRegions.clear();
+    }
+
+    public int getQueuedChunks() {
+        return this.queued.size();
+    }
+
+    public long getLastSliceChunks() {
+        return this.lastSliceChunks;
+    }
+
+    public long getLastSliceBytes() {
+        return this.lastSliceBytes;
+    }
+
+    public long getLastSliceNanos() {
+        return this.lastSliceNanos;
+    }
+
+    private void slice(int maxChunks, long maxNanos, long maxBytes) {
+        long start = System.nanoTime();
+        int chunks = 0;
+        long bytes = 0;
+        ChunkRegister chunkRegister;
+        while (chunks < maxChunks && bytes < maxBytes && System.nanoTime() - start < maxNanos && (chunkRegister = this.queue.poll()) != null) {
+            ChunkCompoundTag snapshot = this.queued.remove(chunkRegister);
+            if (snapshot == null)
+                continue;
+            RegionRegister regionRegister = chunkRegister.getRegionRegister();
+            try {
+                bytes += TagSizes.estimate(snapshot);
+                if (regionRegister.saveChunk(chunkRegister, snapshot))
+                    this.savedRegions.computeIfAbsent(regionRegister.getWorldRegister(), key -> ConcurrentHashMap.newKeySet()).add(regionRegister);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                System.out.println("(Writing) Couldn't save " + chunkRegister + "!!");
+            }
+            chunks++;
+        }
+        if (this.queue.isEmpty())
+            this.commit();
+        this.lastSliceChunks = chunks;
+        this.lastSliceBytes = bytes;
+        this.lastSliceNanos = System.nanoTime() - start;
+        if (chunks > 0 && TagRegister.isDebugging())
+            TagRegister.getLogger().info("(Save) Saved " + chunks + " chunks (~" + bytes + " bytes) in " + TimeUnit.NANOSECONDS.toMillis(this.lastSliceNanos) + "ms, " + this.queued.size() + " left.");
+    }
+
+    private void commit() {
+        Iterator<Map.Entry<WorldRegister, Set<RegionRegister>>> iterator = this.savedRegions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<WorldRegister, Set<RegionRegister>> entry = iterator.next();
+            iterator.remove();
+            entry.getKey().commitRegions(entry.getValue());
+        }
+    }
+}
@@ -2,32 +2,55 @@ package ro.nicuch.tag.wrapper;
 
 import org.bukkit.block.Block;
 
-import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * A block position inside its chunk, x and z are chunk-local and y is the world y.
+ */
 public class BlockUUID {
     private final byte x;
-    private final byte y;
+    private final int y;
     private final byte z;
 
-    private final static Pattern pattern = Pattern.compile("x([-]?[0-9]+),y([-]?[0-9]+),z([-]?[0-9]+)");
+    private final static Pattern pattern = Pattern.compile("x([-]?[0-9]+),([yY])([-]?[0-9]+),z([-]?[0-9]+)"); // y for the old shifted byte, Y for the world y
 
+    /**
+     * @param y the world y shifted by -128, as the old format kept it in a byte
+     * @deprecated only covers world y 0 to 255, use {@link #BlockUUID(Block)} or {@link #fromKey(int)}
+     */
+    @Deprecated
     public BlockUUID(final byte x, final byte y, final byte z) {
-        this.x = x;
+        this((int) x, y + 128, (int) z);
+    }
+
+    private BlockUUID(final int x, final int y, final int z) {
+        this.x = (byte) (x & 15);
         this.y = y;
-        this.z = z;
+        this.z = (byte) (z & 15);
     }
 
     public BlockUUID(final Block block) {
-        this((byte) Math.floorMod(block.getX(), 16), (byte) ((byte) block.getY() - 128), (byte) Math.floorMod(block.getZ(), 16));
+        this(block.getX(), block.getY(), block.getZ());
     }
 
     public final byte getX() {
         return this.x;
     }
 
+    /**
+     * @return the world y shifted by -128, as the old format kept it in a byte
+     * @deprecated wraps around outside world y 0 to 255, use {@link #getWorldY()}
+     */
+    @Deprecated
     public final byte getY() {
+        return (byte) (this.y - 128);
+    }
+
+    /**
+     * @return the world y, may be negative
+     */
+    public final int getWorldY() {
         return this.y;
     }
 
@@ -35,14 +58,55 @@ public class BlockUUID {
         return this.z;
     }
 
+    /**
+     * Packs a block position inside its chunk in an {@code int} key: x in bits 0-3, z in bits 4-7 and the world y in the rest.
+     *
+     * @param x the block x, only the chunk-local part is kept
+     * @param y the world y, may be negative
+     * @param z the block z, only the chunk-local part is kept
+     */
+    public static int pack(int x, int y, int z) {
+        return (y << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    /**
+     * @return this position packed, see {@link #pack(int, int, int)}
+     */
+    public final int toKey() {
+        return pack(this.x, this.y, this.z);
+    }
+
+    public static BlockUUID fromKey(int packed) {
+        return new BlockUUID(unpackX(packed), unpackY(packed), unpackZ(packed));
+    }
+
+    public static int pack(Block block) {
+        return pack(block.getX(), block.getY(), block.getZ());
+    }
+
+    public static int unpackX(int packed) {
+        return packed & 15;
+    }
+
+    public static int unpackY(int packed) {
+        return packed >> 8;
+    }
+
+    public static int unpackZ(int packed) {
+        return (packed >> 4) & 15;
+    }
+
 
+    /**
+     * Parses {@link #toString()}, or the old form whose y is the shifted byte.
+     */
     public static BlockUUID fromString(String id) {
         try {
             Matcher matcher = pattern.matcher(id);
             if (matcher.find()) {
-                byte x = Byte.parseByte(matcher.group(1));
-                byte y = Byte.parseByte(matcher.group(2));
-                byte z = Byte.parseByte(matcher.group(3));
+                int x = Integer.parseInt(matcher.group(1));
+                int y = matcher.group(2).equals("y") ? Byte.parseByte(matcher.group(3)) + 128 : Integer.parseInt(matcher.group(3));
+                int z = Integer.parseInt(matcher.group(4));
                 return new BlockUUID(x, y, z);
             } else
                 throw new IllegalArgumentException("BlockUUID couldn't parse from string.");
@@ -63,11 +127,11 @@ public class BlockUUID {
 
     @Override
     public String toString() {
-        return "x" + x + ",y" + y + ",z" + z + "";
+        return "x" + x + ",Y" + y + ",z" + z + "";
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(x, y, z);
+        return this.toKey();
     }
 }
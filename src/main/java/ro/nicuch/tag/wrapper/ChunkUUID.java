@@ -2,7 +2,6 @@ package ro.nicuch.tag.wrapper;
 
 import org.bukkit.Chunk;
 
-import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,6 +28,32 @@ public class ChunkUUID {
         return this.z;
     }
 
+    /**
+     * @return the coordinates packed in a {@code long}, see {@link #pack(int, int)}
+     */
+    public final long toLong() {
+        return pack(this.x, this.z);
+    }
+
+    /**
+     * Packs chunk coordinates in a {@code long} key, x in the high half and z in the low half.
+     */
+    public static long pack(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    public static int unpackX(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    public static int unpackZ(long packed) {
+        return (int) packed;
+    }
+
+    public static ChunkUUID fromLong(long packed) {
+        return new ChunkUUID(unpackX(packed), unpackZ(packed));
+    }
+
 
     public static ChunkUUID fromString(String id) {
         try {
@@ -61,6 +86,6 @@ public class ChunkUUID {
 
     @Override
     public int hashCode() {
-        return Objects.hash(x, z);
+        return Long.hashCode(this.toLong());
     }
 }
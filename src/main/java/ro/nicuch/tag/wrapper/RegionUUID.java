@@ -3,7 +3,6 @@ package ro.nicuch.tag.wrapper;
 import org.bukkit.Chunk;
 import ro.nicuch.tag.register.RegionRegister;
 
-import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,6 +29,39 @@ public class RegionUUID {
         return this.z;
     }
 
+    /**
+     * @return the coordinates packed in a {@code long}, see {@link #pack(int, int)}
+     */
+    public final long toLong() {
+        return pack(this.x, this.z);
+    }
+
+    /**
+     * Packs region coordinates in a {@code long} key, x in the high half and z in the low half.
+     */
+    public static long pack(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Packs the coordinates of the region holding a chunk, without allocating.
+     */
+    public static long packFromChunk(int chunkX, int chunkZ) {
+        return pack(chunkX >> 5, chunkZ >> 5);
+    }
+
+    public static int unpackX(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    public static int unpackZ(long packed) {
+        return (int) packed;
+    }
+
+    public static RegionUUID fromLong(long packed) {
+        return new RegionUUID(unpackX(packed), unpackZ(packed));
+    }
+
     public static RegionUUID fromChunk(Chunk chunk) {
         return new RegionUUID(Math.floorDiv(chunk.getX(), 32), Math.floorDiv(chunk.getZ(), 32));
     }
@@ -65,6 +97,6 @@ public class RegionUUID {
 
     @Override
     public int hashCode() {
-        return Objects.hash(x, z, this.toString());
+        return Long.hashCode(this.toLong());
     }
 }
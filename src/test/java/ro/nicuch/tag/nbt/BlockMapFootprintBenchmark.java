@@ -0,0 +1,109 @@
+package ro.nicuch.tag.nbt;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import ro.nicuch.tag.wrapper.BlockUUID;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the retained heap per tagged block of the block maps of a chunk: the {@link HashMap} of {@link BlockUUID}
+ * used before, the map of packed int keys, and {@link ChunkCompoundTag} as it is now, both as built and as read from disk.
+ * The first three share one tag value so only the keys and the map are counted, the last two count the tags too.
+ * Run it as a main class, with nothing else running, the numbers are rough.
+ */
+public final class BlockMapFootprintBenchmark {
+    private static final int CHUNKS = 2_000;
+    private static final int BLOCKS = 64; // per chunk
+
+    public static void main(String[] args) throws IOException {
+        final CompoundTag shared = blockTag(0);
+        System.out.println("keys and map only:");
+        System.out.println("  hash map of BlockUUID: " + bytesPerBlock(chunk -> {
+            final Map<BlockUUID, CompoundTag> blocks = new HashMap<>();
+            for (int i = 0; i < BLOCKS; i++)
+                blocks.put(BlockUUID.fromKey(key(chunk, i)), shared);
+            return blocks;
+        }) + " bytes per block");
+        System.out.println("  int map:               " + bytesPerBlock(chunk -> {
+            final Int2ObjectOpenHashMap<CompoundTag> blocks = new Int2ObjectOpenHashMap<>(4);
+            for (int i = 0; i < BLOCKS; i++)
+                blocks.put(key(chunk, i), shared);
+            return blocks;
+        }) + " bytes per block");
+        System.out.println("  chunk tag sections:    " + bytesPerBlock(chunk -> {
+            final ChunkCompoundTag tag = new ChunkCompoundTag();
+            for (int i = 0; i < BLOCKS; i++)
+                tag.putBlock(key(chunk, i), shared);
+            return tag;
+        }) + " bytes per block");
+        System.out.println("with the block tags:");
+        System.out.println("  hash map of BlockUUID: " + bytesPerBlock(chunk -> {
+            final Map<BlockUUID, CompoundTag> blocks = new HashMap<>();
+            for (int i = 0; i < BLOCKS; i++)
+                blocks.put(BlockUUID.fromKey(key(chunk, i)), blockTag(i));
+            return blocks;
+        }) + " bytes per block");
+        final byte[][] written = new byte[CHUNKS][];
+        for (int chunk = 0; chunk < CHUNKS; chunk++)
+            written[chunk] = write(chunk);
+        System.out.println("  chunk tag as read:     " + bytesPerBlock(chunk -> read(written[chunk])) + " bytes per block");
+    }
+
+    private static long bytesPerBlock(final ChunkFactory factory) {
+        final Object[] kept = new Object[CHUNKS];
+        final long before = usedHeap();
+        for (int chunk = 0; chunk < CHUNKS; chunk++)
+            kept[chunk] = factory.create(chunk);
+        final long used = usedHeap() - before;
+        if (kept[CHUNKS - 1] == null)
+            throw new IllegalStateException(); // keeps every chunk reachable until measured
+        return used / ((long) CHUNKS * BLOCKS);
+    }
+
+    /**
+     * Spreads the blocks of a chunk over its height, a few per section, as machines and pipes are.
+     */
+    private static int key(final int chunk, final int i) {
+        return BlockUUID.pack((i * 7 + chunk) & 15, (i * 37) & 255, (i * 11) & 15);
+    }
+
+    private static CompoundTag blockTag(final int i) {
+        final CompoundTag tag = new CompoundTag();
+        tag.putInt("owner", i);
+        tag.putString("type", "generator");
+        tag.putByte("level", (byte) (i & 7));
+        return tag;
+    }
+
+    private static byte[] write(final int chunk) throws IOException {
+        final ChunkCompoundTag tag = new ChunkCompoundTag();
+        for (int i = 0; i < BLOCKS; i++)
+            tag.putBlock(key(chunk, i), blockTag(i));
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        tag.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static ChunkCompoundTag read(final byte[] written) {
+        final ChunkCompoundTag tag = new ChunkCompoundTag();
+        try {
+            tag.read(new DataInputStream(new ByteArrayInputStream(written)), 0);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return tag;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private interface ChunkFactory {
+        Object create(int chunk);
+    }
+}
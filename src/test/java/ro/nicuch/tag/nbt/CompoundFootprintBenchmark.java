@@ -0,0 +1,85 @@
+package ro.nicuch.tag.nbt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares small compounds kept in a {@link TagArrayMap} with the same entries in a {@link HashMap}:
+ * the retained heap per tag and the time per lookup. Run it as a main class, with nothing else running,
+ * the numbers are rough and the warmup rounds are printed too.
+ */
+public final class CompoundFootprintBenchmark {
+    private static final int TAGS = 200_000;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        System.out.println("array map: " + bytesPerTag(false) + " bytes per tag");
+        System.out.println("hash map:  " + bytesPerTag(true) + " bytes per tag");
+        Map<String, Tag>[] arrayMaps = newMaps();
+        Map<String, Tag>[] hashMaps = newMaps();
+        for (int i = 0; i < TAGS; i++) {
+            hashMaps[i] = toHashMap(blockTag(i));
+            arrayMaps[i] = new TagArrayMap(hashMaps[i]);
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            long sum = 0;
+            long start = System.nanoTime();
+            for (Map<String, Tag> map : arrayMaps)
+                sum += lookup(map);
+            long arrayNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (Map<String, Tag> map : hashMaps)
+                sum += lookup(map);
+            long hashNanos = System.nanoTime() - start;
+            System.out.printf("round %d: array map %.1f ns, hash map %.1f ns per lookup (%d)%n",
+                    round, arrayNanos / (2D * TAGS), hashNanos / (2D * TAGS), sum);
+        }
+    }
+
+    private static int lookup(Map<String, Tag> map) {
+        return ((NumberTag) map.get("owner")).intValue() + ((NumberTag) map.get("level")).byteValue();
+    }
+
+    private static long bytesPerTag(boolean hashMap) {
+        Object[] kept = new Object[TAGS];
+        long before = usedHeap();
+        for (int i = 0; i < TAGS; i++) {
+            CompoundTag tag = blockTag(i);
+            kept[i] = hashMap ? toHashMap(tag) : tag;
+        }
+        long used = usedHeap() - before;
+        if (kept[TAGS - 1] == null)
+            throw new IllegalStateException(); // keeps every tag reachable until measured
+        return used / TAGS;
+    }
+
+    /**
+     * A typical block tag, three keys with values shared as they are after decoding.
+     */
+    private static CompoundTag blockTag(int i) {
+        CompoundTag tag = new CompoundTag();
+        tag.putInt("owner", i);
+        tag.putString("type", "generator");
+        tag.putByte("level", (byte) (i & 7));
+        return tag;
+    }
+
+    private static Map<String, Tag> toHashMap(CompoundTag tag) {
+        Map<String, Tag> map = new HashMap<>();
+        for (Map.Entry<String, Tag> entry : tag.entries())
+            map.put(entry.getKey(), entry.getValue());
+        return map;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Tag>[] newMaps() {
+        return (Map<String, Tag>[]) new Map<?, ?>[TAGS];
+    }
+}
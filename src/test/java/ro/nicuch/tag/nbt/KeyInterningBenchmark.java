@@ -0,0 +1,107 @@
+package ro.nicuch.tag.nbt;
+
+import java.io.*;
+import java.util.Map;
+
+/**
+ * Compares decoding block tags with their keys read through {@link TagKeys}, against a new string per key
+ * as {@link DataInput#readUTF()} made them before: the retained heap per tag and the time per decode.
+ * Both decode the same bytes into a {@link TagArrayMap} and differ only in how the keys are read,
+ * the whole decode through {@link CompoundTag#read(DataInput, int)} is printed too.
+ * Run it as a main class, with nothing else running, the numbers are rough and the warmup rounds are printed too.
+ */
+public final class KeyInterningBenchmark {
+    private static final int TAGS = 200_000;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        final byte[] written = write(blockTag());
+        check(read(written, true).equals(read(written, false)), "both read the same entries");
+        System.out.println("interned keys: " + bytesPerTag(written, true) + " bytes per tag");
+        System.out.println("new keys:      " + bytesPerTag(written, false) + " bytes per tag");
+        final Object[] kept = new Object[TAGS];
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < TAGS; i++)
+                kept[i] = read(written, true);
+            final long internedNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < TAGS; i++)
+                kept[i] = read(written, false);
+            final long newNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < TAGS; i++) {
+                final CompoundTag tag = new CompoundTag();
+                tag.read(input(written), 0);
+                kept[i] = tag;
+            }
+            final long tagNanos = System.nanoTime() - start;
+            System.out.printf("round %d: interned keys %.1f ns, new keys %.1f ns, compound tag %.1f ns per decode%n",
+                    round, internedNanos / (double) TAGS, newNanos / (double) TAGS, tagNanos / (double) TAGS);
+        }
+        System.out.printf("hits %d, misses %d, ratio %.4f, saved about %d bytes%n",
+                TagKeys.getHits(), TagKeys.getMisses(), TagKeys.getHitRatio(), TagKeys.getSavedBytes());
+    }
+
+    /**
+     * Reads a compound body the way {@link CompoundTag#read(DataInput, int)} does.
+     *
+     * @param interned if the keys are read through {@link TagKeys}, otherwise with {@link DataInput#readUTF()}
+     */
+    private static Map<String, Tag> read(final byte[] written, final boolean interned) throws IOException {
+        final DataInput input = input(written);
+        final Map<String, Tag> tags = new TagArrayMap();
+        TagType type;
+        while ((type = TagType.of(input.readByte())) != TagType.END) {
+            final String key = interned ? TagKeys.readClassic(input) : input.readUTF();
+            final Tag tag = type.create();
+            tag.read(input, 1);
+            tags.put(key, tag);
+        }
+        return tags;
+    }
+
+    private static long bytesPerTag(final byte[] written, final boolean interned) throws IOException {
+        final Object[] kept = new Object[TAGS];
+        final long before = usedHeap();
+        for (int i = 0; i < TAGS; i++)
+            kept[i] = read(written, interned);
+        final long used = usedHeap() - before;
+        if (kept[TAGS - 1] == null)
+            throw new IllegalStateException(); // keeps every tag reachable until measured
+        return used / TAGS;
+    }
+
+    /**
+     * The block tag of {@link CompoundFootprintBenchmark}, three keys.
+     */
+    private static CompoundTag blockTag() {
+        final CompoundTag tag = new CompoundTag();
+        tag.putInt("owner", 7);
+        tag.putString("type", "generator");
+        tag.putByte("level", (byte) 3);
+        return tag;
+    }
+
+    private static byte[] write(final CompoundTag tag) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        tag.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static DataInput input(final byte[] written) {
+        return new DataInputStream(new ByteArrayInputStream(written));
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError("Failed: " + what);
+    }
+}
@@ -0,0 +1,159 @@
+package ro.nicuch.tag.nbt;
+
+import ro.nicuch.tag.wrapper.BlockUUID;
+
+import java.io.*;
+import java.util.UUID;
+
+/**
+ * Checks that a snapshot taken for a save does not see later changes made through references held to the live tag,
+ * that taking one does not get slower as the tree grows, and that sections adopt a written payload only if they did not change since the snapshot.
+ * Run it as a main class, it throws on the first failed check.
+ */
+public final class SnapshotTest {
+    private static final int BLOCK = BlockUUID.pack(3, 70, 1);
+
+    public static void main(String[] args) throws IOException {
+        keepsNestedReferences();
+        writesHeldChanges();
+        keepsEntitiesAndChunkTag();
+        takesConstantTime();
+        adoptsUnchangedSections();
+        skipsChangedSections();
+        System.out.println("SnapshotTest passed.");
+    }
+
+    private static void keepsNestedReferences() throws IOException {
+        final ChunkCompoundTag live = roundTrip(chunk());
+        final CompoundTag nested = live.getBlock(BLOCK).getCompound("owner");
+        final ChunkCompoundTag snapshot = live.snapshot(); // what a capture for the save does
+        nested.putString("name", "changed");
+        check("first".equals(snapshot.getBlock(BLOCK).getCompound("owner").getString("name")), "the snapshot is unchanged");
+        check("changed".equals(live.getBlock(BLOCK).getCompound("owner").getString("name")), "the live tag has the change");
+        check("first".equals(roundTrip(snapshot).getBlock(BLOCK).getCompound("owner").getString("name")), "the snapshot writes what it captured");
+    }
+
+    private static void writesHeldChanges() throws IOException {
+        final ChunkCompoundTag live = roundTrip(chunk());
+        final CompoundTag held = live.getBlock(BLOCK);
+        roundTrip(live); // a save
+        held.putInt("value", 42); // nothing marks the section dirty, the decoded block keeps it so
+        check(roundTrip(live).getBlock(BLOCK).getInt("value") == 42, "a change through a held block is written");
+    }
+
+    private static void keepsEntitiesAndChunkTag() throws IOException {
+        final ChunkCompoundTag live = chunk();
+        final UUID key = new UUID(1L, 2L);
+        final CompoundTag entity = new CompoundTag();
+        entity.putInt("health", 20);
+        live.putEntity(key, entity);
+        live.getChunkCompound().putString("biome", "plains");
+        final ChunkCompoundTag snapshot = live.snapshot();
+        entity.putInt("health", 5);
+        live.putEntity(new UUID(3L, 4L), new CompoundTag());
+        live.getChunkCompound().putString("biome", "desert");
+        live.getBlock(BLOCK).putInt("value", -1);
+        check(live.getEntity(key).getInt("health") == 5, "the live entity has the change");
+        final ChunkCompoundTag written = roundTrip(snapshot);
+        check(written.getEntity(key).getInt("health") == 20 && written.sizeEntities() == 1, "the snapshot keeps its entities");
+        check("plains".equals(written.getChunkCompound().getString("biome")), "the snapshot keeps its chunk tag");
+        check(written.getBlock(BLOCK).getInt("value") == 3, "the snapshot keeps its blocks");
+        snapshot.getBlock(BLOCK).putInt("value", 99);
+        check(live.getBlock(BLOCK).getInt("value") == -1, "a change to the snapshot stays there");
+    }
+
+    /**
+     * A snapshot shares everything and copies on change, so a tree a thousand times larger takes about as long.
+     * Eager copies of the decoded tags were over a thousand times slower here, the bound leaves room for noise.
+     */
+    private static void takesConstantTime() {
+        final CompoundTag smallTag = tree(10);
+        final CompoundTag largeTag = tree(10_000);
+        final ChunkCompoundTag smallChunk = chunk();
+        final ChunkCompoundTag largeChunk = new ChunkCompoundTag();
+        for (int index = 0; index < 4096; index++) {
+            final CompoundTag tag = new CompoundTag();
+            tag.putInt("value", index);
+            largeChunk.putBlock(BlockSection.keyOf(BlockSection.sectionOf(BLOCK), index), tag);
+        }
+        for (int i = 0; i < 2000; i++)
+            largeChunk.putEntity(new UUID(i, i), tree(2));
+        long small = Long.MAX_VALUE;
+        long large = Long.MAX_VALUE;
+        for (int round = 0; round < 20; round++) { // the fastest round of each, after warming up in the first ones
+            long start = System.nanoTime();
+            for (int i = 0; i < 500; i++) {
+                smallTag.snapshot();
+                smallChunk.snapshot();
+            }
+            small = Math.min(small, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < 500; i++) {
+                largeTag.snapshot();
+                largeChunk.snapshot();
+            }
+            large = Math.min(large, System.nanoTime() - start);
+        }
+        check(large < small * 10, "snapshots of a large tree take " + large + " ns against " + small + " ns for a small one");
+    }
+
+    private static CompoundTag tree(final int size) {
+        final CompoundTag root = new CompoundTag();
+        for (int i = 0; i < size; i++) {
+            final CompoundTag child = new CompoundTag();
+            child.putInt("i", i);
+            child.putIntArray("a", new int[]{i});
+            root.put("k" + i, child);
+        }
+        return root;
+    }
+
+    private static void adoptsUnchangedSections() throws IOException {
+        final ChunkCompoundTag live = roundTrip(chunk());
+        live.removeBlock(BlockUUID.pack(5, 70, 1));
+        final ChunkCompoundTag snapshot = live.snapshot();
+        roundTrip(snapshot);
+        live.adopt(snapshot);
+        for (BlockSection section : live.getSections())
+            check(!section.isDirty(), "an unchanged section is clean after adopting");
+        final ChunkCompoundTag read = roundTrip(live);
+        check(read.sizeBlocks() == 9 && !read.containsBlock(BlockUUID.pack(5, 70, 1)), "the adopted payload has the removal");
+        check(read.getBlock(BlockUUID.pack(7, 70, 1)).getInt("value") == 7, "the adopted payload has the other blocks");
+    }
+
+    private static void skipsChangedSections() throws IOException {
+        final ChunkCompoundTag live = roundTrip(chunk());
+        live.removeBlock(BlockUUID.pack(5, 70, 1));
+        final ChunkCompoundTag snapshot = live.snapshot();
+        live.removeBlock(BlockUUID.pack(6, 70, 1)); // after the capture
+        roundTrip(snapshot);
+        live.adopt(snapshot);
+        check(!roundTrip(live).containsBlock(BlockUUID.pack(6, 70, 1)), "a section changed since the snapshot keeps its change");
+    }
+
+    private static ChunkCompoundTag chunk() {
+        final ChunkCompoundTag chunk = new ChunkCompoundTag();
+        for (int x = 0; x < 10; x++) {
+            final CompoundTag tag = new CompoundTag();
+            tag.putInt("value", x);
+            final CompoundTag owner = new CompoundTag();
+            owner.putString("name", "first");
+            tag.put("owner", owner);
+            chunk.putBlock(BlockUUID.pack(x, 70, 1), tag);
+        }
+        return chunk;
+    }
+
+    private static ChunkCompoundTag roundTrip(final ChunkCompoundTag chunk) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        chunk.write(new DataOutputStream(bytes));
+        final ChunkCompoundTag read = new ChunkCompoundTag();
+        read.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 0);
+        return read;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError("Failed: " + what);
+    }
+}
@@ -0,0 +1,170 @@
+package ro.nicuch.tag.nbt;
+
+import ro.nicuch.tag.wrapper.BlockUUID;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Checks that tags and chunks survive being written V1, V2, V3 and V1 again, that blocks are read alone from sized chunks,
+ * that every tag type is skipped in every format, and that a nested chunk is written in the format of its stream.
+ * Run it as a main class, it throws on the first failed check.
+ */
+public final class TagFormatTest {
+    private static final TagFormat[] ROUND_TRIP = {TagFormat.V1, TagFormat.V2, TagFormat.V3, TagFormat.V1};
+    private static final int SENTINEL = 0x5EA1ED;
+
+    public static void main(String[] args) throws IOException {
+        roundTripsTags();
+        roundTripsChunks();
+        readsBlocksAlone();
+        skipsEveryType();
+        writesNestedChunksInTheStreamFormat();
+        System.out.println("TagFormatTest passed.");
+    }
+
+    private static void roundTripsTags() throws IOException {
+        final CompoundTag expected = everyType();
+        expected.put("chunk", chunk());
+        Tag tag = expected;
+        for (TagFormat format : ROUND_TRIP) {
+            tag = readTag(writeTag(tag, format));
+            check(expected.equals(tag), "every type survives " + format);
+        }
+    }
+
+    private static void roundTripsChunks() throws IOException {
+        final ChunkCompoundTag expected = chunk();
+        ChunkCompoundTag chunk = expected;
+        for (TagFormat format : ROUND_TRIP) {
+            chunk = readChunk(writeChunk(chunk, format)); // blocks and entities stay encoded, copied when they can be
+            check(expected.equals(chunk), "a chunk survives " + format);
+        }
+    }
+
+    private static void readsBlocksAlone() throws IOException {
+        final ChunkCompoundTag chunk = chunk();
+        for (TagFormat format : new TagFormat[]{TagFormat.V2, TagFormat.V3}) {
+            final byte[] written = writeChunk(chunk, format);
+            for (int y = 0; y < 256; y += 17) {
+                final int key = BlockUUID.pack(y & 15, y, 3);
+                final CompoundTag read = ChunkCompoundTag.readBlock(new DataInputStream(new ByteArrayInputStream(written)), key);
+                check(chunk.getBlock(key).equals(read), "a block is read alone from " + format);
+            }
+            check(ChunkCompoundTag.readBlock(new DataInputStream(new ByteArrayInputStream(written)), BlockUUID.pack(1, 1, 1)) == null,
+                    "a missing block is not found in " + format);
+        }
+    }
+
+    private static void skipsEveryType() throws IOException {
+        final CompoundTag tags = everyType();
+        tags.put("chunk", chunk());
+        for (TagFormat format : TagFormat.values()) {
+            for (Map.Entry<String, Tag> entry : tags.entries()) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final DataOutputStream output = new DataOutputStream(bytes);
+                if (format.isSized())
+                    TagCodec.write(entry.getValue(), output, format);
+                else
+                    entry.getValue().write(output);
+                output.writeInt(SENTINEL);
+                final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+                if (entry.getValue().type() == TagType.CHUNK_COMPOUND)
+                    new ChunkCompoundTag().read(input, 0); // not skippable, its format is in its own bytes
+                else
+                    TagIO.skip(input, entry.getValue().type(), format);
+                check(input.readInt() == SENTINEL, entry.getKey() + " is skipped in " + format);
+            }
+        }
+    }
+
+    private static void writesNestedChunksInTheStreamFormat() throws IOException {
+        final CompoundTag root = new CompoundTag();
+        root.put("c", chunk());
+        for (TagFormat format : new TagFormat[]{TagFormat.V2, TagFormat.V3}) {
+            final DataInputStream input = new DataInputStream(new ByteArrayInputStream(writeTag(root, format)));
+            input.readByte(); // the root marker
+            check(input.readByte() == format.getVersion(), "the stream is " + format);
+            check(input.readByte() == TagType.COMPOUND.id(), "the root is a compound");
+            TagCodec.readVarInt(input); // the body length
+            check(input.readByte() == TagType.CHUNK_COMPOUND.id(), "the entry is a chunk");
+            check("c".equals(TagCodec.readString(input)), "the entry key");
+            final byte marker = input.readByte(); // 5 starts a V2 chunk, 6 a V3 one
+            check(marker == (format == TagFormat.V3 ? 6 : 5), "a nested chunk is written in " + format);
+        }
+    }
+
+    private static CompoundTag everyType() {
+        final CompoundTag tag = new CompoundTag();
+        tag.putByte("byte", (byte) -3);
+        tag.putShort("short", (short) 1234);
+        tag.putInt("int", -70000);
+        tag.putLong("long", Long.MIN_VALUE + 5);
+        tag.putFloat("float", 1.5F);
+        tag.putDouble("double", -2.25D);
+        tag.putByteArray("bytes", new byte[]{1, -1, 127});
+        tag.put("big", new BigIntegerTag(BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.TEN)));
+        tag.putString("string", "gr\u00fc\u00dfe");
+        tag.putIntArray("ints", new int[]{-1, 0, Integer.MAX_VALUE});
+        tag.putLongArray("longs", new long[]{-1L, 42L});
+        tag.putStringArray("strings", new String[]{"a", "", "\u00fc"});
+        final ListTag list = new ListTag(TagType.COMPOUND);
+        for (int i = 0; i < 3; i++) {
+            final CompoundTag element = new CompoundTag();
+            element.putInt("i", i);
+            list.add(element);
+        }
+        tag.put("list", list);
+        final CompoundTag nested = new CompoundTag();
+        nested.putString("name", "nested");
+        nested.putUniqueId("owner", new UUID(1L, 2L));
+        tag.putCompound("nested", nested);
+        return tag;
+    }
+
+    private static ChunkCompoundTag chunk() {
+        final ChunkCompoundTag chunk = new ChunkCompoundTag();
+        for (int y = 0; y < 256; y += 17) {
+            final CompoundTag block = new CompoundTag();
+            block.putInt("y", y);
+            block.putString("type", "pipe");
+            chunk.putBlock(BlockUUID.pack(y & 15, y, 3), block);
+        }
+        for (int i = 0; i < 3; i++) {
+            final CompoundTag entity = new CompoundTag();
+            entity.putLong("spawned", i * 1000L);
+            chunk.putEntity(new UUID(i, -i), entity);
+        }
+        chunk.getChunkCompound().putString("biome", "plains");
+        return chunk;
+    }
+
+    private static byte[] writeTag(final Tag tag, final TagFormat format) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TagIO.writeDataOutput(tag, new DataOutputStream(bytes), format);
+        return bytes.toByteArray();
+    }
+
+    private static Tag readTag(final byte[] written) throws IOException {
+        return TagIO.readDataInput(new DataInputStream(new ByteArrayInputStream(written)), TagType.COMPOUND);
+    }
+
+    private static byte[] writeChunk(final ChunkCompoundTag chunk, final TagFormat format) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        chunk.write(new DataOutputStream(bytes), format);
+        return bytes.toByteArray();
+    }
+
+    private static ChunkCompoundTag readChunk(final byte[] written) throws IOException {
+        final ChunkCompoundTag chunk = new ChunkCompoundTag();
+        chunk.read(new DataInputStream(new ByteArrayInputStream(written)), 0);
+        return chunk;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError("Failed: " + what);
+    }
+}
@@ -0,0 +1,84 @@
+package ro.nicuch.tag.nbt;
+
+import java.io.*;
+
+/**
+ * Compares reading one value through a {@link TagPath} straight from the bytes of a compound of about 3 KB,
+ * against decoding the whole compound and walking it, in every format.
+ * Run it as a main class, with nothing else running, the numbers are rough and the warmup rounds are printed too.
+ */
+public final class TagPathBenchmark {
+    private static final int READS = 20_000;
+    private static final int ROUNDS = 10;
+    private static final TagPath PATH = TagPath.compile("quest.stages[2].progress");
+
+    public static void main(String[] args) throws IOException {
+        final CompoundTag root = questTag();
+        for (TagFormat format : TagFormat.values()) {
+            final byte[] written = write(root, format);
+            check(PATH.get(root).equals(PATH.readRoot(input(written))), "the path reads the same value");
+            System.out.println(format + ", " + written.length + " bytes:");
+            for (int round = 0; round < ROUNDS; round++) {
+                long sum = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < READS; i++)
+                    sum += ((NumberTag) PATH.readRoot(input(written))).intValue();
+                final long pathNanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < READS; i++)
+                    sum += ((NumberTag) PATH.get((CompoundTag) TagIO.readDataInput(input(written), TagType.COMPOUND))).intValue();
+                final long decodeNanos = System.nanoTime() - start;
+                System.out.printf("  round %d: path %.2f us, full decode %.2f us per read (%d)%n",
+                        round, pathNanos / (1000D * READS), decodeNanos / (1000D * READS), sum);
+            }
+        }
+    }
+
+    /**
+     * A player-like tag, the quest entry comes last so the path has to walk past everything else.
+     */
+    private static CompoundTag questTag() {
+        final CompoundTag root = new CompoundTag();
+        final ListTag inventory = new ListTag(TagType.COMPOUND);
+        for (int slot = 0; slot < 36; slot++) {
+            final CompoundTag item = new CompoundTag();
+            item.putByte("slot", (byte) slot);
+            item.putString("id", "minecraft:item_" + slot);
+            item.putInt("count", slot + 1);
+            final CompoundTag meta = new CompoundTag();
+            meta.putString("name", "Item number " + slot);
+            meta.putIntArray("enchants", new int[]{slot, slot * 2, slot * 3});
+            item.putCompound("meta", meta);
+            inventory.add(item);
+        }
+        root.put("inventory", inventory);
+        root.putLongArray("seen", new long[]{1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L});
+        root.putString("title", "The long way round");
+        final CompoundTag quest = new CompoundTag();
+        final ListTag stages = new ListTag(TagType.COMPOUND);
+        for (int i = 0; i < 5; i++) {
+            final CompoundTag stage = new CompoundTag();
+            stage.putString("name", "stage " + i);
+            stage.putInt("progress", i * 10);
+            stages.add(stage);
+        }
+        quest.put("stages", stages);
+        root.putCompound("quest", quest);
+        return root;
+    }
+
+    private static byte[] write(final CompoundTag tag, final TagFormat format) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TagIO.writeDataOutput(tag, new DataOutputStream(bytes), format);
+        return bytes.toByteArray();
+    }
+
+    private static DataInput input(final byte[] written) {
+        return new DataInputStream(new ByteArrayInputStream(written));
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError("Failed: " + what);
+    }
+}
@@ -0,0 +1,68 @@
+package ro.nicuch.tag.nbt;
+
+import java.util.UUID;
+
+/**
+ * Checks that unique ids written by older versions as a string are still read, that they are written as a string
+ * until chunks are written in {@link TagFormat#V3}, and that ids never take a user's key.
+ * Run it as a main class, it throws on the first failed check.
+ */
+public final class UniqueIdTest {
+
+    public static void main(String[] args) {
+        readsLegacyString();
+        rewritesLegacyString();
+        writesStringBeforeV3();
+        keepsUserKeys();
+        System.out.println("UniqueIdTest passed.");
+    }
+
+    private static void readsLegacyString() {
+        UUID uuid = UUID.randomUUID();
+        CompoundTag tag = new CompoundTag();
+        tag.putString("ownerUUIDHash", uuid.toString()); // as older versions wrote it
+        check(tag.containsUniqueId("owner"), "a legacy id is found");
+        check(uuid.equals(tag.getUniqueId("owner")), "a legacy id is read");
+    }
+
+    private static void rewritesLegacyString() {
+        UUID uuid = UUID.randomUUID();
+        CompoundTag tag = new CompoundTag();
+        tag.putString("ownerUUIDHash", UUID.randomUUID().toString());
+        TagIO.setChunkFormat(TagFormat.V3);
+        try {
+            tag.putUniqueId("owner", uuid);
+        } finally {
+            TagIO.setChunkFormat(TagFormat.V1);
+        }
+        check(tag.contains("ownerUUIDHash", TagType.LONG_ARRAY), "the legacy string is replaced by two longs in V3");
+        check(uuid.equals(tag.getUniqueId("owner")), "the new id is read");
+    }
+
+    private static void writesStringBeforeV3() {
+        for (TagFormat format : new TagFormat[]{TagFormat.V1, TagFormat.V2}) {
+            UUID uuid = UUID.randomUUID();
+            CompoundTag tag = new CompoundTag();
+            TagIO.setChunkFormat(format);
+            try {
+                tag.putUniqueId("owner", uuid);
+            } finally {
+                TagIO.setChunkFormat(TagFormat.V1);
+            }
+            check(uuid.toString().equals(tag.getString("ownerUUIDHash")), "the id is written as a string in " + format);
+            check(tag.containsUniqueId("owner") && uuid.equals(tag.getUniqueId("owner")), "the string id is read in " + format);
+        }
+    }
+
+    private static void keepsUserKeys() {
+        CompoundTag tag = new CompoundTag();
+        tag.putString("ownerUUID", "not an id");
+        tag.putUniqueId("owner", UUID.randomUUID());
+        check("not an id".equals(tag.getString("ownerUUID")), "a user key ending in UUID is left alone");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError("Failed: " + what);
+    }
+}
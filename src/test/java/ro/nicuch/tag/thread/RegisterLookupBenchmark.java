@@ -0,0 +1,174 @@
+package ro.nicuch.tag.thread;
+
+import ro.nicuch.tag.nbt.async.ConcurrentLong2ObjectHashMap;
+import ro.nicuch.tag.wrapper.ChunkUUID;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compares the region and chunk lookups behind {@code getStored} under contention: the per-key lock maps used before,
+ * against the {@link ConcurrentLong2ObjectHashMap} reads with {@link SingleFlight} loading used now.
+ * Every thread looks up the same few loaded chunks, as the main thread and async lookups do around players.
+ * Run it as a main class, with nothing else running, the numbers are rough and the warmup rounds are printed too.
+ */
+public final class RegisterLookupBenchmark {
+    private static final int REGIONS = 4;
+    private static final int CHUNKS = 64; // per region
+    private static final int LOOKUPS = 2_000_000; // per thread and round
+    private static final int ROUNDS = 5;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws InterruptedException {
+        final LockMapRegisters locked = new LockMapRegisters();
+        final LockFreeRegisters lockFree = new LockFreeRegisters();
+        for (int threads : THREADS) {
+            for (int round = 0; round < ROUNDS; round++) {
+                final double lockedNanos = run(threads, locked::lookup);
+                final double lockFreeNanos = run(threads, lockFree::lookup);
+                System.out.printf("%d threads, round %d: lock maps %.1f ns, lock-free %.1f ns per lookup%n",
+                        threads, round, lockedNanos, lockFreeNanos);
+            }
+        }
+    }
+
+    /**
+     * @return the wall time per lookup, over all threads
+     */
+    private static double run(final int threads, final Lookup lookup) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final LongAdder found = new LongAdder();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    int hits = 0;
+                    for (int i = 0; i < LOOKUPS; i++) {
+                        final int chunk = (i * 31 + seed) & (REGIONS * CHUNKS - 1);
+                        if (lookup.lookup(chunk >> 6, chunk & (CHUNKS - 1)) != null)
+                            hits++;
+                    }
+                    found.add(hits);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            thread.start();
+        }
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - begin;
+        if (found.sum() != (long) threads * LOOKUPS)
+            throw new IllegalStateException("missed a loaded chunk");
+        return elapsed / ((double) threads * LOOKUPS);
+    }
+
+    private interface Lookup {
+        Object lookup(int region, int chunk);
+    }
+
+    /**
+     * The registers before, a lock per key taken for every read. {@link ChunkUUID} keys stand for the region keys too,
+     * they hash the same way.
+     */
+    private static final class LockMapRegisters {
+        private final ConcurrentMap<ChunkUUID, LockMapRegion> regions = new ConcurrentHashMap<>();
+        private final Map<ChunkUUID, ReentrantLock> regionsLock = Collections.synchronizedMap(new WeakHashMap<>());
+
+        private LockMapRegisters() {
+            for (int regionX = 0; regionX < REGIONS; regionX++) {
+                final LockMapRegion region = new LockMapRegion();
+                for (int chunk = 0; chunk < CHUNKS; chunk++)
+                    region.chunks.put(new ChunkUUID(regionX * CHUNKS + chunk, 0), new Object());
+                this.regions.put(new ChunkUUID(regionX, 0), region);
+            }
+        }
+
+        private ReentrantLock getLock(final Map<ChunkUUID, ReentrantLock> locks, final ChunkUUID uuid) {
+            ReentrantLock lock = locks.get(uuid); // the old containsKey then get could return a lock collected in between
+            if (lock != null)
+                return lock;
+            lock = new ReentrantLock();
+            locks.put(uuid, lock);
+            return lock;
+        }
+
+        private Object lookup(final int regionX, final int chunk) {
+            final ChunkUUID regionUUID = new ChunkUUID(regionX, 0);
+            final LockMapRegion region;
+            final ReentrantLock lock = this.getLock(this.regionsLock, regionUUID);
+            lock.lock();
+            try {
+                region = this.regions.get(regionUUID);
+            } finally {
+                lock.unlock();
+            }
+            final ChunkUUID chunkUUID = new ChunkUUID(regionX * CHUNKS + chunk, 0);
+            final ReentrantLock chunkLock = this.getLock(region.chunksLock, chunkUUID);
+            chunkLock.lock();
+            try {
+                return region.chunks.get(chunkUUID);
+            } finally {
+                chunkLock.unlock();
+            }
+        }
+    }
+
+    private static final class LockMapRegion {
+        private final ConcurrentMap<ChunkUUID, Object> chunks = new ConcurrentHashMap<>();
+        private final Map<ChunkUUID, ReentrantLock> chunksLock = Collections.synchronizedMap(new WeakHashMap<>());
+    }
+
+    /**
+     * The registers now, plain reads of packed keys, a miss loads through {@link SingleFlight}.
+     */
+    private static final class LockFreeRegisters {
+        private final ConcurrentLong2ObjectHashMap<LockFreeRegion> regions = new ConcurrentLong2ObjectHashMap<>(16, 16);
+        private final SingleFlight<Long, LockFreeRegion> regionLoader = new SingleFlight<>();
+
+        private LockFreeRegisters() {
+            for (int regionX = 0; regionX < REGIONS; regionX++)
+                for (int chunk = 0; chunk < CHUNKS; chunk++)
+                    this.lookup(regionX, chunk); // loaded through the single flight, as the first lookup of a chunk is
+        }
+
+        private Object lookup(final int regionX, final int chunk) {
+            final long regionKey = ChunkUUID.pack(regionX, 0);
+            LockFreeRegion region = this.regions.get(regionKey);
+            if (region == null)
+                region = this.regionLoader.load(regionKey, () -> this.regions.get(regionKey), () -> {
+                    final LockFreeRegion loaded = new LockFreeRegion();
+                    this.regions.put(regionKey, loaded);
+                    return loaded;
+                });
+            return region.getOrLoadChunk(ChunkUUID.pack(regionX * CHUNKS + chunk, 0));
+        }
+    }
+
+    private static final class LockFreeRegion {
+        private final ConcurrentLong2ObjectHashMap<Object> chunks = new ConcurrentLong2ObjectHashMap<>(4, 64);
+        private final SingleFlight<Long, Object> chunkLoader = new SingleFlight<>();
+
+        private Object getOrLoadChunk(final long chunkKey) {
+            final Object chunk = this.chunks.get(chunkKey);
+            if (chunk != null)
+                return chunk;
+            return this.chunkLoader.load(chunkKey, () -> this.chunks.get(chunkKey), () -> {
+                final Object loaded = new Object();
+                this.chunks.put(chunkKey, loaded);
+                return loaded;
+            });
+        }
+    }
+}